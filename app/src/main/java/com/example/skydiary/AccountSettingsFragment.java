@@ -1,7 +1,9 @@
 package com.example.skydiary;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.Log;
 import android.util.Patterns;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -19,16 +21,19 @@ import com.google.android.material.textfield.TextInputEditText;
 import com.google.firebase.auth.AuthCredential;
 import com.google.firebase.auth.EmailAuthProvider;
 import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseAuthRecentLoginRequiredException;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.auth.UserProfileChangeRequest;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 public class AccountSettingsFragment extends Fragment {
+    private static final String TAG = "AccountSettingsFragment";
 
     private TextInputEditText etUsername, etEmail, etCurrentPassword, etNewPassword;
     private MaterialButton btnUpdate;
@@ -306,34 +311,109 @@ public class AccountSettingsFragment extends Fragment {
                 .show();
     }
 
+    // Firebase only deletes a user who signed in recently, so the user signs in again before
+    // anything is deleted; otherwise their data would be gone with the account still there.
+    // Once started, the deletion runs to the end even if the user leaves this screen; only the
+    // feedback is skipped then.
     private void performAccountDeletion() {
         if (currentUser == null) return;
+        String password = etCurrentPassword.getText() != null
+                ? etCurrentPassword.getText().toString().trim() : "";
+        if (password.isEmpty() || currentUser.getEmail() == null) {
+            Toast.makeText(requireContext(), R.string.password_required_for_account_deletion, Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-        String uid = currentUser.getUid();
+        Context context = requireContext().getApplicationContext();
+        FirebaseUser user = currentUser;
+        AuthCredential credential = EmailAuthProvider.getCredential(user.getEmail(), password);
+        user.reauthenticate(credential)
+                .addOnSuccessListener(unused -> deleteData(context, user))
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Account deletion: re-authentication failed", e);
+                    if (isAdded()) {
+                        Toast.makeText(requireContext(), R.string.reauthentication_failed, Toast.LENGTH_SHORT).show();
+                    }
+                });
+    }
+
+    private void deleteData(Context context, FirebaseUser user) {
+        String uid = user.getUid();
         db.collection("notes").whereEqualTo("userId", uid).get()
                 .addOnSuccessListener(querySnapshot -> {
+                    FirestoreBatcher batcher = new FirestoreBatcher(db);
                     for (DocumentSnapshot doc : querySnapshot) {
-                        doc.getReference().delete();
+                        batcher.delete(doc.getReference());
                     }
-                    String username = currentUser.getDisplayName();
+                    String username = user.getDisplayName();
                     if (username != null) {
-                        db.collection("usernames").document(username).delete();
+                        batcher.delete(db.collection("usernames").document(username));
                     }
-                    db.collection("users").document(uid).delete();
-
-                    currentUser.delete()
-                            .addOnCompleteListener(task -> {
-                                if (task.isSuccessful()) {
-                                    NoteStorage.getInstance(requireContext()).clearAllNotes();
-                                    ConstellationStorage.getInstance(requireContext()).resetToDefault();
-                                    auth.signInAnonymously();
-                                    Toast.makeText(requireContext(), R.string.account_deleted, Toast.LENGTH_SHORT).show();
-                                    requireActivity().getSupportFragmentManager().popBackStack();
-                                } else {
-                                    Toast.makeText(requireContext(), R.string.account_deletion_failed, Toast.LENGTH_SHORT).show();
-                                }
-                            });
+                    batcher.delete(db.collection("users").document(uid));
+
+                    // The user is only deleted once their documents and blobs are gone;
+                    // afterwards the security rules would no longer let this client delete
+                    // what's left
+                    batcher.commit(new FirestoreBatcher.Callback() {
+                        @Override
+                        public void onBatchResult(FirestoreBatcher.BatchResult result) {
+                            Log.d(TAG, "Account deletion: batch " + (result.index + 1) + "/" + result.batchCount
+                                    + (result.isSuccessful() ? " done" : " failed"));
+                        }
+
+                        @Override
+                        public void onComplete(List<FirestoreBatcher.BatchResult> failed) {
+                            if (!failed.isEmpty()) {
+                                showDeletionResult(false);
+                                return;
+                            }
+                            deleteBlobs(context, user);
+                        }
+                    });
                 })
-                .addOnFailureListener(e -> Toast.makeText(requireContext(), R.string.account_deletion_failed, Toast.LENGTH_SHORT).show());
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Account deletion: listing notes failed", e);
+                    showDeletionResult(false);
+                });
+    }
+
+    // Image blobs in Storage go after the documents that refer to them, and before the user
+    private void deleteBlobs(Context context, FirebaseUser user) {
+        ImageBlobStore.getInstance(context).deleteAllBlobs(user.getUid())
+                .addOnSuccessListener(unused -> deleteUser(context, user))
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Account deletion: deleting image blobs failed", e);
+                    showDeletionResult(false);
+                });
+    }
+
+    private void deleteUser(Context context, FirebaseUser user) {
+        user.delete()
+                .addOnCompleteListener(task -> {
+                    if (task.isSuccessful()) {
+                        NoteStorage.getInstance(context).clearAllNotes();
+                        ConstellationStorage.getInstance(context).resetToDefault();
+                        auth.signInAnonymously();
+                        showDeletionResult(true);
+                        return;
+                    }
+                    Log.e(TAG, "Account deletion: deleting the user failed", task.getException());
+                    // Only if the deletion took longer than the sign-in stays recent
+                    if (task.getException() instanceof FirebaseAuthRecentLoginRequiredException && isAdded()) {
+                        Toast.makeText(requireContext(), R.string.account_deletion_login_required, Toast.LENGTH_LONG).show();
+                    } else {
+                        showDeletionResult(false);
+                    }
+                });
+    }
+
+    private void showDeletionResult(boolean deleted) {
+        if (!isAdded()) return;
+        if (deleted) {
+            Toast.makeText(requireContext(), R.string.account_deleted, Toast.LENGTH_SHORT).show();
+            requireActivity().getSupportFragmentManager().popBackStack();
+        } else {
+            Toast.makeText(requireContext(), R.string.account_deletion_failed, Toast.LENGTH_SHORT).show();
+        }
     }
-}
\ No newline at end of file
+}
@@ -123,6 +123,15 @@ public abstract class BaseNoteFragment extends Fragment {
     protected abstract void setupSpecificViews(View view);
     protected abstract void saveNoteImplementation();
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        // Don't leave tag, rotation or reorder changes waiting in the write-behind window
+        if (noteStorage != null) {
+            noteStorage.requestFlush();
+        }
+    }
+
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
@@ -367,7 +376,11 @@ public abstract class BaseNoteFragment extends Fragment {
 
         noteImages.clear();
         if (currentNote.getImages() != null) {
-            noteImages.addAll(currentNote.getImages());
+            // Copies: the editor rotates and moves its images in place, and currentNote has to
+            // keep the saved state so the next save can tell what changed
+            for (NoteImage image : currentNote.getImages()) {
+                noteImages.add(new NoteImage(image));
+            }
             displayExistingImages();
         }
     }
@@ -407,15 +420,32 @@ public abstract class BaseNoteFragment extends Fragment {
         imageView.setLayoutParams(params);
         imageView.setRotation(noteImage.getRotation());
 
+        String imagePath = noteImage.getImagePath();
+        if (noteImage.getBlobKey() != null && (imagePath == null || !new File(imagePath).exists())) {
+            // Pulled notes only refer to their images; fetch this one now that it is shown
+            Glide.with(requireContext())
+                    .load(R.drawable.placeholder_image)
+                    .into(imageView);
+            ImageBlobStore.getInstance(requireContext()).fetch(noteImage.getBlobKey())
+                    .addOnCompleteListener(task -> {
+                        if (!isAdded()) return;
+                        loadImage(imageView, task.isSuccessful() ? task.getResult().getAbsolutePath() : null);
+                    });
+        } else {
+            loadImage(imageView, imagePath);
+        }
+
+        setupImageInteractions(imageView);
+        imagesContainer.addView(imageView);
+    }
+
+    private void loadImage(ImageView imageView, String imagePath) {
         Glide.with(requireContext())
-                .load(noteImage.getImagePath())
+                .load(imagePath)
                 .diskCacheStrategy(DiskCacheStrategy.ALL)
                 .placeholder(R.drawable.placeholder_image)
                 .error(R.drawable.error_image)
                 .into(imageView);
-
-        setupImageInteractions(imageView);
-        imagesContainer.addView(imageView);
     }
 
     protected void showPopupMenu() {
@@ -31,6 +31,14 @@ public class CalendarNotesFragment extends Fragment implements NotesAdapter.OnIt
     private NotesAdapter adapter;
     private Calendar currentSelectedDate = Calendar.getInstance();
 
+    // NoteStorage version the shown day reflects
+    private long loadedVersion = -1;
+    private final NoteStorage.OnNotesChangedListener notesChangedListener = event -> {
+        if (event.getVersion() > loadedVersion) {
+            reloadSelectedDate();
+        }
+    };
+
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater,
@@ -62,7 +70,7 @@ public class CalendarNotesFragment extends Fragment implements NotesAdapter.OnIt
                 chosen.set(year, month, day);
                 calendarView.setDate(chosen.getTimeInMillis());
                 currentSelectedDate = chosen;
-                loadNotesForDate(year, month, day);
+                reloadSelectedDate();
             }, current.get(Calendar.YEAR), current.get(Calendar.MONTH), current.get(Calendar.DAY_OF_MONTH));
             picker.show();
         });
@@ -76,29 +84,49 @@ public class CalendarNotesFragment extends Fragment implements NotesAdapter.OnIt
             Calendar selected = Calendar.getInstance();
             selected.set(year, month, dayOfMonth);
             currentSelectedDate = selected;
-            loadNotesForDate(year, month, dayOfMonth);
+            reloadSelectedDate();
         });
 
-        loadNotesForDate(
-                currentSelectedDate.get(Calendar.YEAR),
-                currentSelectedDate.get(Calendar.MONTH),
-                currentSelectedDate.get(Calendar.DAY_OF_MONTH)
-        );
+        // The notes are still being loaded in the background right after start
+        SkyDiaryApp.from(requireContext()).runWhenReady(() -> {
+            if (getView() == null) return;
+            reloadSelectedDate();
+        });
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        NoteStorage.getInstance(requireContext()).addOnNotesChangedListener(notesChangedListener);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        NoteStorage.getInstance(requireContext()).removeOnNotesChangedListener(notesChangedListener);
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        if (currentSelectedDate != null) {
+        if (!SkyDiaryApp.from(requireContext()).isReady()) return;
+        if (NoteStorage.getInstance(requireContext()).getVersion() != loadedVersion) {
             Log.d("CalendarNotesFragment", "Refreshing calendar notes on resume");
-            loadNotesForDate(
-                    currentSelectedDate.get(Calendar.YEAR),
-                    currentSelectedDate.get(Calendar.MONTH),
-                    currentSelectedDate.get(Calendar.DAY_OF_MONTH)
-            );
+            reloadSelectedDate();
         }
     }
 
+    // Until the warm-up is done this would wait for it on the main thread; the day selected
+    // by then is loaded once it is
+    private void reloadSelectedDate() {
+        if (currentSelectedDate == null || !SkyDiaryApp.from(requireContext()).isReady()) return;
+        loadNotesForDate(
+                currentSelectedDate.get(Calendar.YEAR),
+                currentSelectedDate.get(Calendar.MONTH),
+                currentSelectedDate.get(Calendar.DAY_OF_MONTH)
+        );
+    }
+
     private void loadNotesForDate(int year, int month, int dayOfMonth) {
         Calendar startCal = Calendar.getInstance();
         startCal.clear();
@@ -108,8 +136,10 @@ public class CalendarNotesFragment extends Fragment implements NotesAdapter.OnIt
         Calendar endCal = (Calendar) startCal.clone();
         endCal.add(Calendar.DATE, 1);
 
-        List<Note> notesForDay = NoteStorage.getInstance(requireContext())
-                .getNotesByDate(startCal.getTimeInMillis(), endCal.getTimeInMillis());
+        NoteStorage noteStorage = NoteStorage.getInstance(requireContext());
+        loadedVersion = noteStorage.getVersion();
+        List<NoteSummary> notesForDay = noteStorage
+                .getNoteSummariesByDate(startCal.getTimeInMillis(), endCal.getTimeInMillis());
 
         Log.d("CalendarNotesFragment", "Found " + notesForDay.size() + " notes for date " + year + "-" + (month + 1) + "-" + dayOfMonth);
 
@@ -125,7 +155,7 @@ public class CalendarNotesFragment extends Fragment implements NotesAdapter.OnIt
     }
 
     @Override
-    public void onItemClick(Note note) {
+    public void onItemClick(NoteSummary note) {
         if (note != null && note.getId() != null) {
             requireActivity().getSupportFragmentManager()
                     .beginTransaction()
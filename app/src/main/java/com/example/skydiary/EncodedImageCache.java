@@ -0,0 +1,193 @@
+package com.example.skydiary;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk cache of note images as compressed for upload (see ImageUtils.compressToJpeg()), so an
+ * image is compressed at most once per file content, even when its upload is retried or has to
+ * be repeated for another account. Entries are keyed by image id and file fingerprint, and the
+ * least recently used ones are evicted once the cache outgrows its limit (MAX_BYTES).
+ */
+class EncodedImageCache {
+    private static final String TAG = "EncodedImageCache";
+    private static final long MAX_BYTES = 32L * 1024 * 1024;
+    private static final String SUFFIX = ".jpg";
+
+    // Compresses an image file for upload; null if it can't be read
+    interface Encoder {
+        byte[] encode(String imagePath);
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final Encoder encoder;
+    // Entry file name to size, least recently used first; loaded from the directory on first use
+    private LinkedHashMap<String, Long> entries;
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    EncodedImageCache(File dir) {
+        this(dir, MAX_BYTES, ImageUtils::compressToJpeg);
+    }
+
+    // For tests: a small cache and an encoder that doesn't need Android's bitmap code
+    EncodedImageCache(File dir, long maxBytes, Encoder encoder) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.encoder = encoder;
+    }
+
+    /**
+     * Size and modification time of the image's file, or null if it has none. Rotation is left
+     * out: it is uploaded with the note, not applied to the pixels.
+     */
+    static String fingerprint(NoteImage image) {
+        if (image.getImagePath() == null) return null;
+        File file = new File(image.getImagePath());
+        if (!file.exists()) return null;
+        return file.length() + "-" + file.lastModified();
+    }
+
+    /**
+     * The image compressed for upload: from the cache if its file hasn't changed since it was
+     * compressed, otherwise compressed now and cached. Null if the file can't be read.
+     */
+    synchronized byte[] get(NoteImage image) {
+        loadEntries();
+        String fingerprint = fingerprint(image);
+        if (fingerprint == null) return null;
+        String name = image.getId() + "_" + fingerprint + SUFFIX;
+
+        if (entries.containsKey(name)) {
+            try {
+                byte[] bytes = readFile(new File(dir, name));
+                // Re-inserted to become the most recently used, and touched so the next run
+                // sees the same order
+                entries.put(name, entries.remove(name));
+                new File(dir, name).setLastModified(System.currentTimeMillis());
+                hits++;
+                return bytes;
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading cached image " + name, e);
+                remove(name);
+            }
+        }
+
+        misses++;
+        byte[] bytes = encoder.encode(image.getImagePath());
+        if (bytes == null) return null;
+        // Whatever was cached for an older version of the file is no use anymore
+        for (String stale : new ArrayList<>(entries.keySet())) {
+            if (stale.startsWith(image.getId() + "_")) {
+                remove(stale);
+            }
+        }
+        try {
+            writeFile(new File(dir, name), bytes);
+            entries.put(name, (long) bytes.length);
+            totalBytes += bytes.length;
+            evict();
+        } catch (IOException e) {
+            Log.e(TAG, "Error caching image " + name, e);
+        }
+        return bytes;
+    }
+
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    synchronized long getMissCount() {
+        return misses;
+    }
+
+    synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    synchronized long getSizeBytes() {
+        loadEntries();
+        return totalBytes;
+    }
+
+    // Entries written by earlier runs are ordered by modification time, the best guess at
+    // when they were last used
+    private void loadEntries() {
+        if (entries != null) return;
+        entries = new LinkedHashMap<>();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Can't create " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                // Left over from an interrupted write
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+        evict();
+    }
+
+    private void evict() {
+        int evicted = 0;
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        // The newest entry stays even if it is bigger than the whole cache
+        while (totalBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            totalBytes -= entry.getValue();
+            it.remove();
+            new File(dir, entry.getKey()).delete();
+            evicted++;
+        }
+        if (evicted > 0) {
+            evictions += evicted;
+            Log.d(TAG, "Evicted " + evicted + " images, " + totalBytes + " bytes left");
+        }
+    }
+
+    private void remove(String name) {
+        Long size = entries.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(dir, name).delete();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    // Written next to the entry and renamed, so a cut-off write never looks like an entry
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(bytes);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp);
+        }
+    }
+}
@@ -41,4 +41,5 @@ public class FirebaseManager {
 
     public FirebaseAuth getAuth() { return auth; }
     public FirebaseFirestore getDb() { return db; }
+    public FirebaseStorage getStorage() { return storage; }
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+package com.example.skydiary;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups document writes and deletes into WriteBatch commits instead of one request per
+ * document. A batch holds up to Firestore's 500 operations and stays under a size cap, only a
+ * few batches are committed at once, and a failed batch is retried a couple of times before it
+ * is reported. Each batch is atomic, so a document is either written with the rest of its
+ * batch or not at all.
+ *
+ * Main thread only: queue the operations, then call commit() once.
+ */
+public class FirestoreBatcher {
+    private static final String TAG = "FirestoreBatcher";
+
+    // Firestore's limit per batch
+    private static final int MAX_OPERATIONS = 500;
+    // A request may be 10 MiB; long note texts add up, so stay well below
+    private static final long MAX_BATCH_BYTES = 4L * 1024 * 1024;
+    // Rough size of a delete: the document path and some overhead
+    private static final long DELETE_BYTES = 100;
+    private static final int MAX_IN_FLIGHT = 3;
+    private static final int MAX_ATTEMPTS = 3;
+    // Doubled after each failed attempt
+    private static final long RETRY_DELAY_MS = 1000;
+
+    public interface Callback {
+        /** Called once per batch, after it committed or failed for good. */
+        void onBatchResult(BatchResult result);
+
+        /** Called once all batches are done, with the ones that didn't commit (empty if all did). */
+        void onComplete(List<BatchResult> failed);
+    }
+
+    public static final class BatchResult {
+        public final int index;
+        public final int batchCount;
+        /** The documents written or deleted by this batch. */
+        public final List<DocumentReference> documents;
+        public final long bytes;
+        public final int attempts;
+        /** Null if the batch committed. */
+        public final Exception error;
+
+        BatchResult(Batch batch, int batchCount, Exception error) {
+            this.index = batch.index;
+            this.batchCount = batchCount;
+            this.documents = Collections.unmodifiableList(batch.documents);
+            this.bytes = batch.bytes;
+            this.attempts = batch.attempts;
+            this.error = error;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+    }
+
+    private static final class Batch {
+        final int index;
+        final List<DocumentReference> documents = new ArrayList<>();
+        // Data to set, or null to delete, for the document at the same position
+        final List<Map<String, Object>> data = new ArrayList<>();
+        // Whether the data only updates the fields it names instead of replacing the document
+        final List<Boolean> updates = new ArrayList<>();
+        long bytes;
+        int attempts;
+
+        Batch(int index) {
+            this.index = index;
+        }
+    }
+
+    private final FirebaseFirestore db;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Batch> batches = new ArrayList<>();
+    private final List<BatchResult> failed = new ArrayList<>();
+    private Callback callback;
+    private long start;
+    private int nextBatch;
+    private int inFlight;
+    private int done;
+    private boolean committed;
+
+    public FirestoreBatcher(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    public FirestoreBatcher set(DocumentReference document, Map<String, Object> data) {
+        add(document, data, false, estimateSize(data));
+        return this;
+    }
+
+    /** Writes only the given fields of an existing document; the batch fails if it is gone. */
+    public FirestoreBatcher update(DocumentReference document, Map<String, Object> fields) {
+        add(document, fields, true, estimateSize(fields));
+        return this;
+    }
+
+    public FirestoreBatcher delete(DocumentReference document) {
+        add(document, null, false, DELETE_BYTES);
+        return this;
+    }
+
+    private void add(DocumentReference document, Map<String, Object> data, boolean update, long bytes) {
+        if (committed) {
+            throw new IllegalStateException("Already committed");
+        }
+        Batch batch = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+        // A document too big for the cap still gets a batch of its own
+        if (batch == null || batch.documents.size() >= MAX_OPERATIONS
+                || (!batch.documents.isEmpty() && batch.bytes + bytes > MAX_BATCH_BYTES)) {
+            batch = new Batch(batches.size());
+            batches.add(batch);
+        }
+        batch.documents.add(document);
+        batch.data.add(data);
+        batch.updates.add(update);
+        batch.bytes += bytes;
+    }
+
+    public int getOperationCount() {
+        int count = 0;
+        for (Batch batch : batches) {
+            count += batch.documents.size();
+        }
+        return count;
+    }
+
+    /** Estimated size of everything queued, as sent. */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Batch batch : batches) {
+            bytes += batch.bytes;
+        }
+        return bytes;
+    }
+
+    /** Commits the queued operations. The callback runs on the main thread. */
+    public void commit(Callback callback) {
+        if (committed) {
+            throw new IllegalStateException("Already committed");
+        }
+        committed = true;
+        this.callback = callback;
+        start = SystemClock.elapsedRealtime();
+        if (batches.isEmpty()) {
+            callback.onComplete(failed);
+            return;
+        }
+        startBatches();
+    }
+
+    private void startBatches() {
+        while (inFlight < MAX_IN_FLIGHT && nextBatch < batches.size()) {
+            inFlight++;
+            commitBatch(batches.get(nextBatch++));
+        }
+    }
+
+    // A WriteBatch can only be committed once, so every attempt builds a new one
+    private void commitBatch(Batch batch) {
+        batch.attempts++;
+        WriteBatch writeBatch = db.batch();
+        for (int i = 0; i < batch.documents.size(); i++) {
+            Map<String, Object> data = batch.data.get(i);
+            if (data == null) {
+                writeBatch.delete(batch.documents.get(i));
+            } else if (batch.updates.get(i)) {
+                writeBatch.update(batch.documents.get(i), data);
+            } else {
+                writeBatch.set(batch.documents.get(i), data);
+            }
+        }
+        writeBatch.commit().addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                finishBatch(batch, null);
+            } else if (batch.attempts < MAX_ATTEMPTS) {
+                long delay = RETRY_DELAY_MS << (batch.attempts - 1);
+                Log.w(TAG, "Batch " + (batch.index + 1) + "/" + batches.size() + " failed, retrying in "
+                        + delay + " ms", task.getException());
+                mainHandler.postDelayed(() -> commitBatch(batch), delay);
+            } else {
+                Exception error = task.getException() != null ? task.getException()
+                        : new Exception("Batch commit failed");
+                Log.e(TAG, "Batch " + (batch.index + 1) + "/" + batches.size() + " failed after "
+                        + batch.attempts + " attempts", error);
+                finishBatch(batch, error);
+            }
+        });
+    }
+
+    private void finishBatch(Batch batch, Exception error) {
+        inFlight--;
+        done++;
+        BatchResult result = new BatchResult(batch, batches.size(), error);
+        if (error != null) {
+            failed.add(result);
+        }
+        callback.onBatchResult(result);
+        if (done < batches.size()) {
+            startBatches();
+            return;
+        }
+        Log.d(TAG, "Committed " + (batches.size() - failed.size()) + "/" + batches.size() + " batches ("
+                + getOperationCount() + " operations, about " + getEstimatedBytes() + " bytes) in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        callback.onComplete(failed);
+    }
+
+    // Rough size of a document as sent: UTF-8 strings and field names, 8 bytes per number or
+    // date, 1 per boolean. Good enough to keep batches under the request limit.
+    static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8).length;
+        }
+        if (value instanceof Map) {
+            long size = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof List) {
+            long size = 0;
+            for (Object item : (List<?>) value) {
+                size += estimateSize(item);
+            }
+            return size;
+        }
+        if (value instanceof Boolean) return 1;
+        return value != null ? 8 : 0;
+    }
+}
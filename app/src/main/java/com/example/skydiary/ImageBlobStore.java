@@ -0,0 +1,249 @@
+package com.example.skydiary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Note images in Firebase Storage, one blob per distinct image content under
+ * users/{uid}/images/{sha256}. Note documents only hold the key, so an image is uploaded
+ * once however many notes or syncs refer to it, and downloaded only when a note showing it
+ * is opened. Downloaded blobs are kept as note_images/blob_{key}.jpg.
+ */
+public class ImageBlobStore {
+    private static final String TAG = "ImageBlobStore";
+    private static final String PREFS_NAME = "image_blobs";
+    // Per image id, the fingerprint of its file and the key it was uploaded under, as "fingerprint:key"
+    private static final String IMAGE_KEY_PREFIX = "image_";
+    // Keys known to be in Storage, and for which user
+    private static final String UPLOADED_KEY = "uploaded";
+    private static final String UPLOADED_USER_KEY = "uploaded_user";
+
+    private static ImageBlobStore instance;
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final FirebaseStorage storage;
+    // Compressing, hashing and uploading run here, one image at a time
+    private final ExecutorService uploader = Executors.newSingleThreadExecutor();
+    // Used on the uploader thread
+    private final EncodedImageCache encodedImages;
+    // Main thread only: downloads in progress, so a blob shown twice is fetched once
+    private final Map<String, Task<File>> downloads = new HashMap<>();
+
+    private ImageBlobStore(Context context) {
+        this.context = context.getApplicationContext();
+        this.prefs = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.storage = FirebaseManager.getInstance().getStorage();
+        this.encodedImages = new EncodedImageCache(new File(this.context.getCacheDir(), "encoded_images"));
+    }
+
+    public static synchronized ImageBlobStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageBlobStore(context);
+        }
+        return instance;
+    }
+
+    /** Where a downloaded blob is kept. The file may not exist yet. */
+    public File getBlobFile(String key) {
+        return new File(new File(context.getFilesDir(), "note_images"), "blob_" + key + ".jpg");
+    }
+
+    /**
+     * Uploads whatever the user's Storage is missing of these images and completes with the
+     * blob key of each image id. Images whose file can't be read and that were never uploaded
+     * get no key. A blob another note or device already uploaded is found by its key and not
+     * sent again.
+     */
+    public Task<Map<String, String>> uploadImages(String uid, List<NoteImage> images) {
+        return Tasks.call(uploader, () -> {
+            long start = SystemClock.elapsedRealtime();
+            Set<String> uploaded = getUploadedKeys(uid);
+            Map<String, String> keys = new HashMap<>();
+            int sent = 0;
+            int found = 0;
+            long bytesSent = 0;
+            for (NoteImage image : images) {
+                // Downloaded from this user's Storage, so it's there already
+                if (image.getBlobKey() != null) {
+                    keys.put(image.getId(), image.getBlobKey());
+                    continue;
+                }
+                String fingerprint = EncodedImageCache.fingerprint(image);
+                String key = getUploadedKey(image, fingerprint);
+                if (key != null && uploaded.contains(key)) {
+                    keys.put(image.getId(), key);
+                    continue;
+                }
+                byte[] bytes = encodedImages.get(image);
+                if (bytes == null) {
+                    Log.e(TAG, "Can't read image " + image.getImagePath() + ", not uploading it");
+                    continue;
+                }
+                // The key always names the bytes sent
+                key = sha256(bytes);
+                prefs.edit().putString(IMAGE_KEY_PREFIX + image.getId(), fingerprint + ":" + key).apply();
+                keys.put(image.getId(), key);
+                if (uploaded.contains(key)) continue;
+
+                StorageReference blob = getBlobReference(uid, key);
+                if (exists(blob)) {
+                    found++;
+                } else {
+                    StorageMetadata metadata = new StorageMetadata.Builder()
+                            .setContentType("image/jpeg")
+                            .build();
+                    Tasks.await(blob.putBytes(bytes, metadata));
+                    sent++;
+                    bytesSent += bytes.length;
+                }
+                uploaded.add(key);
+            }
+            prefs.edit()
+                    .putStringSet(UPLOADED_KEY, uploaded)
+                    .putString(UPLOADED_USER_KEY, uid)
+                    .apply();
+            Log.d(TAG, "Image upload: " + images.size() + " images, " + sent + " blobs sent (" + bytesSent
+                    + " bytes), " + found + " already in Storage, in " + (SystemClock.elapsedRealtime() - start)
+                    + " ms; encoded image cache " + encodedImages.getHitCount() + " hits, "
+                    + encodedImages.getMissCount() + " misses, " + encodedImages.getEvictionCount()
+                    + " evictions, " + encodedImages.getSizeBytes() + " bytes");
+            return keys;
+        });
+    }
+
+    /**
+     * Downloads a blob of the signed-in user, unless it is already here, and completes with
+     * its file. Main thread only.
+     */
+    public Task<File> fetch(String key) {
+        File file = getBlobFile(key);
+        if (file.exists()) {
+            return Tasks.forResult(file);
+        }
+        Task<File> pending = downloads.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            return Tasks.forException(new IllegalStateException("Not logged in"));
+        }
+
+        TaskCompletionSource<File> result = new TaskCompletionSource<>();
+        downloads.put(key, result.getTask());
+        file.getParentFile().mkdirs();
+        // Downloaded next to the blob and renamed, so a broken download never looks complete
+        File partial = new File(file.getPath() + ".part");
+        long start = SystemClock.elapsedRealtime();
+        getBlobReference(user.getUid(), key).getFile(partial).addOnCompleteListener(task -> {
+            downloads.remove(key);
+            if (task.isSuccessful() && partial.renameTo(file)) {
+                Log.d(TAG, "Fetched blob " + key + " (" + file.length() + " bytes) in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+                result.setResult(file);
+            } else {
+                partial.delete();
+                Exception error = task.getException() != null ? task.getException()
+                        : new Exception("Couldn't save blob " + key);
+                Log.e(TAG, "Fetching blob " + key + " failed", error);
+                result.setException(error);
+            }
+        });
+        return result.getTask();
+    }
+
+    /**
+     * Deletes every blob of the user from Storage, including ones no note document refers to
+     * any more. For account deletion, before the user is deleted: afterwards the Storage rules
+     * no longer let this client reach them.
+     */
+    public Task<Void> deleteAllBlobs(String uid) {
+        return getImagesReference(uid).listAll().onSuccessTask(result -> {
+            List<Task<Void>> deletes = new ArrayList<>();
+            for (StorageReference blob : result.getItems()) {
+                deletes.add(blob.delete());
+            }
+            Log.d(TAG, "Deleting " + deletes.size() + " blobs of the user");
+            return Tasks.whenAll(deletes);
+        }).addOnSuccessListener(unused -> {
+            if (uid.equals(prefs.getString(UPLOADED_USER_KEY, null))) {
+                prefs.edit().remove(UPLOADED_KEY).remove(UPLOADED_USER_KEY).apply();
+            }
+        });
+    }
+
+    private StorageReference getImagesReference(String uid) {
+        return storage.getReference().child("users/" + uid + "/images");
+    }
+
+    private StorageReference getBlobReference(String uid, String key) {
+        return getImagesReference(uid).child(key);
+    }
+
+    // The key the image was last uploaded under, unless its file has changed since. A file
+    // that is gone can't have changed.
+    private String getUploadedKey(NoteImage image, String fingerprint) {
+        String stored = prefs.getString(IMAGE_KEY_PREFIX + image.getId(), null);
+        if (stored == null) return null;
+        int separator = stored.lastIndexOf(':');
+        if (fingerprint != null && !stored.substring(0, separator + 1).equals(fingerprint + ":")) {
+            return null;
+        }
+        return stored.substring(separator + 1);
+    }
+
+    private Set<String> getUploadedKeys(String uid) {
+        if (!uid.equals(prefs.getString(UPLOADED_USER_KEY, null))) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(prefs.getStringSet(UPLOADED_KEY, new HashSet<>()));
+    }
+
+    // Runs on the uploader thread
+    private static boolean exists(StorageReference blob) throws ExecutionException, InterruptedException {
+        try {
+            Tasks.await(blob.getMetadata());
+            return true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException
+                    && ((StorageException) e.getCause()).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
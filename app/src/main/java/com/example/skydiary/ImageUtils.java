@@ -13,21 +13,19 @@ import java.io.IOException;
 public class ImageUtils {
     private static final String TAG = "ImageUtils";
 
-    // Reduced dimensions to keep base64 under Firestore's 1 MiB limit
-    private static final int MAX_WIDTH = 800;
-    private static final int MAX_HEIGHT = 800;
-
-    // Start with a reasonable quality – will be lowered automatically if still too large
-    private static final int INITIAL_QUALITY = 70;
-    private static final int MAX_BASE64_BYTES = 900_000; // ~900 KB, safely below 1 MiB
+    // Images are uploaded to Storage as files of their own (see ImageBlobStore), so they no
+    // longer have to fit in a Firestore document; this only keeps uploads reasonable
+    private static final int MAX_WIDTH = 1600;
+    private static final int MAX_HEIGHT = 1600;
+    private static final int QUALITY = 85;
 
     /**
-     * Compresses and encodes an image file to a base64 string,
-     * ensuring the final string does not exceed Firestore's 1 MiB document limit.
+     * Scales an image file down to the upload bounds and compresses it to JPEG.
+     * Returns null if the file can't be decoded.
      */
-    public static String compressAndEncodeToBase64(String imagePath) {
+    public static byte[] compressToJpeg(String imagePath) {
         try {
-            // 1. Decode the image with downsampling and scaling
+            // Decode the image with downsampling and scaling
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
             BitmapFactory.decodeFile(imagePath, options);
@@ -45,35 +43,17 @@ public class ImageUtils {
                 bitmap = scaledBitmap;
             }
 
-            // 2. Compress to JPEG and adjust quality until size is under the limit
-            int quality = INITIAL_QUALITY;
-            byte[] byteArray;
-            do {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-                byteArray = baos.toByteArray();
-
-                if (byteArray.length <= MAX_BASE64_BYTES) {
-                    break; // small enough
-                }
-                quality -= 10; // reduce quality step by step
-            } while (quality > 10);
-
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, baos);
             bitmap.recycle();
-
-            // If even the lowest quality is too large, return null to let the caller handle it
-            if (byteArray.length > MAX_BASE64_BYTES) {
-                Log.e(TAG, "Image still too large after max compression – discarding");
-                return null;
-            }
-
-            return Base64.encodeToString(byteArray, Base64.DEFAULT);
+            return baos.toByteArray();
         } catch (Exception e) {
             Log.e(TAG, "Error compressing image", e);
             return null;
         }
     }
 
+    /** Decodes an image that older versions inlined in the note document as base64. */
     public static String saveBase64ToFile(String base64Data, File outputFile) throws IOException {
         byte[] decodedBytes = Base64.decode(base64Data, Base64.DEFAULT);
         try (FileOutputStream fos = new FileOutputStream(outputFile)) {
@@ -144,7 +144,7 @@ public class LogInFragment extends Fragment {
             public void onResult(boolean hasData) {
                 if (!isAdded()) return;
                 if (hasData) {
-                    syncManager.downloadAndReplace(new SyncManager.SyncCallback() {
+                    syncManager.pullChanges(user.getUid(), new SyncManager.SyncCallback() {
                         @Override
                         public void onSuccess(String message) {
                             if (!isAdded()) return;
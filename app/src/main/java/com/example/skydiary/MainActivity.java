@@ -129,6 +129,14 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // The process may be killed once we're in the background, so queued note writes go out
+        // now; they are written on the storage thread, without holding up the lifecycle callback
+        NoteStorage.getInstance(this).requestFlush();
+    }
+
     private boolean isFirstLaunch(SharedPreferences prefs) {
         return prefs.getBoolean(KEY_FIRST_LAUNCH, true);
     }
@@ -2,13 +2,13 @@ package com.example.skydiary;
 
 import androidx.annotation.NonNull;
 
-import java.text.SimpleDateFormat;
+import com.google.gson.annotations.JsonAdapter;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.Objects;
-import java.util.TimeZone;
 import java.util.UUID;
 
 public class Note {
@@ -20,13 +20,24 @@ public class Note {
     private long timestamp;
     private List<String> tags;
     private List<NoteImage> images;
-    private String createdAt;
-    private String updatedAt;
+    // Epoch millis; 0 when unset. Older JSON has ISO strings here, which the adapter reads.
+    @JsonAdapter(NoteDates.GsonAdapter.class)
+    private long createdAt;
+    @JsonAdapter(NoteDates.GsonAdapter.class)
+    private long updatedAt;
     private boolean isDeleted;
-    private String deletedAt;
+    @JsonAdapter(NoteDates.GsonAdapter.class)
+    private long deletedAt;
+    // Local change sequence NoteStorage stamps on every stored change; sync uploads the notes
+    // stamped after its last acknowledged upload. 0 for notes as they came from the cloud.
+    private long changeSeq;
+
+    // Read-only views handed out by getTags() and getImages(), made once per list
+    private transient List<String> tagsView;
+    private transient List<NoteImage> imagesView;
 
-    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("UTC");
+    // Pattern of the date strings, which NoteDates formats and parses
+    static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
 
     // Required no-arg constructor for Firestore
     public Note() {
@@ -34,10 +45,10 @@ public class Note {
         this.tags = new ArrayList<>();
         this.images = new ArrayList<>();
         this.isDeleted = false;
-        Date now = new Date();
-        this.createdAt = formatDate(now);
-        this.updatedAt = this.createdAt;
-        this.timestamp = now.getTime();
+        long now = System.currentTimeMillis();
+        this.createdAt = now;
+        this.updatedAt = now;
+        this.timestamp = now;
     }
 
     public Note(String name, String text, long timestamp) {
@@ -45,7 +56,7 @@ public class Note {
         this.name = name;
         this.text = text;
         this.timestamp = timestamp;
-        this.updatedAt = formatDate(new Date());
+        this.updatedAt = System.currentTimeMillis();
     }
 
     public Note(String name, String text, long timestamp, List<String> tags) {
@@ -54,7 +65,7 @@ public class Note {
         this.text = text;
         this.timestamp = timestamp;
         this.tags = tags != null ? new ArrayList<>(tags) : new ArrayList<>();
-        this.updatedAt = formatDate(new Date());
+        this.updatedAt = System.currentTimeMillis();
     }
 
     public Note(String name, String text, long timestamp, List<String> tags, List<NoteImage> images) {
@@ -64,7 +75,7 @@ public class Note {
         this.timestamp = timestamp;
         this.tags = tags != null ? new ArrayList<>(tags) : new ArrayList<>();
         this.images = images != null ? new ArrayList<>(images) : new ArrayList<>();
-        this.updatedAt = formatDate(new Date());
+        this.updatedAt = System.currentTimeMillis();
     }
 
     public Note(String name, String location, String text, long timestamp, List<String> tags, List<NoteImage> images) {
@@ -75,7 +86,7 @@ public class Note {
         this.timestamp = timestamp;
         this.tags = tags != null ? new ArrayList<>(tags) : new ArrayList<>();
         this.images = images != null ? new ArrayList<>(images) : new ArrayList<>();
-        this.updatedAt = formatDate(new Date());
+        this.updatedAt = System.currentTimeMillis();
     }
 
     public Note(String id, String userId, String name, String location, String text, long timestamp,
@@ -88,16 +99,60 @@ public class Note {
         this.timestamp = timestamp;
         this.tags = tags != null ? new ArrayList<>(tags) : new ArrayList<>();
         this.images = images != null ? new ArrayList<>(images) : new ArrayList<>();
-        this.createdAt = createdAt != null ? formatDate(createdAt) : formatDate(new Date());
-        this.updatedAt = updatedAt != null ? formatDate(updatedAt) : this.createdAt;
+        this.createdAt = createdAt != null ? createdAt.getTime() : System.currentTimeMillis();
+        this.updatedAt = updatedAt != null ? updatedAt.getTime() : this.createdAt;
         this.isDeleted = false;
     }
 
-    // Helper method to format dates consistently
-    private String formatDate(Date date) {
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT, Locale.getDefault());
-        sdf.setTimeZone(TIME_ZONE);
-        return sdf.format(date);
+    // Rebuilds a stored note exactly as it was saved, without stamping new dates (see NoteCodec)
+    Note(String id, String userId, String name, String location, String text, long timestamp,
+         List<String> tags, List<NoteImage> images, long createdAt, long updatedAt,
+         boolean isDeleted, long deletedAt, long changeSeq) {
+        this.id = id;
+        this.userId = userId;
+        this.name = name;
+        this.location = location;
+        this.text = text;
+        this.timestamp = timestamp;
+        this.tags = tags != null ? tags : new ArrayList<>();
+        this.images = images != null ? images : new ArrayList<>();
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+        this.isDeleted = isDeleted;
+        this.deletedAt = deletedAt;
+        this.changeSeq = changeSeq;
+    }
+
+    // Detached copy: edits made to the copy (or its images) never reach the original
+    public Note(Note other) {
+        this.id = other.id;
+        this.userId = other.userId;
+        this.name = other.name;
+        this.location = other.location;
+        this.text = other.text;
+        this.timestamp = other.timestamp;
+        this.tags = other.tags != null ? new ArrayList<>(other.tags) : new ArrayList<>();
+        this.images = new ArrayList<>();
+        if (other.images != null) {
+            for (NoteImage image : other.images) {
+                this.images.add(new NoteImage(image));
+            }
+        }
+        this.createdAt = other.createdAt;
+        this.updatedAt = other.updatedAt;
+        this.isDeleted = other.isDeleted;
+        this.deletedAt = other.deletedAt;
+        this.changeSeq = other.changeSeq;
+    }
+
+    // ISO rendering of a date field, or null while it is unset
+    private static String formatDate(long millis) {
+        return millis != 0 ? NoteDates.formatIso(millis) : null;
+    }
+
+    private static long parseDate(String date) {
+        long millis = NoteDates.parseLenient(date);
+        return millis != NoteDates.INVALID ? millis : 0;
     }
 
     // --- Getters and Setters (only one version per field) ---
@@ -154,43 +209,116 @@ public class Note {
         updateTimestamp();
     }
 
+    /**
+     * Read-only view of the tags, shared rather than copied on every call. It follows later
+     * changes to the note; copy it to keep a snapshot. Change tags through the setters or edit().
+     */
     public List<String> getTags() {
-        return tags == null ? new ArrayList<>() : new ArrayList<>(tags);
+        if (tags == null) {
+            tags = new ArrayList<>();
+            tagsView = null;
+        }
+        if (tagsView == null) {
+            tagsView = Collections.unmodifiableList(tags);
+        }
+        return tagsView;
     }
 
     public void setTags(List<String> tags) {
-        this.tags = tags != null ? new ArrayList<>(tags) : new ArrayList<>();
+        replaceTags(tags);
         updateTimestamp();
     }
 
+    /**
+     * Read-only view of the images, like getTags().
+     */
     public List<NoteImage> getImages() {
-        return images == null ? new ArrayList<>() : new ArrayList<>(images);
+        if (images == null) {
+            images = new ArrayList<>();
+            imagesView = null;
+        }
+        if (imagesView == null) {
+            imagesView = Collections.unmodifiableList(images);
+        }
+        return imagesView;
     }
 
     public void setImages(List<NoteImage> images) {
-        this.images = images != null ? new ArrayList<>(images) : new ArrayList<>();
+        replaceImages(images);
         updateTimestamp();
     }
 
+    private void replaceTags(List<String> tags) {
+        this.tags = tags != null ? new ArrayList<>(tags) : new ArrayList<>();
+        tagsView = null;
+    }
+
+    // Copies the images too, so a caller changing them later (e.g. rotating one in the editor)
+    // doesn't change the note behind its back
+    private void replaceImages(List<NoteImage> images) {
+        this.images = new ArrayList<>();
+        if (images != null) {
+            for (NoteImage image : images) {
+                this.images.add(new NoteImage(image));
+            }
+        }
+        imagesView = null;
+    }
+
+    // NoteImage.equals() only compares ids; a rotated or moved image is a change too
+    private static boolean sameImages(List<NoteImage> a, List<NoteImage> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            NoteImage x = a.get(i);
+            NoteImage y = b.get(i);
+            if (!Objects.equals(x.getId(), y.getId())
+                    || !Objects.equals(x.getImagePath(), y.getImagePath())
+                    || x.getPosition() != y.getPosition()
+                    || Float.compare(x.getRotation(), y.getRotation()) != 0
+                    || x.getOriginalWidth() != y.getOriginalWidth()
+                    || x.getOriginalHeight() != y.getOriginalHeight()
+                    || !Objects.equals(x.getBlobKey(), y.getBlobKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public String getCreatedAt() {
-        if (createdAt == null) {
-            createdAt = formatDate(new Date());
+        return formatDate(getCreatedAtMillis());
+    }
+
+    public void setCreatedAt(String createdAt) {
+        this.createdAt = parseDate(createdAt);
+    }
+
+    public long getCreatedAtMillis() {
+        if (createdAt == 0) {
+            createdAt = System.currentTimeMillis();
         }
         return createdAt;
     }
 
-    public void setCreatedAt(String createdAt) {
+    public void setCreatedAtMillis(long createdAt) {
         this.createdAt = createdAt;
     }
 
     public String getUpdatedAt() {
-        if (updatedAt == null) {
-            updatedAt = getCreatedAt();
+        return formatDate(getUpdatedAtMillis());
+    }
+
+    public void setUpdatedAt(String updatedAt) {
+        this.updatedAt = parseDate(updatedAt);
+    }
+
+    public long getUpdatedAtMillis() {
+        if (updatedAt == 0) {
+            updatedAt = getCreatedAtMillis();
         }
         return updatedAt;
     }
 
-    public void setUpdatedAt(String updatedAt) {
+    public void setUpdatedAtMillis(long updatedAt) {
         this.updatedAt = updatedAt;
     }
 
@@ -201,19 +329,37 @@ public class Note {
     public void setDeleted(boolean deleted) {
         this.isDeleted = deleted;
         if (deleted) {
-            this.deletedAt = formatDate(new Date());
+            this.deletedAt = System.currentTimeMillis();
         }
         updateTimestamp();
     }
 
     public String getDeletedAt() {
-        return deletedAt;
+        return formatDate(deletedAt);
     }
 
     public void setDeletedAt(String deletedAt) {
+        this.deletedAt = parseDate(deletedAt);
+    }
+
+    /** 0 if the note was never deleted. */
+    public long getDeletedAtMillis() {
+        return deletedAt;
+    }
+
+    public void setDeletedAtMillis(long deletedAt) {
         this.deletedAt = deletedAt;
     }
 
+    public long getChangeSeq() {
+        return changeSeq;
+    }
+
+    // Set by NoteStorage only
+    void setChangeSeq(long changeSeq) {
+        this.changeSeq = changeSeq;
+    }
+
     // Convenience method to get the note date as Date object
     public Date getNoteDate() {
         return new Date(timestamp);
@@ -226,44 +372,147 @@ public class Note {
 
     // Internal method to update the updatedAt timestamp
     private void updateTimestamp() {
-        this.updatedAt = formatDate(new Date());
+        this.updatedAt = System.currentTimeMillis();
     }
 
     // Utility methods for tags and images
     public void addTag(String tag) {
-        if (tags == null) {
-            tags = new ArrayList<>();
-        }
-        if (tag != null && !tag.trim().isEmpty() && !tags.contains(tag.trim())) {
-            tags.add(tag.trim());
+        if (insertTag(tag)) {
             updateTimestamp();
         }
     }
 
     public void removeTag(String tag) {
-        if (tags != null && tag != null) {
-            tags.remove(tag.trim());
+        if (tags != null && tag != null && tags.remove(tag.trim())) {
             updateTimestamp();
         }
     }
 
     public void addImage(NoteImage image) {
-        if (images == null) {
-            images = new ArrayList<>();
-        }
-        if (image != null && !images.contains(image)) {
-            images.add(image);
+        if (insertImage(image)) {
             updateTimestamp();
         }
     }
 
     public void removeImage(NoteImage image) {
-        if (images != null && image != null) {
-            images.remove(image);
+        if (images != null && image != null && images.remove(image)) {
             updateTimestamp();
         }
     }
 
+    private boolean insertTag(String tag) {
+        if (tag == null || tag.trim().isEmpty()) return false;
+        List<String> current = getTags();
+        if (current.contains(tag.trim())) return false;
+        tags.add(tag.trim());
+        return true;
+    }
+
+    private boolean insertImage(NoteImage image) {
+        if (image == null || getImages().contains(image)) return false;
+        images.add(image);
+        return true;
+    }
+
+    /**
+     * Changes several fields in one go. Unlike the setters, which stamp updatedAt on every
+     * call, an editor stamps it once, in apply(), and only if something changed:
+     * note.edit().setName(name).setText(text).addTag(tag).apply().
+     */
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public final class Editor {
+        private boolean changed;
+
+        private Editor() {
+        }
+
+        public Editor setName(String name) {
+            changed |= !Objects.equals(Note.this.name, name);
+            Note.this.name = name;
+            return this;
+        }
+
+        public Editor setLocation(String location) {
+            changed |= !Objects.equals(Note.this.location, location);
+            Note.this.location = location;
+            return this;
+        }
+
+        public Editor setText(String text) {
+            changed |= !Objects.equals(Note.this.text, text);
+            Note.this.text = text;
+            return this;
+        }
+
+        public Editor setTimestamp(long timestamp) {
+            changed |= Note.this.timestamp != timestamp;
+            Note.this.timestamp = timestamp;
+            return this;
+        }
+
+        public Editor setTags(List<String> tags) {
+            if (!getTags().equals(tags != null ? tags : Collections.emptyList())) {
+                replaceTags(tags);
+                changed = true;
+            }
+            return this;
+        }
+
+        public Editor addTag(String tag) {
+            changed |= insertTag(tag);
+            return this;
+        }
+
+        public Editor removeTag(String tag) {
+            changed |= tags != null && tag != null && tags.remove(tag.trim());
+            return this;
+        }
+
+        public Editor setImages(List<NoteImage> images) {
+            if (!sameImages(getImages(), images != null ? images : Collections.<NoteImage>emptyList())) {
+                replaceImages(images);
+                changed = true;
+            }
+            return this;
+        }
+
+        public Editor addImage(NoteImage image) {
+            changed |= insertImage(image);
+            return this;
+        }
+
+        public Editor removeImage(NoteImage image) {
+            changed |= images != null && image != null && images.remove(image);
+            return this;
+        }
+
+        public Editor setDeleted(boolean deleted) {
+            if (isDeleted != deleted) {
+                isDeleted = deleted;
+                deletedAt = deleted ? System.currentTimeMillis() : deletedAt;
+                changed = true;
+            }
+            return this;
+        }
+
+        /** True if a setter so far actually changed something. */
+        public boolean hasChanges() {
+            return changed;
+        }
+
+        /** Stamps updatedAt if anything changed, and returns the note. */
+        public Note apply() {
+            if (changed) {
+                updateTimestamp();
+                changed = false;
+            }
+            return Note.this;
+        }
+    }
+
     public boolean hasTag(String tag) {
         return tags != null && tag != null && tags.contains(tag.trim());
     }
@@ -284,10 +533,10 @@ public class Note {
                 ", timestamp=" + timestamp +
                 ", tags=" + tags +
                 ", images=" + images +
-                ", createdAt='" + createdAt + '\'' +
-                ", updatedAt='" + updatedAt + '\'' +
+                ", createdAt='" + formatDate(createdAt) + '\'' +
+                ", updatedAt='" + formatDate(updatedAt) + '\'' +
                 ", isDeleted=" + isDeleted +
-                ", deletedAt='" + deletedAt + '\'' +
+                ", deletedAt='" + formatDate(deletedAt) + '\'' +
                 '}';
     }
 
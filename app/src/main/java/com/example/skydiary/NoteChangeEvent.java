@@ -0,0 +1,65 @@
+package com.example.skydiary;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * What changed in NoteStorage since the previous event. Changes made in quick succession are
+ * merged into one event, so the same id can show up in more than one set; a listener should
+ * re-read every id it gets rather than rely on which set it came in.
+ */
+public class NoteChangeEvent {
+    private final long version;
+    private final Set<String> insertedIds;
+    private final Set<String> updatedIds;
+    private final Set<String> deletedIds;
+    private final boolean tagsChanged;
+    private final boolean reset;
+
+    NoteChangeEvent(long version, Set<String> insertedIds, Set<String> updatedIds, Set<String> deletedIds,
+                    boolean tagsChanged, boolean reset) {
+        this.version = version;
+        this.insertedIds = Collections.unmodifiableSet(insertedIds);
+        this.updatedIds = Collections.unmodifiableSet(updatedIds);
+        this.deletedIds = Collections.unmodifiableSet(deletedIds);
+        this.tagsChanged = tagsChanged;
+        this.reset = reset;
+    }
+
+    /** NoteStorage.getVersion() right after the last change in this event. */
+    public long getVersion() {
+        return version;
+    }
+
+    public Set<String> getInsertedIds() {
+        return insertedIds;
+    }
+
+    public Set<String> getUpdatedIds() {
+        return updatedIds;
+    }
+
+    /** Notes that were deleted (or marked deleted) and should disappear from the lists. */
+    public Set<String> getDeletedIds() {
+        return deletedIds;
+    }
+
+    /** Inserted, updated and deleted ids together. */
+    public Set<String> getChangedIds() {
+        Set<String> ids = new LinkedHashSet<>(insertedIds);
+        ids.addAll(updatedIds);
+        ids.addAll(deletedIds);
+        return ids;
+    }
+
+    /** True if the set of tags in use, or the saved tags, may have changed. */
+    public boolean isTagsChanged() {
+        return tagsChanged;
+    }
+
+    /** True if all notes were replaced (sync download, logout); the id sets are empty then. */
+    public boolean isReset() {
+        return reset;
+    }
+}
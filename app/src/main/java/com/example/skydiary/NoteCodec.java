@@ -0,0 +1,629 @@
+package com.example.skydiary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary encoding of notes, used by NoteJournal for its snapshot and log records.
+ *
+ * A block holds a format version, a header with the dictionary of the tags used in the block
+ * and the note count, then the notes. The header and each note record are prefixed with their
+ * length in bytes and followed by their CRC32, which is checked before anything in them is
+ * parsed. Tags are stored as dictionary positions, dates as epoch millis and long texts
+ * deflated. Fields are only ever appended to the end of a note or image record, so a reader
+ * skips whatever a newer writer added by using the length.
+ *
+ * Damaged data fails the decode with an IOException, never another exception: a checksum
+ * mismatch, a block of another format version, and any count, length or tag position that
+ * doesn't fit the data are all reported the same way.
+ *
+ * Blocks can be read straight from a memory-mapped file: decodeSummaries() reports where each
+ * note record is, and decodeNote() decodes just that record later on. encode() can report the
+ * same as it writes, so a writer can index its records without reading them back.
+ */
+final class NoteCodec {
+    static final int FORMAT_VERSION = 1;
+
+    // Texts shorter than this (in UTF-8 bytes) aren't worth deflating
+    private static final int DEFLATE_MIN_BYTES = 512;
+    // Deflate can't expand data by more than this, which bounds a deflated text's stated length
+    private static final int MAX_INFLATE_RATIO = 1032;
+
+    private static final int TEXT_NULL = 0;
+    private static final int TEXT_PLAIN = 1;
+    private static final int TEXT_DEFLATED = 2;
+
+    private static final int DATE_NULL = 0;
+    private static final int DATE_MILLIS = 1;
+
+    /** Receives each note record of a block as decodeSummaries() walks through it. */
+    interface SummaryVisitor {
+        void visit(NoteSummary summary, int offset, int length);
+    }
+
+    /** Receives each note record encode() writes, with where it is in the returned block. */
+    interface RecordVisitor {
+        void visit(Note note, int offset, int length);
+    }
+
+    // The checked header of a block
+    private static final class Header {
+        final String[] dictionary;
+        final int noteCount;
+
+        Header(String[] dictionary, int noteCount) {
+            this.dictionary = dictionary;
+            this.noteCount = noteCount;
+        }
+    }
+
+    private NoteCodec() {
+    }
+
+    static byte[] encode(Collection<Note> notes) {
+        return encode(notes, null);
+    }
+
+    static byte[] encode(Collection<Note> notes, RecordVisitor visitor) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (Note note : notes) {
+            for (String tag : note.getTags()) {
+                if (!dictionary.containsKey(tag)) {
+                    dictionary.put(tag, dictionary.size());
+                }
+            }
+        }
+
+        Output header = new Output(16 * (dictionary.size() + 1));
+        header.writeVarInt(dictionary.size());
+        for (String tag : dictionary.keySet()) {
+            header.writeString(tag);
+        }
+        header.writeVarInt(notes.size());
+
+        Output out = new Output(header.size + 256 * Math.max(1, notes.size()));
+        out.writeVarInt(FORMAT_VERSION);
+        out.writeVarInt(header.size);
+        out.write(header.buf, 0, header.size);
+        out.writeInt(crc32(header.buf, 0, header.size));
+
+        Output record = new Output(256);
+        Deflater deflater = new Deflater();
+        try {
+            for (Note note : notes) {
+                record.reset();
+                writeNote(record, note, dictionary, deflater);
+                out.writeVarInt(record.size);
+                if (visitor != null) {
+                    visitor.visit(note, out.size, record.size);
+                }
+                out.write(record.buf, 0, record.size);
+                out.writeInt(crc32(record.buf, 0, record.size));
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    static List<Note> decode(byte[] data, int offset, int length) throws IOException {
+        return decode(ByteBuffer.wrap(data), offset, length);
+    }
+
+    static List<Note> decode(ByteBuffer data, int offset, int length) throws IOException {
+        Input in = new Input(data, offset, offset + length);
+        Header header = readHeader(in);
+        List<Note> notes = new ArrayList<>(header.noteCount);
+        for (int i = 0; i < header.noteCount; i++) {
+            notes.add(readNote(in.checkedRecord(), header.dictionary));
+        }
+        return notes;
+    }
+
+    /** Like decode(), but skips texts and image records instead of decoding them. */
+    static List<NoteSummary> decodeSummaries(byte[] data, int offset, int length) throws IOException {
+        List<NoteSummary> summaries = new ArrayList<>();
+        decodeSummaries(ByteBuffer.wrap(data), offset, length,
+                (summary, recordOffset, recordLength) -> summaries.add(summary));
+        return summaries;
+    }
+
+    /**
+     * Walks the note records of a block, passing each summary to the visitor along with where
+     * the record is in data. Returns the block's tag dictionary, which decodeNote() needs.
+     */
+    static String[] decodeSummaries(ByteBuffer data, int offset, int length, SummaryVisitor visitor)
+            throws IOException {
+        Input in = new Input(data, offset, offset + length);
+        Header header = readHeader(in);
+        for (int i = 0; i < header.noteCount; i++) {
+            Input record = in.checkedRecord();
+            int start = record.pos;
+            visitor.visit(readSummary(record, header.dictionary), start, record.limit - start);
+        }
+        return header.dictionary;
+    }
+
+    /**
+     * Decodes one note record reported by decodeSummaries(), using the dictionary of its block.
+     * Its checksum was verified when decodeSummaries() walked the block.
+     */
+    static Note decodeNote(ByteBuffer data, int offset, int length, String[] dictionary) throws IOException {
+        return readNote(new Input(data, offset, offset + length), dictionary);
+    }
+
+    /** Reads only the tag dictionary of a block, for decodeCheckedNote(). */
+    static String[] decodeDictionary(ByteBuffer data, int offset, int length) throws IOException {
+        return readHeader(new Input(data, offset, offset + length)).dictionary;
+    }
+
+    /**
+     * Like decodeNote(), for a record whose block wasn't walked: verifies the CRC32 that
+     * follows the record first.
+     */
+    static Note decodeCheckedNote(ByteBuffer data, int offset, int length, String[] dictionary)
+            throws IOException {
+        if (offset < 0 || length < 0 || (long) offset + length > data.limit()) {
+            throw new IOException("Note record out of bounds");
+        }
+        Input in = new Input(data, offset + length, data.limit());
+        in.verifyChecksum(offset);
+        return readNote(new Input(data, offset, offset + length), dictionary);
+    }
+
+    static int crc32(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    // Leaves in at the first note record
+    private static Header readHeader(Input in) throws IOException {
+        int version = in.readVarInt();
+        if (version != FORMAT_VERSION) throw new IOException("Unsupported note format version " + version);
+        Input header = in.checkedRecord();
+        String[] dictionary = new String[header.readCount()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = header.readString();
+        }
+        int noteCount = header.readVarInt();
+        // Every note record takes at least a byte plus its checksum
+        if (noteCount < 0 || noteCount > (in.limit - in.pos) / 5) throw new IOException("Note count out of bounds");
+        return new Header(dictionary, noteCount);
+    }
+
+    // New fields go after changeSeq
+    private static void writeNote(Output out, Note note, Map<String, Integer> dictionary, Deflater deflater) {
+        out.writeString(note.getId());
+        out.writeString(note.getUserId());
+        out.writeString(note.getName());
+        out.writeString(note.getLocation());
+        writeText(out, note.getText(), deflater);
+        out.writeVarLong(note.getTimestamp());
+
+        List<String> tags = note.getTags();
+        out.writeVarInt(tags.size());
+        for (String tag : tags) {
+            out.writeVarInt(dictionary.get(tag));
+        }
+
+        List<NoteImage> images = note.getImages();
+        out.writeVarInt(images.size());
+        Output image = new Output(64);
+        for (NoteImage noteImage : images) {
+            image.reset();
+            writeImage(image, noteImage);
+            out.writeVarInt(image.size);
+            out.write(image.buf, 0, image.size);
+        }
+
+        writeDate(out, note.getCreatedAtMillis());
+        writeDate(out, note.getUpdatedAtMillis());
+        writeDate(out, note.getDeletedAtMillis());
+        out.writeByte(note.isDeleted() ? 1 : 0);
+        out.writeVarLong(note.getChangeSeq());
+    }
+
+    private static void writeImage(Output out, NoteImage image) {
+        out.writeString(image.getId());
+        out.writeString(image.getImagePath());
+        out.writeVarLong(image.getPosition());
+        out.writeInt(Float.floatToIntBits(image.getRotation()));
+        out.writeVarLong(image.getOriginalWidth());
+        out.writeVarLong(image.getOriginalHeight());
+        out.writeString(image.getBlobKey());
+    }
+
+    private static void writeText(Output out, String text, Deflater deflater) {
+        if (text == null) {
+            out.writeByte(TEXT_NULL);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= DEFLATE_MIN_BYTES) {
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] compressed = new byte[bytes.length];
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < compressed.length) {
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            if (deflater.finished() && compressedLength < bytes.length) {
+                out.writeByte(TEXT_DEFLATED);
+                out.writeVarInt(bytes.length);
+                out.writeVarInt(compressedLength);
+                out.write(compressed, 0, compressedLength);
+                return;
+            }
+        }
+        out.writeByte(TEXT_PLAIN);
+        out.writeVarInt(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeDate(Output out, long millis) {
+        if (millis == 0) {
+            out.writeByte(DATE_NULL);
+        } else {
+            out.writeByte(DATE_MILLIS);
+            out.writeVarLong(millis);
+        }
+    }
+
+    private static Note readNote(Input in, String[] dictionary) throws IOException {
+        String id = in.readString();
+        String userId = in.readString();
+        String name = in.readString();
+        String location = in.readString();
+        String text = readText(in);
+        long timestamp = in.readVarLong();
+
+        int tagCount = in.readCount();
+        List<String> tags = new ArrayList<>(tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            tags.add(readTag(in, dictionary));
+        }
+
+        int imageCount = in.readCount();
+        List<NoteImage> images = new ArrayList<>(imageCount);
+        for (int i = 0; i < imageCount; i++) {
+            Input record = in.record();
+            NoteImage image = new NoteImage(record.readString(), record.readString(), (int) record.readVarLong(),
+                    Float.intBitsToFloat(record.readInt()), (int) record.readVarLong(), (int) record.readVarLong());
+            image.setBlobKey(record.readString());
+            images.add(image);
+        }
+
+        long createdAt = readDate(in);
+        long updatedAt = readDate(in);
+        long deletedAt = readDate(in);
+        boolean deleted = in.readByte() != 0;
+        long changeSeq = in.readVarLong();
+        return new Note(id, userId, name, location, text, timestamp, tags, images,
+                createdAt, updatedAt, deleted, deletedAt, changeSeq);
+    }
+
+    private static NoteSummary readSummary(Input in, String[] dictionary) throws IOException {
+        String id = in.readString();
+        in.skipString();
+        String name = in.readString();
+        in.skipString();
+        skipText(in);
+        long timestamp = in.readVarLong();
+
+        int tagCount = in.readCount();
+        List<String> tags = new ArrayList<>(tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            tags.add(readTag(in, dictionary));
+        }
+
+        int imageCount = in.readCount();
+        for (int i = 0; i < imageCount; i++) {
+            in.record();
+        }
+
+        skipDate(in);
+        long updatedAt = readDate(in);
+        skipDate(in);
+        boolean deleted = in.readByte() != 0;
+        long changeSeq = in.readVarLong();
+        return new NoteSummary(id, name, timestamp, tags, imageCount, deleted, updatedAt, changeSeq);
+    }
+
+    private static String readTag(Input in, String[] dictionary) throws IOException {
+        int index = in.readVarInt();
+        if (index < 0 || index >= dictionary.length) throw new IOException("Tag out of bounds");
+        return dictionary[index];
+    }
+
+    private static String readText(Input in) throws IOException {
+        int kind = in.readByte();
+        if (kind == TEXT_NULL) return null;
+        if (kind == TEXT_PLAIN) return in.readString(in.readVarInt());
+        if (kind != TEXT_DEFLATED) throw new IOException("Unknown text encoding " + kind);
+
+        int length = in.readVarInt();
+        int compressedLength = in.readVarInt();
+        int start = in.take(compressedLength);
+        if (length < 0 || length > (long) compressedLength * MAX_INFLATE_RATIO) {
+            throw new IOException("Note text length out of bounds");
+        }
+        byte[] bytes = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            if (in.buf.hasArray()) {
+                inflater.setInput(in.buf.array(), in.buf.arrayOffset() + start, compressedLength);
+            } else {
+                inflater.setInput(in.copy(start, compressedLength));
+            }
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(bytes, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                read += n;
+            }
+            if (read != length) throw new IOException("Truncated note text");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt note text", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipText(Input in) throws IOException {
+        int kind = in.readByte();
+        if (kind == TEXT_PLAIN) {
+            in.take(in.readVarInt());
+        } else if (kind == TEXT_DEFLATED) {
+            in.readVarInt();
+            in.take(in.readVarInt());
+        } else if (kind != TEXT_NULL) {
+            throw new IOException("Unknown text encoding " + kind);
+        }
+    }
+
+    // 0 for a missing date
+    private static long readDate(Input in) throws IOException {
+        int kind = in.readByte();
+        if (kind == DATE_MILLIS) return in.readVarLong();
+        if (kind != DATE_NULL) throw new IOException("Unknown date encoding " + kind);
+        return 0;
+    }
+
+    private static void skipDate(Input in) throws IOException {
+        readDate(in);
+    }
+
+    /** Growable byte buffer with the primitive writers used above. */
+    static final class Output {
+        byte[] buf;
+        int size;
+
+        Output(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, size, length);
+            size += length;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            buf[size++] = (byte) value;
+            buf[size++] = (byte) (value >>> 8);
+            buf[size++] = (byte) (value >>> 16);
+            buf[size++] = (byte) (value >>> 24);
+        }
+
+        /** Unsigned LEB128; for lengths, counts and indexes. */
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        /** Zigzag LEB128, so small negative numbers stay short too. */
+        void writeVarLong(long value) {
+            ensure(10);
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        /** Length + 1 (0 for null) followed by the UTF-8 bytes. */
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+    }
+
+    /**
+     * Bounds-checked reader over a byte range; running past the end is an IOException.
+     * Reads use absolute positions, so one buffer (e.g. a mapped file) can be shared.
+     */
+    static final class Input {
+        final ByteBuffer buf;
+        int pos;
+        final int limit;
+
+        Input(byte[] buf, int offset, int limit) {
+            this(ByteBuffer.wrap(buf), offset, limit);
+        }
+
+        Input(ByteBuffer buf, int offset, int limit) {
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = limit;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= limit) throw new IOException("Unexpected end of note data");
+            return buf.get(pos++) & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+        }
+
+        int readVarInt() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return (v >>> 1) ^ -(v & 1);
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            return length == 0 ? null : readString(length - 1);
+        }
+
+        String readString(int length) throws IOException {
+            int start = take(length);
+            if (buf.hasArray()) {
+                return new String(buf.array(), buf.arrayOffset() + start, length, StandardCharsets.UTF_8);
+            }
+            return new String(copy(start, length), StandardCharsets.UTF_8);
+        }
+
+        /** Reads a CRC32 and checks it against the bytes from start up to here. */
+        void verifyChecksum(int start) throws IOException {
+            int end = pos;
+            int expected = readInt();
+            CRC32 crc = new CRC32();
+            if (buf.hasArray()) {
+                crc.update(buf.array(), buf.arrayOffset() + start, end - start);
+            } else {
+                // CRC32.update(ByteBuffer) needs API 26; go through a small array instead
+                byte[] chunk = new byte[Math.min(8192, Math.max(1, end - start))];
+                ByteBuffer view = buf.duplicate();
+                view.position(start);
+                for (int remaining = end - start; remaining > 0; ) {
+                    int n = Math.min(chunk.length, remaining);
+                    view.get(chunk, 0, n);
+                    crc.update(chunk, 0, n);
+                    remaining -= n;
+                }
+            }
+            if ((int) crc.getValue() != expected) throw new IOException("Checksum mismatch");
+        }
+
+        /** Copies bytes out of the buffer, for a buffer that isn't backed by an array. */
+        byte[] copy(int start, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buf.duplicate();
+            view.position(start);
+            view.get(bytes);
+            return bytes;
+        }
+
+        void skipString() throws IOException {
+            int length = readVarInt();
+            if (length > 0) {
+                take(length - 1);
+            }
+        }
+
+        /** Reads a length prefix and returns where that record ends. */
+        int recordEnd() throws IOException {
+            int length = readVarInt();
+            int end = pos + length;
+            if (length < 0 || end > limit || end < pos) throw new IOException("Note record out of bounds");
+            return end;
+        }
+
+        /** Reads a length-prefixed record and returns a reader over just its bytes. */
+        Input record() throws IOException {
+            int end = recordEnd();
+            Input record = new Input(buf, pos, end);
+            pos = end;
+            return record;
+        }
+
+        /** Like record(), but first checks the record against the CRC32 that follows it. */
+        Input checkedRecord() throws IOException {
+            int end = recordEnd();
+            int start = pos;
+            pos = end;
+            verifyChecksum(start);
+            return new Input(buf, start, end);
+        }
+
+        /**
+         * Reads the number of items that follow, each of which takes at least a byte, so a
+         * damaged count fails here instead of sizing an allocation.
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0 || count > limit - pos) throw new IOException("Count out of bounds");
+            return count;
+        }
+
+        /** Advances past length bytes and returns where they start. */
+        int take(int length) throws IOException {
+            if (length < 0 || pos + length > limit || pos + length < pos) {
+                throw new IOException("Unexpected end of note data");
+            }
+            int start = pos;
+            pos += length;
+            return start;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.skydiary;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SQLite note engine with normalized note, tag and image tables, selected with
+ * NoteStorage.setEngine(). The other engine is the append-only NoteJournal.
+ *
+ * Notes are keyed by id, and the timestamp, deleted flag and tag columns are indexed, so
+ * loadNote() and the date and tag queries below are index seeks rather than scans. Rows keep
+ * their rowid when a note is rewritten, which is the order load() and loadSummaries() use.
+ */
+public class NoteDatabase extends SQLiteOpenHelper implements NoteStore {
+    private static final String TAG = "NoteDatabase";
+    private static final String DATABASE_NAME = "notes.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_NOTES = "notes";
+    private static final String TABLE_TAGS = "note_tags";
+    private static final String TABLE_IMAGES = "note_images";
+
+    private static final String NOTE_COLUMNS = "id, user_id, name, location, text, timestamp, "
+            + "created_at, updated_at, is_deleted, deleted_at, change_seq";
+
+    private final File databaseFile;
+
+    public NoteDatabase(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    // A null name keeps the database in memory; for tests
+    NoteDatabase(Context context, String name) {
+        super(context.getApplicationContext(), name, null, DATABASE_VERSION);
+        this.databaseFile = name != null ? context.getDatabasePath(name) : null;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NOTES + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "user_id TEXT, "
+                + "name TEXT, "
+                + "location TEXT, "
+                + "text TEXT, "
+                + "timestamp INTEGER NOT NULL, "
+                + "created_at INTEGER NOT NULL, "
+                + "updated_at INTEGER NOT NULL, "
+                + "is_deleted INTEGER NOT NULL DEFAULT 0, "
+                + "deleted_at INTEGER NOT NULL DEFAULT 0, "
+                + "change_seq INTEGER NOT NULL DEFAULT 0)");
+        // slot is the place in the note's list; a note may carry the same tag twice
+        db.execSQL("CREATE TABLE " + TABLE_TAGS + " ("
+                + "note_id TEXT NOT NULL, "
+                + "slot INTEGER NOT NULL, "
+                + "tag TEXT NOT NULL, "
+                + "PRIMARY KEY (note_id, slot))");
+        db.execSQL("CREATE TABLE " + TABLE_IMAGES + " ("
+                + "note_id TEXT NOT NULL, "
+                + "slot INTEGER NOT NULL, "
+                + "id TEXT, "
+                + "image_path TEXT, "
+                + "position INTEGER NOT NULL, "
+                + "rotation REAL NOT NULL, "
+                + "original_width INTEGER NOT NULL, "
+                + "original_height INTEGER NOT NULL, "
+                + "blob_key TEXT, "
+                + "PRIMARY KEY (note_id, slot))");
+        db.execSQL("CREATE INDEX idx_notes_timestamp ON " + TABLE_NOTES + " (timestamp)");
+        db.execSQL("CREATE INDEX idx_notes_deleted ON " + TABLE_NOTES + " (is_deleted, timestamp)");
+        db.execSQL("CREATE INDEX idx_note_tags_tag ON " + TABLE_TAGS + " (tag)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only one schema version so far
+    }
+
+    @Override
+    public synchronized boolean exists() {
+        // Checked before opening, so asking doesn't create an empty database
+        if (databaseFile != null && !databaseFile.exists()) return false;
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_NOTES) > 0;
+    }
+
+    @Override
+    public synchronized List<Note> load() {
+        SQLiteDatabase db = getReadableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT " + NOTE_COLUMNS + " FROM " + TABLE_NOTES
+                + " ORDER BY rowid", null)) {
+            return readNotes(db, cursor, null, null);
+        }
+    }
+
+    @Override
+    public synchronized List<NoteSummary> loadSummaries() {
+        SQLiteDatabase db = getReadableDatabase();
+        Map<String, List<String>> tagsByNote = readTags(db, null, null);
+        List<NoteSummary> summaries = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT n.id, n.name, n.timestamp, n.is_deleted, n.updated_at, n.change_seq, "
+                + "(SELECT COUNT(*) FROM " + TABLE_IMAGES + " i WHERE i.note_id = n.id) FROM " + TABLE_NOTES
+                + " n ORDER BY n.rowid", null)) {
+            while (cursor.moveToNext()) {
+                String id = cursor.getString(0);
+                List<String> tags = tagsByNote.get(id);
+                summaries.add(new NoteSummary(id, cursor.getString(1), cursor.getLong(2),
+                        tags != null ? tags : new ArrayList<>(), cursor.getInt(6), cursor.getInt(3) != 0,
+                        cursor.getLong(4), cursor.getLong(5)));
+            }
+        }
+        return summaries;
+    }
+
+    @Override
+    public synchronized Note loadNote(String noteId) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] args = {noteId};
+        try (Cursor cursor = db.rawQuery("SELECT " + NOTE_COLUMNS + " FROM " + TABLE_NOTES + " WHERE id = ?", args)) {
+            List<Note> notes = readNotes(db, cursor, "n.id = ?", args);
+            return notes.isEmpty() ? null : notes.get(0);
+        }
+    }
+
+    /** Ids of the notes that aren't deleted dated within [startMs, endMs), oldest first, ties by id. */
+    public synchronized List<String> queryNoteIdsByDate(long startMs, long endMs) {
+        List<String> ids = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT id FROM " + TABLE_NOTES
+                        + " WHERE is_deleted = 0 AND timestamp >= ? AND timestamp < ? ORDER BY timestamp, id",
+                new String[]{String.valueOf(startMs), String.valueOf(endMs)})) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+        }
+        return ids;
+    }
+
+    /** Ids of the notes that aren't deleted and carry the tag. */
+    public synchronized List<String> queryNoteIdsByTag(String tag) {
+        List<String> ids = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT DISTINCT t.note_id FROM " + TABLE_TAGS
+                        + " t JOIN " + TABLE_NOTES + " n ON n.id = t.note_id WHERE t.tag = ? AND n.is_deleted = 0",
+                new String[]{tag})) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public boolean put(Note note) {
+        return putAll(Collections.singletonList(note));
+    }
+
+    @Override
+    public synchronized boolean putAll(Collection<Note> notes) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Note note : notes) {
+                writeNote(db, note);
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing notes: " + e.getMessage());
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String noteId) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            deleteChildren(db, noteId);
+            db.delete(TABLE_NOTES, "id = ?", new String[]{noteId});
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error deleting note: " + e.getMessage());
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized boolean replaceAll(Collection<Note> notes) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            clearTables(db);
+            for (Note note : notes) {
+                writeNote(db, note);
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error replacing notes: " + e.getMessage());
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            clearTables(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void clearTables(SQLiteDatabase db) {
+        db.delete(TABLE_TAGS, null, null);
+        db.delete(TABLE_IMAGES, null, null);
+        db.delete(TABLE_NOTES, null, null);
+    }
+
+    private void writeNote(SQLiteDatabase db, Note note) {
+        ContentValues values = new ContentValues();
+        values.put("user_id", note.getUserId());
+        values.put("name", note.getName());
+        values.put("location", note.getLocation());
+        values.put("text", note.getText());
+        values.put("timestamp", note.getTimestamp());
+        values.put("created_at", note.getCreatedAtMillis());
+        values.put("updated_at", note.getUpdatedAtMillis());
+        values.put("is_deleted", note.isDeleted() ? 1 : 0);
+        values.put("deleted_at", note.getDeletedAtMillis());
+        values.put("change_seq", note.getChangeSeq());
+
+        // Update in place first so the row keeps its rowid and therefore its load order
+        int updated = db.update(TABLE_NOTES, values, "id = ?", new String[]{note.getId()});
+        if (updated == 0) {
+            values.put("id", note.getId());
+            db.insertOrThrow(TABLE_NOTES, null, values);
+        } else {
+            deleteChildren(db, note.getId());
+        }
+
+        List<String> tags = note.getTags();
+        for (int i = 0; i < tags.size(); i++) {
+            ContentValues tagValues = new ContentValues();
+            tagValues.put("note_id", note.getId());
+            tagValues.put("slot", i);
+            tagValues.put("tag", tags.get(i));
+            db.insertOrThrow(TABLE_TAGS, null, tagValues);
+        }
+
+        List<NoteImage> images = note.getImages();
+        for (int i = 0; i < images.size(); i++) {
+            NoteImage image = images.get(i);
+            ContentValues imageValues = new ContentValues();
+            imageValues.put("note_id", note.getId());
+            imageValues.put("slot", i);
+            imageValues.put("id", image.getId());
+            imageValues.put("image_path", image.getImagePath());
+            imageValues.put("position", image.getPosition());
+            imageValues.put("rotation", image.getRotation());
+            imageValues.put("original_width", image.getOriginalWidth());
+            imageValues.put("original_height", image.getOriginalHeight());
+            imageValues.put("blob_key", image.getBlobKey());
+            db.insertOrThrow(TABLE_IMAGES, null, imageValues);
+        }
+    }
+
+    private void deleteChildren(SQLiteDatabase db, String noteId) {
+        db.delete(TABLE_TAGS, "note_id = ?", new String[]{noteId});
+        db.delete(TABLE_IMAGES, "note_id = ?", new String[]{noteId});
+    }
+
+    // Tags by note id in list order, for the notes matching noteFilter (a condition on alias
+    // n, with its arguments) or for all notes when it is null
+    private static Map<String, List<String>> readTags(SQLiteDatabase db, String noteFilter, String[] args) {
+        String join = noteFilter != null
+                ? " JOIN " + TABLE_NOTES + " n ON n.id = c.note_id WHERE " + noteFilter
+                : "";
+        Map<String, List<String>> tagsByNote = new HashMap<>();
+        try (Cursor tags = db.rawQuery("SELECT c.note_id, c.tag FROM " + TABLE_TAGS + " c" + join
+                + " ORDER BY c.note_id, c.slot", args)) {
+            while (tags.moveToNext()) {
+                List<String> list = tagsByNote.get(tags.getString(0));
+                if (list == null) {
+                    list = new ArrayList<>();
+                    tagsByNote.put(tags.getString(0), list);
+                }
+                list.add(tags.getString(1));
+            }
+        }
+        return tagsByNote;
+    }
+
+    /**
+     * Builds notes from a cursor over NOTE_COLUMNS. Tags and images are fetched with one query
+     * each, limited by noteFilter like readTags().
+     */
+    private static List<Note> readNotes(SQLiteDatabase db, Cursor cursor, String noteFilter, String[] args) {
+        List<Note> notes = new ArrayList<>();
+        if (cursor.getCount() == 0) return notes;
+
+        Map<String, List<String>> tagsByNote = readTags(db, noteFilter, args);
+        String join = noteFilter != null
+                ? " JOIN " + TABLE_NOTES + " n ON n.id = c.note_id WHERE " + noteFilter
+                : "";
+        Map<String, List<NoteImage>> imagesByNote = new HashMap<>();
+        try (Cursor images = db.rawQuery("SELECT c.note_id, c.id, c.image_path, c.position, c.rotation, "
+                + "c.original_width, c.original_height, c.blob_key FROM " + TABLE_IMAGES + " c" + join
+                + " ORDER BY c.note_id, c.slot", args)) {
+            while (images.moveToNext()) {
+                List<NoteImage> list = imagesByNote.get(images.getString(0));
+                if (list == null) {
+                    list = new ArrayList<>();
+                    imagesByNote.put(images.getString(0), list);
+                }
+                NoteImage image = new NoteImage(images.getString(1), images.getString(2), images.getInt(3),
+                        images.getFloat(4), images.getInt(5), images.getInt(6));
+                image.setBlobKey(images.getString(7));
+                list.add(image);
+            }
+        }
+
+        while (cursor.moveToNext()) {
+            String id = cursor.getString(0);
+            List<String> tags = tagsByNote.get(id);
+            List<NoteImage> images = imagesByNote.get(id);
+            notes.add(new Note(id, cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                    cursor.getString(4), cursor.getLong(5), tags != null ? tags : new ArrayList<>(),
+                    images != null ? images : new ArrayList<>(), cursor.getLong(6), cursor.getLong(7),
+                    cursor.getInt(8) != 0, cursor.getLong(9), cursor.getLong(10)));
+        }
+        return notes;
+    }
+}
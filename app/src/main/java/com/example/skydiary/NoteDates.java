@@ -0,0 +1,169 @@
+package com.example.skydiary;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Conversions for the UTC date strings notes used to carry ("2024-05-01T10:15:30.000Z", the
+ * Note.DATE_FORMAT pattern) done by hand, without a SimpleDateFormat per call. Notes keep
+ * their dates as epoch millis; these strings are only rendered or read at the edges.
+ */
+public final class NoteDates {
+    /** Returned by parseIso() for strings that aren't in the expected shape. */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    private static final int ISO_LENGTH = 24;
+
+    private NoteDates() {
+    }
+
+    public static long parseIso(String value) {
+        if (value == null || value.length() != ISO_LENGTH
+                || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T'
+                || value.charAt(13) != ':' || value.charAt(16) != ':' || value.charAt(19) != '.'
+                || value.charAt(23) != 'Z') {
+            return INVALID;
+        }
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+        int millis = digits(value, 20, 3);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0) {
+            return INVALID;
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60L + minute) * 60L + second) * 1000L + millis;
+    }
+
+    /**
+     * Like parseIso(), but also reads strings that older versions formatted with the device
+     * locale, which may use other digits. Returns INVALID for null or unreadable strings.
+     */
+    public static long parseLenient(String value) {
+        long millis = parseIso(value);
+        if (millis != INVALID || value == null) return millis;
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(Note.DATE_FORMAT, Locale.getDefault());
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            Date date = format.parse(value);
+            return date != null ? date.getTime() : INVALID;
+        } catch (ParseException e) {
+            return INVALID;
+        }
+    }
+
+    public static String formatIso(long epochMillis) {
+        long days = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        long millisOfDay = Math.floorMod(epochMillis, MILLIS_PER_DAY);
+
+        // Civil date from days since 1970-01-01 (proleptic Gregorian calendar)
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        StringBuilder sb = new StringBuilder(ISO_LENGTH);
+        pad(sb, year, 4).append('-');
+        pad(sb, month, 2).append('-');
+        pad(sb, day, 2).append('T');
+        pad(sb, millisOfDay / 3_600_000, 2).append(':');
+        pad(sb, millisOfDay / 60_000 % 60, 2).append(':');
+        pad(sb, millisOfDay / 1000 % 60, 2).append('.');
+        pad(sb, millisOfDay % 1000, 3).append('Z');
+        return sb.toString();
+    }
+
+    /**
+     * Months since 0000-01 (year * 12 + month - 1) of the UTC date of the given time; used to
+     * group notes by month independently of the device time zone.
+     */
+    public static int monthIndex(long epochMillis) {
+        long days = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return (int) (year * 12 + month - 1);
+    }
+
+    /** "2024-05" for a monthIndex(). */
+    public static String formatMonth(int monthIndex) {
+        StringBuilder sb = new StringBuilder(7);
+        pad(sb, Math.floorDiv(monthIndex, 12), 4).append('-');
+        return pad(sb, Math.floorMod(monthIndex, 12) + 1, 2).toString();
+    }
+
+    /**
+     * Gson adapter for date fields held as epoch millis (0 when unset). Writes numbers and
+     * reads numbers as well as the ISO strings JSON written by older versions contains.
+     */
+    static final class GsonAdapter extends TypeAdapter<Long> {
+        @Override
+        public void write(JsonWriter out, Long value) throws IOException {
+            out.value(value != null ? value : 0L);
+        }
+
+        @Override
+        public Long read(JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return 0L;
+            }
+            if (token == JsonToken.NUMBER) return in.nextLong();
+            long millis = parseLenient(in.nextString());
+            return millis != INVALID ? millis : 0L;
+        }
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153L * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // Parses ASCII digits only; returns -1 for anything else
+    private static int digits(String value, int start, int count) {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static StringBuilder pad(StringBuilder sb, long value, int width) {
+        String digits = Long.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(digits);
+    }
+}
@@ -5,23 +5,16 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.SetOptions;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.UUID;
 
 public class NoteEditorFragment extends BaseNoteFragment {
@@ -32,7 +25,6 @@ public class NoteEditorFragment extends BaseNoteFragment {
     public static final int MODE_ADD = 0;
     public static final int MODE_EDIT = 1;
 
-    private FirebaseFirestore db;
     private String userId;
     private NoteStorage localStorage;
 
@@ -65,11 +57,17 @@ public class NoteEditorFragment extends BaseNoteFragment {
         return currentNote != null ? R.menu.menu_note_options : R.menu.menu_add_note_options;
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        // Saves made in the editor are uploaded together once the user leaves it
+        NoteUploadScheduler.getInstance(requireContext()).flush();
+    }
+
     @Override
     protected void setupSpecificViews(View view) {
         FloatingActionButton btnSave = view.findViewById(R.id.button_save_note);
 
-        db = FirebaseManager.getInstance().getDb();
         localStorage = NoteStorage.getInstance(requireContext());
 
         FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
@@ -138,50 +136,21 @@ public class NoteEditorFragment extends BaseNoteFragment {
             currentNote = new Note();
             currentNote.setId(noteId);
             if (userId != null) currentNote.setUserId(userId);
-            currentNote.setCreatedAt(dateToString(now));
+            currentNote.setCreatedAtMillis(now.getTime());
         }
 
-        currentNote.setName(name);
-        currentNote.setLocation(location);
-        currentNote.setText(text);
-        currentNote.setTimestamp(selectedDate.getTimeInMillis());
-        currentNote.setTags(new ArrayList<>(selectedTags));
-        currentNote.setImages(new ArrayList<>(noteImages));
-        currentNote.setUpdatedAt(dateToString(now));
-
-        localStorage.updateNote(currentNote);
-
-        if (userId != null) {
-            Map<String, Object> noteMap = new HashMap<>();
-            noteMap.put("userId", userId);
-            noteMap.put("name", name);
-            noteMap.put("location", location);
-            noteMap.put("text", text);
-            noteMap.put("timestamp", selectedDate.getTimeInMillis());
-            noteMap.put("tags", new ArrayList<>(selectedTags));
-
-            List<Map<String, Object>> imageMaps = new ArrayList<>();
-            for (NoteImage img : noteImages) {
-                Map<String, Object> imgMap = new HashMap<>();
-                imgMap.put("id", img.getId());
-                imgMap.put("position", img.getPosition());
-                imgMap.put("rotation", img.getRotation());
-                imgMap.put("originalWidth", img.getOriginalWidth());
-                imgMap.put("originalHeight", img.getOriginalHeight());
-
-                String base64 = ImageUtils.compressAndEncodeToBase64(img.getImagePath());
-                imgMap.put("imageData", base64 != null ? base64 : "");
-                imageMaps.add(imgMap);
-            }
-            noteMap.put("images", imageMaps);
-
-            noteMap.put("createdAt", stringToDate(currentNote.getCreatedAt()));
-            noteMap.put("updatedAt", now);
-            noteMap.put("isDeleted", false);
-
-            db.collection("notes").document(noteId)
-                    .set(noteMap, SetOptions.merge())
-                    .addOnFailureListener(e -> Log.e("NoteEditor", "Firestore save failed", e));
+        Note.Editor editor = currentNote.edit()
+                .setName(name)
+                .setLocation(location)
+                .setText(text)
+                .setTimestamp(selectedDate.getTimeInMillis())
+                .setTags(selectedTags)
+                .setImages(noteImages);
+        // Saving without changes keeps the note's updatedAt and doesn't upload it again
+        if (editor.hasChanges()) {
+            editor.apply();
+            localStorage.updateNote(currentNote);
+            NoteUploadScheduler.getInstance(requireContext()).schedule();
         }
 
         Toast.makeText(requireContext(), getString(R.string.note_saved), Toast.LENGTH_SHORT).show();
@@ -250,70 +219,18 @@ public class NoteEditorFragment extends BaseNoteFragment {
             name = getString(R.string.note_from_format, dateString);
         }
 
-        final Date now = new Date();
-
-        currentNote.setName(name);
-        currentNote.setLocation(location);
-        currentNote.setText(text);
-        currentNote.setTimestamp(selectedDate.getTimeInMillis());
-        currentNote.setTags(new ArrayList<>(selectedTags));
-        currentNote.setImages(new ArrayList<>(noteImages));
-        currentNote.setUpdatedAt(dateToString(now));
+        Note.Editor editor = currentNote.edit()
+                .setName(name)
+                .setLocation(location)
+                .setText(text)
+                .setTimestamp(selectedDate.getTimeInMillis())
+                .setTags(selectedTags)
+                .setImages(noteImages);
+        if (!editor.hasChanges()) return;
+        editor.apply();
 
         localStorage.updateNote(currentNote);
 
-        if (userId != null) {
-            Map<String, Object> noteMap = new HashMap<>();
-            noteMap.put("userId", userId);
-            noteMap.put("name", name);
-            noteMap.put("location", location);
-            noteMap.put("text", text);
-            noteMap.put("timestamp", selectedDate.getTimeInMillis());
-            noteMap.put("tags", new ArrayList<>(selectedTags));
-
-            List<Map<String, Object>> imageMaps = new ArrayList<>();
-            for (NoteImage img : noteImages) {
-                Map<String, Object> imgMap = new HashMap<>();
-                imgMap.put("id", img.getId());
-                imgMap.put("position", img.getPosition());
-                imgMap.put("rotation", img.getRotation());
-                imgMap.put("originalWidth", img.getOriginalWidth());
-                imgMap.put("originalHeight", img.getOriginalHeight());
-
-                String base64 = ImageUtils.compressAndEncodeToBase64(img.getImagePath());
-                imgMap.put("imageData", base64 != null ? base64 : "");
-                imageMaps.add(imgMap);
-            }
-            noteMap.put("images", imageMaps);
-
-            noteMap.put("createdAt", stringToDate(currentNote.getCreatedAt()));
-            noteMap.put("updatedAt", now);
-            noteMap.put("isDeleted", currentNote.isDeleted());
-            if (currentNote.getDeletedAt() != null) {
-                noteMap.put("deletedAt", stringToDate(currentNote.getDeletedAt()));
-            }
-
-            db.collection("notes").document(currentNote.getId())
-                    .set(noteMap, SetOptions.merge())
-                    .addOnFailureListener(e -> Log.e("NoteEditor", "Silent save failed", e));
-        }
-    }
-
-    private String dateToString(Date date) {
-        if (date == null) return null;
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.getDefault());
-        sdf.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
-        return sdf.format(date);
-    }
-
-    private Date stringToDate(String dateStr) {
-        if (dateStr == null) return null;
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.getDefault());
-            sdf.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
-            return sdf.parse(dateStr);
-        } catch (java.text.ParseException e) {
-            return new Date();
-        }
+        NoteUploadScheduler.getInstance(requireContext()).schedule();
     }
-}
\ No newline at end of file
+}
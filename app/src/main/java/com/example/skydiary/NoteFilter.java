@@ -0,0 +1,34 @@
+package com.example.skydiary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the note list is narrowed down to: a search query (see NoteStorage.findNoteIdsMatching())
+ * and tags every note must carry. Either may be empty.
+ */
+public class NoteFilter {
+    public static final NoteFilter NONE = new NoteFilter(null, null);
+
+    private final String query;
+    private final List<String> tags;
+
+    public NoteFilter(String query, Collection<String> tags) {
+        this.query = query != null ? query.trim() : "";
+        this.tags = tags != null ? Collections.unmodifiableList(new ArrayList<>(tags)) : Collections.emptyList();
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public boolean isEmpty() {
+        return query.isEmpty() && tags.isEmpty();
+    }
+}
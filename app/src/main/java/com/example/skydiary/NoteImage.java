@@ -10,6 +10,8 @@ public class NoteImage {
     private float rotation;
     private int originalWidth;
     private int originalHeight;
+    // Storage blob the image was downloaded from (see ImageBlobStore); null for images added here
+    private String blobKey;
 
     public NoteImage(String imagePath, int position) {
         this.id = UUID.randomUUID().toString();
@@ -29,6 +31,11 @@ public class NoteImage {
         this.originalHeight = originalHeight;
     }
 
+    public NoteImage(NoteImage other) {
+        this(other.id, other.imagePath, other.position, other.rotation, other.originalWidth, other.originalHeight);
+        this.blobKey = other.blobKey;
+    }
+
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
 
@@ -47,6 +54,9 @@ public class NoteImage {
     public int getOriginalHeight() { return originalHeight; }
     public void setOriginalHeight(int originalHeight) { this.originalHeight = originalHeight; }
 
+    public String getBlobKey() { return blobKey; }
+    public void setBlobKey(String blobKey) { this.blobKey = blobKey; }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
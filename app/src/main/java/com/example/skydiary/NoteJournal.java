@@ -0,0 +1,1116 @@
+package com.example.skydiary;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only note store kept in getFilesDir()/notes.
+ *
+ * Every write appends one record to journal.bin, so its cost depends only on the note that
+ * changed. Once enough records pile up, a background task folds the log into the snapshot.
+ * The log is renamed before folding, so writes keep going to a fresh log while the old one
+ * is being folded. Notes are encoded with NoteCodec.
+ *
+ * The snapshot is split into one shard file per month of Note.timestamp (UTC), listed in
+ * manifest.bin. Folding the log rewrites only the shards of the months it touched. New shards
+ * are written under new names and take effect together when the manifest is replaced, so a
+ * note whose date changed leaves its old month and enters the new one in the same step.
+ *
+ * Shards are memory-mapped rather than read into the heap. loadSummaries() notes where each
+ * note's latest record is, so loadNote() decodes a single note body straight from its mapped
+ * shard (or reads its one record from the log) when an editor or search needs it. Every
+ * manifest comes with index.bin, a hash table from note id to record position in its shards,
+ * so a note opened before the summaries are loaded doesn't cost a walk over every shard.
+ *
+ * Every log record, shard record and manifest carries a CRC32, and files are synced to disk
+ * before they count as written. A new manifest is written to a temp file and renamed into
+ * place; the one it replaces is kept as manifest.bin.prev (its shards stay on disk), together
+ * with the log folded into the new one, so a damaged snapshot falls back to the previous
+ * generation instead of losing the diary. Replaying a log stops at the first damaged record,
+ * and a torn end of journal.bin is cut off before anything is appended after it.
+ */
+public class NoteJournal implements NoteStore {
+    private static final String TAG = "NoteJournal";
+    private static final String DIR_NAME = "notes";
+    private static final String MANIFEST_FILE = "manifest.bin";
+    private static final String MANIFEST_TEMP_FILE = "manifest.bin.tmp";
+    private static final String PREVIOUS_MANIFEST_FILE = "manifest.bin.prev";
+    private static final String SHARD_PREFIX = "shard-";
+    private static final String SHARD_SUFFIX = ".bin";
+    private static final String LOG_FILE = "journal.bin";
+    private static final String FOLDING_LOG_FILE = "journal.bin.folding";
+    private static final String PREVIOUS_LOG_FILE = "journal.bin.prev";
+    private static final String INDEX_FILE = "index.bin";
+
+    // Starts every shard file
+    private static final byte[] SNAPSHOT_MAGIC = {'S', 'K', 'Y', 'N'};
+    private static final byte[] MANIFEST_MAGIC = {'S', 'K', 'Y', 'M'};
+    private static final byte[] INDEX_MAGIC = {'S', 'K', 'Y', 'X'};
+    // Starts every log file
+    private static final byte[] LOG_MAGIC = {'S', 'K', 'Y', 'J'};
+    private static final int MANIFEST_VERSION = 1;
+    private static final int INDEX_VERSION = 1;
+    // index.bin: magic, then version, manifest sequence, note count and slot count as 32-bit
+    // little-endian ints and the CRC32 of those, then the slots
+    private static final int INDEX_HEADER_SIZE = 24;
+    // 64-bit id hash (0 for an empty slot), then month, record offset and record length
+    private static final int INDEX_SLOT_SIZE = 20;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_DELETE = 2;
+
+    // Number of appended records after which the log is folded into the snapshot
+    private static final int COMPACTION_THRESHOLD = 200;
+
+    private final File dir;
+    private final File manifestFile;
+    private final File manifestTempFile;
+    private final File previousManifestFile;
+    private final File logFile;
+    private final File foldingLogFile;
+    private final File previousLogFile;
+    private final File indexFile;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor();
+
+    private boolean sequenceLoaded;
+    private int recordsSinceCompaction;
+    private boolean compactionScheduled;
+    // Bumped by replaceAll() and clear() so an in-flight compaction knows its result is stale
+    private int generation;
+    // Last manifest sequence handed out. Shard files carry the sequence of the manifest they
+    // were written for, so a new shard never overwrites one that is still listed.
+    private int sequence;
+    // Set when manifest.bin or one of its shards failed to read, so replacing it doesn't push
+    // out the intact previous generation
+    private volatile boolean snapshotDamaged;
+
+    // Where each note's latest record is. Built by loadSummaries() and dropped whenever the
+    // manifest is replaced; appends keep it up to date.
+    private Map<String, RecordLocation> locations;
+    // Until loadSummaries() runs, locations only holds what the logs changed (deleted notes
+    // map to null) and everything else is looked up here
+    private IdIndex idIndex;
+
+    // Which shard file holds each month (as NoteDates.monthIndex() counts them). A manifest
+    // written by this process also knows where every record in its shards is, for index.bin.
+    private static final class Manifest {
+        final int sequence;
+        final TreeMap<Integer, String> shards;
+        final Map<String, IndexEntry> index;
+
+        Manifest(int sequence, TreeMap<Integer, String> shards) {
+            this(sequence, shards, null);
+        }
+
+        Manifest(int sequence, TreeMap<Integer, String> shards, Map<String, IndexEntry> index) {
+            this.sequence = sequence;
+            this.shards = shards;
+            this.index = index;
+        }
+    }
+
+    // Where a note's record is in the shards of a manifest
+    private static final class IndexEntry {
+        final int month;
+        final int offset;
+        final int length;
+
+        IndexEntry(int month, int offset, int length) {
+            this.month = month;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // A mapped shard and the tag dictionary its records refer to. Shards found through
+    // index.bin are only mapped once a note in them is loaded, and their records weren't
+    // walked, so each one's checksum is verified as it is decoded.
+    private static final class Shard {
+        final File file;
+        final boolean walked;
+        ByteBuffer data;
+        String[] dictionary;
+
+        Shard(ByteBuffer data, String[] dictionary) {
+            this.file = null;
+            this.walked = true;
+            this.data = data;
+            this.dictionary = dictionary;
+        }
+
+        Shard(File file) {
+            this.file = file;
+            this.walked = false;
+        }
+    }
+
+    // A mapped index.bin: an open-addressing table of id hashes at most half full, so finding
+    // a record takes a probe or two however many notes there are. A hash can collide or a
+    // slot be damaged, so loadNote() checks the id and checksum of the record a slot points
+    // to, and walks the shards before reporting a note the index doesn't have as missing.
+    private static final class IdIndex {
+        final ByteBuffer slots;
+        final int capacity;
+        final Map<Integer, Shard> shards;
+
+        IdIndex(ByteBuffer slots, int capacity, Map<Integer, Shard> shards) {
+            this.slots = slots;
+            this.capacity = capacity;
+            this.shards = shards;
+        }
+
+        RecordLocation find(String noteId) {
+            long hash = idHash(noteId);
+            for (int i = 0, slot = slotOf(hash, capacity); i < capacity; i++, slot = (slot + 1) % capacity) {
+                int position = INDEX_HEADER_SIZE + slot * INDEX_SLOT_SIZE;
+                long stored = slots.getLong(position);
+                if (stored == 0) return null;
+                if (stored == hash) {
+                    Shard shard = shards.get(slots.getInt(position + 8));
+                    if (shard == null) return null;
+                    return new RecordLocation(shard, null, slots.getInt(position + 12), slots.getInt(position + 16));
+                }
+            }
+            return null;
+        }
+    }
+
+    // A note record in a mapped shard (file == null), or a single-note block in a log file
+    private static final class RecordLocation {
+        final Shard shard;
+        File file;
+        final long offset;
+        final int length;
+
+        RecordLocation(Shard shard, File file, long offset, int length) {
+            this.shard = shard;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // The snapshot generation that was read, and the logs to replay on top of it, oldest first
+    private static final class Generation {
+        final Manifest manifest;
+        final List<File> logs;
+
+        Generation(Manifest manifest, List<File> logs) {
+            this.manifest = manifest;
+            this.logs = logs;
+        }
+    }
+
+    // Receives the records of a log as it is replayed
+    private interface RecordHandler {
+        void put(byte[] data, int offset, int length) throws IOException;
+
+        void delete(String noteId);
+    }
+
+    // Receives the shards of a generation one by one
+    private interface SnapshotReader {
+        void read(int month, ByteBuffer data, int offset, int length) throws IOException;
+
+        // Forgets every shard read so far, before another generation is read instead
+        void reset();
+    }
+
+    public NoteJournal(Context context) {
+        this(new File(context.getFilesDir(), DIR_NAME));
+    }
+
+    // Keeps its files in dir; for tests
+    NoteJournal(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        this.manifestFile = new File(dir, MANIFEST_FILE);
+        this.manifestTempFile = new File(dir, MANIFEST_TEMP_FILE);
+        this.previousManifestFile = new File(dir, PREVIOUS_MANIFEST_FILE);
+        this.logFile = new File(dir, LOG_FILE);
+        this.foldingLogFile = new File(dir, FOLDING_LOG_FILE);
+        this.previousLogFile = new File(dir, PREVIOUS_LOG_FILE);
+        this.indexFile = new File(dir, INDEX_FILE);
+    }
+
+    @Override
+    public synchronized boolean exists() {
+        return manifestFile.exists() || previousManifestFile.exists() || logFile.exists()
+                || foldingLogFile.exists();
+    }
+
+    @Override
+    public synchronized List<Note> load() {
+        Map<String, Note> notes = new LinkedHashMap<>();
+        int records = 0;
+        for (File log : readSnapshot(notesReader(notes)).logs) {
+            records += replayLog(log, notes);
+        }
+        recordsSinceCompaction = records;
+        maybeScheduleCompaction();
+        return new ArrayList<>(notes.values());
+    }
+
+    @Override
+    public synchronized List<NoteSummary> loadSummaries() {
+        Map<String, NoteSummary> summaries = new LinkedHashMap<>();
+        Map<String, RecordLocation> found = new HashMap<>();
+        dropLocations();
+        Generation read = readSnapshot(new SnapshotReader() {
+            @Override
+            public void read(int month, ByteBuffer data, int offset, int length) throws IOException {
+                Map<String, NoteSummary> shardSummaries = new LinkedHashMap<>();
+                Map<String, long[]> records = new HashMap<>();
+                String[] dictionary = NoteCodec.decodeSummaries(data, offset, length,
+                        (summary, recordOffset, recordLength) -> {
+                            shardSummaries.put(summary.getId(), summary);
+                            records.put(summary.getId(), new long[]{recordOffset, recordLength});
+                        });
+                Shard shard = new Shard(data, dictionary);
+                summaries.putAll(shardSummaries);
+                for (Map.Entry<String, long[]> record : records.entrySet()) {
+                    found.put(record.getKey(),
+                            new RecordLocation(shard, null, record.getValue()[0], (int) record.getValue()[1]));
+                }
+            }
+
+            @Override
+            public void reset() {
+                summaries.clear();
+                found.clear();
+            }
+        });
+        for (File log : read.logs) {
+            replayLog(log, summaryHandler(log, summaries, found));
+        }
+        locations = found;
+        return new ArrayList<>(summaries.values());
+    }
+
+    private RecordHandler summaryHandler(File file, Map<String, NoteSummary> summaries,
+                                         Map<String, RecordLocation> found) {
+        return new RecordHandler() {
+            @Override
+            public void put(byte[] data, int offset, int length) throws IOException {
+                for (NoteSummary summary : NoteCodec.decodeSummaries(data, offset, length)) {
+                    summaries.put(summary.getId(), summary);
+                    found.put(summary.getId(), new RecordLocation(null, file, offset, length));
+                }
+            }
+
+            @Override
+            public void delete(String noteId) {
+                summaries.remove(noteId);
+                found.remove(noteId);
+            }
+        };
+    }
+
+    /**
+     * Decodes just the one note. Before loadSummaries() has run, its record is looked up in
+     * index.bin, so opening a note right after start doesn't walk every shard.
+     */
+    @Override
+    public synchronized Note loadNote(String noteId) {
+        if (locations == null && !loadIndexedLocations()) {
+            loadSummaries();
+        }
+        RecordLocation location = locations.get(noteId);
+        boolean indexed = location == null && idIndex != null && !locations.containsKey(noteId);
+        if (indexed) {
+            location = idIndex.find(noteId);
+        }
+        if (location != null) {
+            try {
+                return readRecord(noteId, location);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading note " + noteId + ": " + e.getMessage());
+            }
+            if (location.file != null || location.shard.walked) return null;
+        } else if (!indexed) {
+            return null;
+        }
+        // The index missed the note or led to a bad record, which a damaged slot or shard can
+        // cause. Walking the shards finds out, falling back to the previous generation if need be.
+        loadSummaries();
+        location = locations.get(noteId);
+        if (location == null) return null;
+        try {
+            return readRecord(noteId, location);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading note " + noteId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Note readRecord(String noteId, RecordLocation location) throws IOException {
+        if (location.file == null) {
+            Shard shard = location.shard;
+            if (shard.walked) {
+                return NoteCodec.decodeNote(shard.data, (int) location.offset, location.length, shard.dictionary);
+            }
+            if (shard.data == null) {
+                ByteBuffer data = mapFile(shard.file);
+                if (data == null || !hasMagic(data, SNAPSHOT_MAGIC)) {
+                    throw new IOException("Missing or unrecognized shard " + shard.file);
+                }
+                shard.dictionary = NoteCodec.decodeDictionary(data, SNAPSHOT_MAGIC.length,
+                        data.limit() - SNAPSHOT_MAGIC.length);
+                shard.data = data;
+            }
+            Note note = NoteCodec.decodeCheckedNote(shard.data, (int) location.offset, location.length,
+                    shard.dictionary);
+            if (!noteId.equals(note.getId())) throw new IOException("Index points at another note");
+            return note;
+        }
+        byte[] block = readRange(location.file, location.offset, location.length);
+        for (Note note : NoteCodec.decode(block, 0, block.length)) {
+            if (note.getId().equals(noteId)) return note;
+        }
+        return null;
+    }
+
+    /**
+     * Maps index.bin and replays the logs over it, without reading any shard. False if there
+     * is no intact index for the current manifest (one is written with every manifest, but a
+     * crash can leave an older one behind); loadSummaries() then walks the shards instead.
+     */
+    private boolean loadIndexedLocations() {
+        long start = System.nanoTime();
+        Manifest manifest = readManifest(manifestFile);
+        if (manifest == null) return false;
+        IdIndex index = mapIndex(manifest);
+        if (index == null) return false;
+        Map<String, RecordLocation> logged = new HashMap<>();
+        for (File log : Arrays.asList(foldingLogFile, logFile)) {
+            replayLog(log, new RecordHandler() {
+                @Override
+                public void put(byte[] data, int offset, int length) throws IOException {
+                    for (NoteSummary summary : NoteCodec.decodeSummaries(data, offset, length)) {
+                        logged.put(summary.getId(), new RecordLocation(null, log, offset, length));
+                    }
+                }
+
+                @Override
+                public void delete(String noteId) {
+                    logged.put(noteId, null);
+                }
+            });
+        }
+        locations = logged;
+        idIndex = index;
+        Log.d(TAG, "Mapped the note index and " + logged.size() + " logged changes in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        return true;
+    }
+
+    @Override
+    public synchronized boolean put(Note note) {
+        return putAll(Collections.singletonList(note));
+    }
+
+    @Override
+    public synchronized boolean putAll(Collection<Note> notes) {
+        if (notes.isEmpty()) return true;
+        long base = Math.max(logFile.length(), LOG_MAGIC.length);
+        NoteCodec.Output out = new NoteCodec.Output(256 * notes.size());
+        Map<String, RecordLocation> appended = new HashMap<>();
+        for (Note note : notes) {
+            byte[] block = NoteCodec.encode(Collections.singletonList(note));
+            out.writeVarInt(block.length + 1);
+            int recordStart = out.size;
+            out.writeByte(OP_PUT);
+            appended.put(note.getId(), new RecordLocation(null, logFile, base + out.size, block.length));
+            out.write(block, 0, block.length);
+            out.writeInt(NoteCodec.crc32(out.buf, recordStart, out.size - recordStart));
+        }
+        if (append(out, notes.size())) {
+            if (locations != null) {
+                locations.putAll(appended);
+            }
+            return true;
+        }
+        dropLocations();
+        return false;
+    }
+
+    @Override
+    public synchronized boolean delete(String noteId) {
+        NoteCodec.Output record = new NoteCodec.Output(64);
+        record.writeByte(OP_DELETE);
+        record.writeString(noteId);
+        NoteCodec.Output out = new NoteCodec.Output(record.size + 9);
+        out.writeVarInt(record.size);
+        out.write(record.buf, 0, record.size);
+        out.writeInt(NoteCodec.crc32(record.buf, 0, record.size));
+        if (append(out, 1)) {
+            if (idIndex != null) {
+                locations.put(noteId, null);
+            } else if (locations != null) {
+                locations.remove(noteId);
+            }
+            return true;
+        }
+        dropLocations();
+        return false;
+    }
+
+    /**
+     * Writes the given notes as a new set of shards and drops every logged record.
+     * Returns false if the snapshot could not be written; the previous state is then kept.
+     */
+    @Override
+    public synchronized boolean replaceAll(Collection<Note> notes) {
+        loadSequence();
+        generation++;
+        dropLocations();
+        try {
+            installManifest(writeAllShards(notes, ++sequence), null);
+            logFile.delete();
+            foldingLogFile.delete();
+            recordsSinceCompaction = 0;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing snapshot: " + e.getMessage());
+            deleteUnlistedShards();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        generation++;
+        dropLocations();
+        manifestFile.delete();
+        manifestTempFile.delete();
+        previousManifestFile.delete();
+        deleteUnlistedShards();
+        indexFile.delete();
+        logFile.delete();
+        foldingLogFile.delete();
+        previousLogFile.delete();
+        recordsSinceCompaction = 0;
+        snapshotDamaged = false;
+    }
+
+    // Appends records and syncs them to disk; they only count as written once that returns
+    private boolean append(NoteCodec.Output records, int count) {
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            if (out.getChannel().size() == 0) {
+                out.write(LOG_MAGIC);
+            }
+            out.write(records.buf, 0, records.size);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to journal: " + e.getMessage());
+            return false;
+        }
+        recordsSinceCompaction += count;
+        maybeScheduleCompaction();
+        return true;
+    }
+
+    // The next loadNote() scans the files again
+    private void dropLocations() {
+        locations = null;
+        idIndex = null;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (compactionScheduled || recordsSinceCompaction < COMPACTION_THRESHOLD) return;
+        compactionScheduled = true;
+        compactor.execute(this::compact);
+    }
+
+    private void compact() {
+        int startGeneration;
+        int nextSequence;
+        synchronized (this) {
+            startGeneration = generation;
+            // A folding log left over from an interrupted compaction is folded first
+            if (!foldingLogFile.exists()) {
+                if (!logFile.exists() || !logFile.renameTo(foldingLogFile)) {
+                    compactionScheduled = false;
+                    return;
+                }
+                recordsSinceCompaction = 0;
+                if (locations != null) {
+                    for (RecordLocation location : locations.values()) {
+                        if (location != null && logFile.equals(location.file)) {
+                            location.file = foldingLogFile;
+                        }
+                    }
+                }
+            }
+            loadSequence();
+            nextSequence = ++sequence;
+        }
+
+        long start = System.currentTimeMillis();
+        Manifest next = null;
+        try {
+            // Only ids and record positions are read from the shards, to tell which months the
+            // folded records touch and to index the records of the shards that stay
+            Map<String, IndexEntry> index = new HashMap<>();
+            Generation base = readSnapshot(new SnapshotReader() {
+                @Override
+                public void read(int month, ByteBuffer data, int offset, int length) throws IOException {
+                    NoteCodec.decodeSummaries(data, offset, length, (summary, recordOffset, recordLength) ->
+                            index.put(summary.getId(), new IndexEntry(month, recordOffset, recordLength)));
+                }
+
+                @Override
+                public void reset() {
+                    index.clear();
+                }
+            });
+            // A null value marks a deleted note
+            Map<String, Note> changes = new LinkedHashMap<>();
+            for (File log : base.logs) {
+                // journal.bin is still being appended to; it stays a log
+                if (!log.equals(logFile)) {
+                    replayChanges(log, changes);
+                }
+            }
+            next = writeChangedShards(base.manifest, index, changes, nextSequence);
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting journal: " + e.getMessage());
+        }
+
+        synchronized (this) {
+            compactionScheduled = false;
+            if (next == null || generation != startGeneration) {
+                // Drops whatever was written for a manifest that won't be installed
+                deleteUnlistedShards();
+            } else {
+                try {
+                    installManifest(next, foldingLogFile);
+                    dropLocations();
+                    Log.d(TAG, "Compacted journal in " + (System.currentTimeMillis() - start) + " ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Error installing compacted snapshot: " + e.getMessage());
+                    deleteUnlistedShards();
+                }
+            }
+            maybeScheduleCompaction();
+        }
+    }
+
+    // Rewrites the shard of every month a changed note leaves or enters; the rest are reused.
+    // index holds the records of the base shards and is updated for the rewritten ones.
+    private Manifest writeChangedShards(Manifest base, Map<String, IndexEntry> index,
+                                        Map<String, Note> changes, int nextSequence) throws IOException {
+        Set<Integer> dirty = new TreeSet<>();
+        for (Map.Entry<String, Note> change : changes.entrySet()) {
+            IndexEntry old = index.get(change.getKey());
+            if (old != null) {
+                dirty.add(old.month);
+            }
+            if (change.getValue() != null) {
+                dirty.add(NoteDates.monthIndex(change.getValue().getTimestamp()));
+            }
+        }
+
+        TreeMap<Integer, String> shards = new TreeMap<>(base.shards);
+        index.values().removeIf(entry -> dirty.contains(entry.month));
+        for (int month : dirty) {
+            Map<String, Note> notes = new LinkedHashMap<>();
+            String current = base.shards.get(month);
+            if (current != null) {
+                readShardFile(new File(dir, current), notes);
+            }
+            for (Map.Entry<String, Note> change : changes.entrySet()) {
+                Note note = change.getValue();
+                if (note != null && NoteDates.monthIndex(note.getTimestamp()) == month) {
+                    notes.put(change.getKey(), note);
+                } else {
+                    notes.remove(change.getKey());
+                }
+            }
+            if (notes.isEmpty()) {
+                shards.remove(month);
+            } else {
+                String name = shardName(month, nextSequence);
+                writeShard(new File(dir, name), month, notes.values(), index);
+                shards.put(month, name);
+            }
+        }
+        Log.d(TAG, "Rewrote " + dirty.size() + " of " + shards.size() + " shards for "
+                + changes.size() + " changed notes");
+        Manifest next = new Manifest(nextSequence, shards, index);
+        writeIndex(next);
+        return next;
+    }
+
+    private Manifest writeAllShards(Collection<Note> notes, int nextSequence) throws IOException {
+        TreeMap<Integer, List<Note>> byMonth = new TreeMap<>();
+        for (Note note : notes) {
+            int month = NoteDates.monthIndex(note.getTimestamp());
+            List<Note> monthNotes = byMonth.get(month);
+            if (monthNotes == null) {
+                monthNotes = new ArrayList<>();
+                byMonth.put(month, monthNotes);
+            }
+            monthNotes.add(note);
+        }
+        TreeMap<Integer, String> shards = new TreeMap<>();
+        Map<String, IndexEntry> index = new HashMap<>();
+        for (Map.Entry<Integer, List<Note>> month : byMonth.entrySet()) {
+            String name = shardName(month.getKey(), nextSequence);
+            writeShard(new File(dir, name), month.getKey(), month.getValue(), index);
+            shards.put(month.getKey(), name);
+        }
+        Manifest next = new Manifest(nextSequence, shards, index);
+        writeIndex(next);
+        return next;
+    }
+
+    // "shard-2024-05.17.bin"
+    private static String shardName(int month, int sequence) {
+        return SHARD_PREFIX + NoteDates.formatMonth(month) + "." + sequence + SHARD_SUFFIX;
+    }
+
+    /**
+     * Makes the given manifest current; its shards must already be written and synced. The
+     * manifest it replaces becomes manifest.bin.prev and foldedLog (the log folded into the
+     * new one, if any) becomes journal.bin.prev, so the two together still add up to the new
+     * one. Each step is a rename, and readSnapshot() copes with a crash between any two of
+     * them. The manifest's index.bin (see writeIndex()) is renamed into place after it.
+     * Shards that neither manifest lists any more are deleted last.
+     */
+    private void installManifest(Manifest next, File foldedLog) throws IOException {
+        writeManifest(manifestTempFile, next);
+        if (snapshotDamaged) {
+            // The previous generation is the last intact one; keep it
+            manifestFile.delete();
+            if (foldedLog != null) {
+                foldedLog.delete();
+            }
+        } else {
+            previousLogFile.delete();
+            if (manifestFile.exists() && !manifestFile.renameTo(previousManifestFile)) {
+                throw new IOException("Could not keep the previous manifest");
+            }
+            if (foldedLog != null && !foldedLog.renameTo(previousLogFile)) {
+                // The previous manifest alone is still a consistent, if older, fallback
+                foldedLog.delete();
+            }
+        }
+        if (!manifestTempFile.renameTo(manifestFile)) {
+            throw new IOException("Could not replace " + manifestFile);
+        }
+        // An index left over from the replaced manifest is never used: it names its sequence
+        if (!indexTempFile(next.sequence).renameTo(indexFile)) {
+            indexFile.delete();
+        }
+        snapshotDamaged = false;
+        deleteUnlistedShards();
+    }
+
+    // Deletes shard files listed by neither manifest.bin nor manifest.bin.prev, and index
+    // files written for manifests that weren't installed
+    private void deleteUnlistedShards() {
+        Set<String> listed = new HashSet<>();
+        for (File file : new File[]{manifestFile, previousManifestFile}) {
+            Manifest manifest = readManifest(file);
+            if (manifest != null) {
+                listed.addAll(manifest.shards.values());
+            }
+        }
+        String[] names = dir.list();
+        if (names == null) return;
+        for (String name : names) {
+            if (name.startsWith(SHARD_PREFIX) && !listed.contains(name)
+                    || name.startsWith(INDEX_FILE + ".") && name.endsWith(".tmp")) {
+                new File(dir, name).delete();
+            }
+        }
+    }
+
+    private SnapshotReader notesReader(Map<String, Note> into) {
+        return new SnapshotReader() {
+            @Override
+            public void read(int month, ByteBuffer data, int offset, int length) throws IOException {
+                for (Note note : NoteCodec.decode(data, offset, length)) {
+                    into.put(note.getId(), note);
+                }
+            }
+
+            @Override
+            public void reset() {
+                into.clear();
+            }
+        };
+    }
+
+    /**
+     * Reads the shards of the newest intact generation and returns it with the logs to replay
+     * on top of it. If manifest.bin or one of its shards is missing or damaged, the previous
+     * manifest is read instead and journal.bin.prev is replayed before the other logs.
+     */
+    private Generation readSnapshot(SnapshotReader reader) {
+        if (manifestFile.exists()) {
+            Manifest manifest = readManifest(manifestFile);
+            if (manifest != null && readShards(manifest, reader)) {
+                return new Generation(manifest, Arrays.asList(foldingLogFile, logFile));
+            }
+            reader.reset();
+            snapshotDamaged = true;
+            Log.e(TAG, "Snapshot is damaged, falling back to the previous one");
+        }
+        if (previousManifestFile.exists()) {
+            Manifest manifest = readManifest(previousManifestFile);
+            if (manifest != null && readShards(manifest, reader)) {
+                return new Generation(manifest, Arrays.asList(previousLogFile, foldingLogFile, logFile));
+            }
+            reader.reset();
+            Log.e(TAG, "Previous snapshot is damaged too; only logged changes can be read");
+        }
+        return new Generation(new Manifest(0, new TreeMap<>()), Arrays.asList(foldingLogFile, logFile));
+    }
+
+    private boolean readShards(Manifest manifest, SnapshotReader reader) {
+        for (Map.Entry<Integer, String> shard : manifest.shards.entrySet()) {
+            File file = new File(dir, shard.getValue());
+            ByteBuffer data = mapFile(file);
+            if (data == null || !hasMagic(data, SNAPSHOT_MAGIC)) {
+                Log.e(TAG, "Missing or unrecognized shard " + file);
+                return false;
+            }
+            try {
+                reader.read(shard.getKey(), data, SNAPSHOT_MAGIC.length, data.limit() - SNAPSHOT_MAGIC.length);
+            } catch (IOException | RuntimeException e) {
+                // NoteCodec reports damage as IOException; anything else is a bug, which mustn't
+                // keep the previous generation from being read either
+                Log.e(TAG, "Error reading " + file, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads a whole shard into the map
+    private void readShardFile(File file, Map<String, Note> into) throws IOException {
+        ByteBuffer data = mapFile(file);
+        if (data == null || !hasMagic(data, SNAPSHOT_MAGIC)) {
+            throw new IOException("Missing or unrecognized shard " + file);
+        }
+        for (Note note : NoteCodec.decode(data, SNAPSHOT_MAGIC.length, data.limit() - SNAPSHOT_MAGIC.length)) {
+            into.put(note.getId(), note);
+        }
+    }
+
+    // Magic, version, sequence, shard count, then (month, file name) per shard and a CRC32
+    private void writeManifest(File file, Manifest manifest) throws IOException {
+        NoteCodec.Output out = new NoteCodec.Output(64 + 32 * manifest.shards.size());
+        out.write(MANIFEST_MAGIC, 0, MANIFEST_MAGIC.length);
+        out.writeVarInt(MANIFEST_VERSION);
+        out.writeVarInt(manifest.sequence);
+        out.writeVarInt(manifest.shards.size());
+        for (Map.Entry<Integer, String> shard : manifest.shards.entrySet()) {
+            out.writeVarInt(shard.getKey());
+            out.writeString(shard.getValue());
+        }
+        out.writeInt(NoteCodec.crc32(out.buf, MANIFEST_MAGIC.length, out.size - MANIFEST_MAGIC.length));
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(out.buf, 0, out.size);
+            stream.getFD().sync();
+        }
+    }
+
+    private Manifest readManifest(File file) {
+        byte[] data = readFile(file);
+        if (data == null) return null;
+        if (!hasMagic(ByteBuffer.wrap(data), MANIFEST_MAGIC)) {
+            Log.e(TAG, "Unrecognized manifest " + file);
+            return null;
+        }
+        try {
+            // The CRC32 at the end is checked before anything else is read
+            int end = data.length - 4;
+            if (end < MANIFEST_MAGIC.length) throw new IOException("Truncated manifest");
+            new NoteCodec.Input(data, end, data.length).verifyChecksum(MANIFEST_MAGIC.length);
+            NoteCodec.Input in = new NoteCodec.Input(data, MANIFEST_MAGIC.length, end);
+            in.readVarInt(); // version; nothing depends on it yet
+            int manifestSequence = in.readVarInt();
+            int count = in.readCount();
+            TreeMap<Integer, String> shards = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                int month = in.readVarInt();
+                shards.put(month, in.readString());
+            }
+            return new Manifest(manifestSequence, shards);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // "index.bin.17.tmp": the index of the manifest with that sequence, until it is installed
+    private File indexTempFile(int manifestSequence) {
+        return new File(dir, INDEX_FILE + "." + manifestSequence + ".tmp");
+    }
+
+    /**
+     * Writes the record positions of a new manifest as a hash table over the note ids, to be
+     * renamed into place by installManifest(). The index only saves loadNote() the walk over
+     * every shard, so failing to write it isn't an error.
+     */
+    private void writeIndex(Manifest manifest) {
+        long start = System.currentTimeMillis();
+        int count = manifest.index.size();
+        int capacity = Math.max(16, count * 2);
+        ByteBuffer out = ByteBuffer.allocate(INDEX_HEADER_SIZE + capacity * INDEX_SLOT_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.put(INDEX_MAGIC);
+        out.putInt(INDEX_VERSION);
+        out.putInt(manifest.sequence);
+        out.putInt(count);
+        out.putInt(capacity);
+        out.putInt(NoteCodec.crc32(out.array(), INDEX_MAGIC.length, 16));
+        for (Map.Entry<String, IndexEntry> record : manifest.index.entrySet()) {
+            long hash = idHash(record.getKey());
+            int slot = slotOf(hash, capacity);
+            while (out.getLong(INDEX_HEADER_SIZE + slot * INDEX_SLOT_SIZE) != 0) {
+                slot = (slot + 1) % capacity;
+            }
+            int position = INDEX_HEADER_SIZE + slot * INDEX_SLOT_SIZE;
+            IndexEntry entry = record.getValue();
+            out.putLong(position, hash);
+            out.putInt(position + 8, entry.month);
+            out.putInt(position + 12, entry.offset);
+            out.putInt(position + 16, entry.length);
+        }
+        File file = indexTempFile(manifest.sequence);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(out.array());
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing note index: " + e.getMessage());
+            file.delete();
+            return;
+        }
+        Log.d(TAG, "Indexed " + count + " notes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Maps index.bin if it was written for this manifest; only its header is read
+    private IdIndex mapIndex(Manifest manifest) {
+        ByteBuffer data = mapFile(indexFile);
+        if (data == null || data.limit() < INDEX_HEADER_SIZE || !hasMagic(data, INDEX_MAGIC)) return null;
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] header = new byte[16];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = data.get(INDEX_MAGIC.length + i);
+        }
+        int capacity = data.getInt(16);
+        if (data.getInt(20) != NoteCodec.crc32(header, 0, header.length)
+                || data.getInt(8) != manifest.sequence || capacity <= 0
+                || data.limit() != INDEX_HEADER_SIZE + (long) capacity * INDEX_SLOT_SIZE) {
+            return null;
+        }
+        Map<Integer, Shard> shards = new HashMap<>();
+        for (Map.Entry<Integer, String> shard : manifest.shards.entrySet()) {
+            shards.put(shard.getKey(), new Shard(new File(dir, shard.getValue())));
+        }
+        return new IdIndex(data, capacity, shards);
+    }
+
+    // 64-bit FNV-1a over the id's chars; never 0, which marks an empty slot
+    private static long idHash(String noteId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < noteId.length(); i++) {
+            hash ^= noteId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    private static int slotOf(long hash, int capacity) {
+        return (int) ((hash >>> 1) % capacity);
+    }
+
+    private int replayLog(File file, Map<String, Note> into) {
+        return replayLog(file, new RecordHandler() {
+            @Override
+            public void put(byte[] data, int offset, int length) throws IOException {
+                for (Note note : NoteCodec.decode(data, offset, length)) {
+                    into.put(note.getId(), note);
+                }
+            }
+
+            @Override
+            public void delete(String noteId) {
+                into.remove(noteId);
+            }
+        });
+    }
+
+    // Like replayLog(), but keeps deletions as null values so they can be applied to shards
+    private void replayChanges(File file, Map<String, Note> changes) {
+        replayLog(file, new RecordHandler() {
+            @Override
+            public void put(byte[] data, int offset, int length) throws IOException {
+                for (Note note : NoteCodec.decode(data, offset, length)) {
+                    changes.put(note.getId(), note);
+                }
+            }
+
+            @Override
+            public void delete(String noteId) {
+                changes.put(noteId, null);
+            }
+        });
+    }
+
+    private int replayLog(File file, RecordHandler handler) {
+        byte[] data = readFile(file);
+        if (data == null) return 0;
+        if (!hasMagic(ByteBuffer.wrap(data), LOG_MAGIC)) {
+            // Nothing after a damaged header can be trusted
+            Log.e(TAG, "Unrecognized journal " + file.getName() + ", ignoring it");
+            if (file.equals(logFile)) {
+                truncate(file, 0);
+            }
+            return 0;
+        }
+        NoteCodec.Input in = new NoteCodec.Input(data, LOG_MAGIC.length, data.length);
+        int records = 0;
+        while (in.pos < data.length) {
+            int start = in.pos;
+            int next;
+            try {
+                int end = in.recordEnd();
+                int recordStart = in.pos;
+                in.pos = end;
+                in.verifyChecksum(recordStart);
+                next = in.pos;
+                in.pos = recordStart;
+                int op = in.readByte();
+                if (op == OP_PUT) {
+                    handler.put(data, in.pos, end - in.pos);
+                } else if (op == OP_DELETE) {
+                    handler.delete(in.readString());
+                }
+            } catch (IOException e) {
+                // A torn last record from an interrupted append; everything before it is intact
+                Log.w(TAG, "Skipping unreadable journal record in " + file.getName() + " at " + start);
+                if (file.equals(logFile)) {
+                    truncate(file, start);
+                }
+                break;
+            }
+            in.pos = next;
+            records++;
+        }
+        return records;
+    }
+
+    // Cuts a damaged end off the live log so later appends aren't hidden behind it
+    private void truncate(File file, long length) {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error truncating " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Adds where each note's record ends up to index
+    private void writeShard(File file, int month, Collection<Note> notes, Map<String, IndexEntry> index)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        byte[] data = NoteCodec.encode(notes, (note, offset, length) ->
+                index.put(note.getId(), new IndexEntry(month, SNAPSHOT_MAGIC.length + offset, length)));
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(SNAPSHOT_MAGIC);
+            out.write(data);
+            out.getFD().sync();
+        }
+        Log.d(TAG, "Wrote " + notes.size() + " notes (" + data.length + " bytes) to " + file.getName()
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static boolean hasMagic(ByteBuffer data, byte[] magic) {
+        if (data.limit() < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (data.get(i) != magic[i]) return false;
+        }
+        return true;
+    }
+
+    // The mapping stays valid after the channel is closed, and after the file is replaced
+    private static ByteBuffer mapFile(File file) {
+        if (!file.exists()) return null;
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Log.e(TAG, "Error mapping " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] readRange(File file, long offset, int length) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[length];
+            in.seek(offset);
+            in.readFully(data);
+            return data;
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        if (!file.exists()) return null;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return read == data.length ? data : Arrays.copyOf(data, read);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Shard files carry the sequence of their manifest, so new ones are numbered past both
+    // manifests on disk
+    private void loadSequence() {
+        if (sequenceLoaded) return;
+        sequenceLoaded = true;
+        for (File file : new File[]{manifestFile, previousManifestFile}) {
+            Manifest manifest = readManifest(file);
+            if (manifest != null) {
+                sequence = Math.max(sequence, manifest.sequence);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.skydiary;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of NoteStorage.getNotesPage(): summaries in display order, and the cursor to pass
+ * back for the page after them.
+ */
+public class NotePage {
+    private final List<NoteSummary> notes;
+    private final String nextCursor;
+
+    public NotePage(List<NoteSummary> notes, String nextCursor) {
+        this.notes = Collections.unmodifiableList(notes);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<NoteSummary> getNotes() {
+        return notes;
+    }
+
+    /**
+     * Null once the end of the list is reached. A full page always gets a cursor, so the
+     * page after it may turn out empty.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
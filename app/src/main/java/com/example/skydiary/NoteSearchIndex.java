@@ -0,0 +1,249 @@
+package com.example.skydiary;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over note names and text for the notes list search.
+ *
+ * Text is split into words, Unicode-normalized (compatibility decomposition, accents dropped)
+ * and lower-cased; a search keyword matches every word it occurs in, so "night" finds
+ * "midnight". Every suffix of every distinct word is kept in a sorted map, so the words a
+ * keyword occurs in are the ones with a suffix starting with it: one range of the map
+ * (subMap), found by binary search instead of by looking through the whole vocabulary. Each
+ * matching word then leads to its notes through the postings. Methods are synchronized on
+ * the index itself, because it is saved from NoteStorage's writer thread.
+ */
+class NoteSearchIndex {
+    private static final String TAG = "NoteSearchIndex";
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Word -> ids of the notes it occurs in
+    private final Map<String, Set<String>> postings = new HashMap<>();
+    // Suffix -> the words ending with it, e.g. "ight" -> {"night", "midnight"}
+    private final TreeMap<String, Set<String>> suffixes = new TreeMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    // What is indexed for one note; this is also what gets saved
+    private static class Entry {
+        // Epoch millis
+        long updatedAt;
+        List<String> terms;
+
+        Entry(long updatedAt, List<String> terms) {
+            this.updatedAt = updatedAt;
+            this.terms = terms;
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) return tokens;
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        normalized = COMBINING_MARKS.matcher(normalized).replaceAll("").toLowerCase(Locale.ROOT);
+        for (String token : WORD_SEPARATORS.split(normalized)) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /** Indexes a note, replacing what was indexed for it before. Deleted notes are dropped. */
+    synchronized void update(Note note) {
+        if (note.isDeleted()) {
+            remove(note.getId());
+            return;
+        }
+        Entry current = entries.get(note.getId());
+        if (current != null && current.updatedAt == note.getUpdatedAtMillis()) return;
+
+        Set<String> terms = new LinkedHashSet<>(tokenize(note.getName()));
+        terms.addAll(tokenize(note.getText()));
+        removePostings(note.getId());
+        addPostings(note.getId(), new Entry(note.getUpdatedAtMillis(), new ArrayList<>(terms)));
+        dirty = true;
+    }
+
+    synchronized void remove(String noteId) {
+        if (removePostings(noteId)) {
+            dirty = true;
+        }
+    }
+
+    /** True if the note is indexed as of the given updatedAt stamp. */
+    synchronized boolean isCurrent(String noteId, long updatedAt) {
+        Entry entry = entries.get(noteId);
+        return entry != null && entry.updatedAt == updatedAt;
+    }
+
+    synchronized Set<String> getNoteIds() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * Ids of the notes in which every word of the query occurs in some word of the name or
+     * text. An empty query matches nothing.
+     */
+    synchronized Set<String> search(String query) {
+        List<String> keywords = tokenize(query);
+        if (keywords.isEmpty()) return Collections.emptySet();
+
+        Set<String> result = null;
+        for (String keyword : keywords) {
+            Set<String> matches = new HashSet<>();
+            Set<String> seenTerms = new HashSet<>();
+            for (Set<String> terms : suffixes.subMap(keyword, keyword + Character.MAX_VALUE).values()) {
+                for (String term : terms) {
+                    // A word like "nightnight" has several suffixes starting with "night"
+                    if (!seenTerms.add(term)) continue;
+                    Set<String> ids = postings.get(term);
+                    if (result == null) {
+                        matches.addAll(ids);
+                    } else {
+                        // Only what every earlier keyword matched can still be a match
+                        for (String id : ids) {
+                            if (result.contains(id)) {
+                                matches.add(id);
+                            }
+                        }
+                    }
+                }
+            }
+            result = matches;
+            if (result.isEmpty()) break;
+        }
+        return result;
+    }
+
+    /** Writes the index to the file if it changed since it was loaded or last saved. */
+    void save(File file) {
+        Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) return;
+            snapshot = new HashMap<>(entries);
+            dirty = false;
+        }
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+            new GsonBuilder().create().toJson(snapshot, writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving search index: " + e.getMessage());
+            markDirty();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Could not replace " + file);
+            markDirty();
+        }
+    }
+
+    private synchronized void markDirty() {
+        dirty = true;
+    }
+
+    /** Reads a saved index, or returns an empty one if there is none or it can't be read. */
+    static NoteSearchIndex load(File file) {
+        NoteSearchIndex index = new NoteSearchIndex();
+        if (!file.exists()) return index;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            Type mapType = new TypeToken<Map<String, Entry>>() {}.getType();
+            Map<String, Entry> saved = new Gson().fromJson(reader, mapType);
+            if (saved != null) {
+                for (Map.Entry<String, Entry> entry : saved.entrySet()) {
+                    if (entry.getValue() != null && entry.getValue().terms != null) {
+                        index.addPostings(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading search index: " + e.getMessage());
+            return new NoteSearchIndex();
+        }
+        return index;
+    }
+
+    private void addPostings(String noteId, Entry entry) {
+        entries.put(noteId, entry);
+        for (String term : entry.terms) {
+            Set<String> ids = postings.get(term);
+            if (ids == null) {
+                ids = new HashSet<>();
+                postings.put(term, ids);
+                addSuffixes(term);
+            }
+            ids.add(noteId);
+        }
+    }
+
+    private void addSuffixes(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            String suffix = term.substring(i);
+            Set<String> terms = suffixes.get(suffix);
+            if (terms == null) {
+                terms = new HashSet<>(2);
+                suffixes.put(suffix, terms);
+            }
+            terms.add(term);
+        }
+    }
+
+    private void removeSuffixes(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            String suffix = term.substring(i);
+            Set<String> terms = suffixes.get(suffix);
+            if (terms == null) continue;
+            terms.remove(term);
+            if (terms.isEmpty()) {
+                suffixes.remove(suffix);
+            }
+        }
+    }
+
+    private boolean removePostings(String noteId) {
+        Entry entry = entries.remove(noteId);
+        if (entry == null) return false;
+        for (String term : entry.terms) {
+            Set<String> ids = postings.get(term);
+            if (ids == null) continue;
+            ids.remove(noteId);
+            if (ids.isEmpty()) {
+                postings.remove(term);
+                removeSuffixes(term);
+            }
+        }
+        return true;
+    }
+}
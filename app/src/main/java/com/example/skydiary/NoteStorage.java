@@ -3,6 +3,8 @@ package com.example.skydiary;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.google.gson.Gson;
@@ -15,27 +17,295 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class NoteStorage {
+
+    public interface OnNotesChangedListener {
+        void onNotesChanged(NoteChangeEvent event);
+    }
+
+    public interface BatchMutator {
+        void mutate(Batch batch);
+    }
+
+    /**
+     * Changes collected by a BatchMutator. Nothing is applied until the mutator returns, and
+     * nothing at all if it throws. Only valid inside batch().
+     */
+    public final class Batch {
+        // Changed notes by id, owned by the batch until they are applied
+        private final Map<String, Note> changed = new LinkedHashMap<>();
+        // Renames ({old, new}) and deletions ({tag, null}) of saved tags, in order
+        private final List<String[]> tagChanges = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        /** The note as the batch has left it so far, as a detached copy; null if unknown. */
+        public Note get(String noteId) {
+            Note note = peek(noteId);
+            return note != null ? new Note(note) : null;
+        }
+
+        /** Adds the note or replaces the stored one with the same id. */
+        public void put(Note note) {
+            changed.put(note.getId(), new Note(note));
+        }
+
+        /** Marks the note deleted, like deleteNote(). */
+        public void delete(String noteId) {
+            Note note = peek(noteId);
+            if (note != null && !note.isDeleted()) {
+                edit(noteId).setDeleted(true);
+            }
+        }
+
+        public void addTag(String noteId, String tag) {
+            Note note = peek(noteId);
+            if (note != null && !note.getTags().contains(tag)) {
+                edit(noteId).addTag(tag);
+            }
+        }
+
+        public void removeTag(String noteId, String tag) {
+            Note note = peek(noteId);
+            if (note != null && note.getTags().contains(tag)) {
+                edit(noteId).removeTag(tag);
+            }
+        }
+
+        /** Renames the tag in the saved tag list and on every note carrying it. */
+        public void renameTag(String oldTag, String newTag) {
+            for (String noteId : noteIdsWithTag(oldTag)) {
+                Note note = edit(noteId);
+                note.removeTag(oldTag);
+                note.addTag(newTag);
+            }
+            tagChanges.add(new String[]{oldTag, newTag});
+        }
+
+        /** Removes the tag from the saved tag list and from every note carrying it. */
+        public void deleteTag(String tag) {
+            for (String noteId : noteIdsWithTag(tag)) {
+                edit(noteId).removeTag(tag);
+            }
+            tagChanges.add(new String[]{tag, null});
+        }
+
+        // The note as the batch has left it so far; not to be changed
+        private Note peek(String noteId) {
+            Note note = changed.get(noteId);
+            return note != null ? note : loadNote(noteId);
+        }
+
+        // The batch's own copy of the note, made on first change
+        private Note edit(String noteId) {
+            Note note = changed.get(noteId);
+            if (note == null) {
+                Note stored = loadNote(noteId);
+                if (stored == null) return null;
+                note = new Note(stored);
+                changed.put(noteId, note);
+            }
+            return note;
+        }
+
+        // Ids of notes carrying the tag, counting changes already made in this batch
+        private Set<String> noteIdsWithTag(String tag) {
+            Set<String> ids = new LinkedHashSet<>(tagIndex.getNoteIds(tag));
+            for (Note note : changed.values()) {
+                if (note.getTags().contains(tag) && !note.isDeleted()) {
+                    ids.add(note.getId());
+                } else {
+                    ids.remove(note.getId());
+                }
+            }
+            return ids;
+        }
+    }
+
+    // Orders for getNotesPage()
+    public static final int SORT_DATE_DESC = 0; // Newest first
+    public static final int SORT_DATE_ASC = 1;  // Oldest first
+    public static final int SORT_ALPHA_ASC = 2; // A–Z by name
+
+    /** Engines for setEngine(): the append-only NoteJournal (the default) or the SQLite NoteDatabase. */
+    public static final String ENGINE_JOURNAL = "journal";
+    public static final String ENGINE_SQLITE = "sqlite";
+
     private static final String TAG = "NoteStorage";
     private static final String PREFS_NAME = "notes_prefs";
+    // The selected engine is kept apart from PREFS_NAME, which clearAllNotes() wipes
+    private static final String ENGINE_PREFS_NAME = "note_engine";
+    private static final String ENGINE_KEY = "engine";
     private static final String NOTES_KEY = "notes";
     private static final String DELETED_NOTES_KEY = "deleted_notes";
+    // Highest change sequence the cloud has acknowledged, and for which user
     private static final String LAST_SYNC_KEY = "last_sync";
+    private static final String LAST_SYNC_USER_KEY = "last_sync_user";
+    // Where the last pull from the cloud stopped (see getPullCursor()), and for which user
+    private static final String PULL_SECONDS_KEY = "pull_cursor_seconds";
+    private static final String PULL_NANOS_KEY = "pull_cursor_nanos";
+    private static final String PULL_DOCUMENT_KEY = "pull_cursor_document";
+    private static final String PULL_USER_KEY = "pull_cursor_user";
+    // The user whose cloud notes no longer have string dates (see SyncManager.pullChanges())
+    private static final String DATES_MIGRATED_USER_KEY = "dates_migrated_user";
     private static final String TAGS_KEY = "tags";
 
+    // Changes to the same note within this window reach the store as a single write
+    static final long WRITE_BEHIND_DELAY_MS = 300;
+    // A write the store failed stays queued and is tried again after this long
+    static final long WRITE_RETRY_DELAY_MS = 5000;
+    // Upper bound for flush() so a stuck disk can't freeze the caller indefinitely
+    static final long FLUSH_TIMEOUT_MS = 5000;
+
+    // The search index is saved next to the journal, in the same directory
+    private static final String SEARCH_INDEX_FILE = "notes/search_index.json";
+    // The whole index is rewritten on save, so saves are spaced out more than note writes
+    private static final long SEARCH_INDEX_SAVE_DELAY_MS = 5000;
+
+    // A deleted note is kept as a tombstone until its deletion has been uploaded, or for this
+    // long if it never is (e.g. the user isn't signed in)
+    private static final long TOMBSTONE_RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+    // Deletions still owed to the cloud for tombstones purged before they were uploaded, as
+    // "id\ndeletedAt" strings (see getPendingCloudDeletions())
+    private static final String PENDING_DELETIONS_KEY = "pending_cloud_deletions";
+
     private static NoteStorage instance;
     private final SharedPreferences prefs;
     private final Gson gson;
     private final Context context;
+    private final NoteStore store;
+    // The engine that isn't selected; notes still in it move to store on first use (see setEngine())
+    private final NoteStore otherEngine;
+    // Set once the store is known to hold the notes, so reads stop checking for migrations
+    private boolean migrationChecked;
+
+    // Full notes are loaded one at a time from the store; this many recently used ones stay in memory
+    private static final int NOTE_CACHE_SIZE = 32;
+
+    // Recently used full notes, least recently used first
+    private final Map<String, Note> notesCache = new LinkedHashMap<String, Note>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Note> eldest) {
+            return size() > NOTE_CACHE_SIZE;
+        }
+    };
+    // Summaries of every note for the lists, streamed from the store without the note bodies
+    // and kept in step with every write; null means the next access loads them again.
+    private Map<String, NoteSummary> summaryCache;
+    // Built together with summaryCache and updated with it
+    private NoteTagIndex tagIndex;
+    private NoteTimeIndex timeIndex;
+    // Active summaries ordered by name, built on the first alphabetical page after a change
+    private List<NoteSummary> nameOrder;
+    // Loaded from SEARCH_INDEX_FILE on the first search and brought up to date from then on
+    private volatile NoteSearchIndex searchIndex;
+    private final File searchIndexFile;
+    private long cacheHits;
+    private long cacheMisses;
+    // Last change sequence stamped on a note (see Note.getChangeSeq()). Starts above every
+    // stored one and above the sync watermark, so a new change is never taken for synced.
+    private long changeSeq;
+
+    // Write-behind queue. Only storeWriter touches the store's write methods, so writes land
+    // in the order they were queued. Queued notes are never modified afterwards: cache
+    // entries are replaced with new copies, not changed in place.
+    private final ScheduledExecutorService storeWriter = Executors.newSingleThreadScheduledExecutor();
+    private final Object pendingLock = new Object();
+    private final Map<String, Note> pendingWrites = new LinkedHashMap<>();
+    // Set by clearAllNotes(); applied before the pending writes queued after it
+    private boolean pendingClear;
+    // Purged tombstones to remove from the store
+    private final Set<String> pendingDeletes = new LinkedHashSet<>();
+    // Taken from the queue by a drain that is still writing them; reads must not miss these either
+    private Map<String, Note> writingNotes = new LinkedHashMap<>();
+    private Set<String> writingDeletes = new HashSet<>();
+    private boolean writingClear;
+    private boolean drainScheduled;
+    private boolean searchIndexSaveScheduled;
+
+    // Tombstone purges read notes and delete image files, so they run here. This thread may
+    // take the NoteStorage lock; storeWriter never does.
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor();
+    private boolean expiredTombstonesChecked;
+    private long purgedTombstoneCount;
+    private long reclaimedBytes;
+
+    // Change notification. version goes up with every change; changes are collected into one
+    // event until the main thread gets to deliver it.
+    private final List<OnNotesChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private final Executor mainThread;
+    private long version;
+    private Set<String> changedInserted = new LinkedHashSet<>();
+    private Set<String> changedUpdated = new LinkedHashSet<>();
+    private Set<String> changedDeleted = new LinkedHashSet<>();
+    private boolean changedTags;
+    private boolean changedAll;
+    private boolean dispatchPosted;
 
     private NoteStorage(Context context) {
+        this(context, openEngine(context, getEngine(context)),
+                openEngine(context, ENGINE_SQLITE.equals(getEngine(context)) ? ENGINE_JOURNAL : ENGINE_SQLITE),
+                new Handler(Looper.getMainLooper())::post);
+    }
+
+    // Tests pass their own store, and an executor standing in for the main thread's queue
+    NoteStorage(Context context, NoteStore store, Executor mainThread) {
+        this(context, store, null, mainThread);
+    }
+
+    NoteStorage(Context context, NoteStore store, NoteStore otherEngine, Executor mainThread) {
         this.context = context.getApplicationContext();
         this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         this.gson = new GsonBuilder().create();
+        this.store = store;
+        this.otherEngine = otherEngine;
+        this.mainThread = mainThread;
+        this.searchIndexFile = new File(this.context.getFilesDir(), SEARCH_INDEX_FILE);
+    }
+
+    private static NoteStore openEngine(Context context, String engine) {
+        return ENGINE_SQLITE.equals(engine) ? new NoteDatabase(context) : new NoteJournal(context);
+    }
+
+    /** The engine notes are stored with, one of the ENGINE_ constants. */
+    public static String getEngine(Context context) {
+        return context.getSharedPreferences(ENGINE_PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(ENGINE_KEY, ENGINE_JOURNAL);
+    }
+
+    /**
+     * Selects the engine notes are stored with from the next app start on. The notes in the
+     * engine used so far are moved over when they are first read then.
+     */
+    public static void setEngine(Context context, String engine) {
+        if (!ENGINE_JOURNAL.equals(engine) && !ENGINE_SQLITE.equals(engine)) {
+            throw new IllegalArgumentException("Unknown note engine: " + engine);
+        }
+        context.getSharedPreferences(ENGINE_PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(ENGINE_KEY, engine)
+                .apply();
     }
 
     public static synchronized NoteStorage getInstance(Context context) {
@@ -45,12 +315,124 @@ public class NoteStorage {
         return instance;
     }
 
-    public List<Note> getAllNotes() {
+    // The full note from the cache, the write queue or the store. Cached notes are shared:
+    // callers copy before handing one out.
+    private Note getNote(String noteId) {
+        Note note = notesCache.get(noteId);
+        if (note != null) {
+            cacheHits++;
+            return note;
+        }
+        cacheMisses++;
+        note = loadNote(noteId);
+        if (note != null) {
+            notesCache.put(noteId, note);
+        }
+        return note;
+    }
+
+    // Like getNote() without touching the cache, for reading many notes once (reindexing)
+    private Note loadNote(String noteId) {
+        Note note = notesCache.get(noteId);
+        if (note != null) return note;
+        synchronized (pendingLock) {
+            if (pendingDeletes.contains(noteId)) return null;
+            note = pendingWrites.get(noteId);
+            if (note != null) return note;
+            // A queued clear empties the store, including whatever is being written before it
+            if (pendingClear || writingDeletes.contains(noteId)) return null;
+            note = writingNotes.get(noteId);
+            if (note != null || writingClear) return note;
+        }
+        long start = System.nanoTime();
+        migrateIfNeeded();
+        note = store.loadNote(noteId);
+        Log.d(TAG, "Loaded note " + noteId + " in " + (System.nanoTime() - start) / 1000 + " us");
+        return note;
+    }
+
+    private Map<String, NoteSummary> getCachedSummaries() {
+        if (summaryCache != null) return summaryCache;
+
+        long start = System.currentTimeMillis();
+        migrateIfNeeded();
+        QueuedChanges queued = getQueuedChanges();
+        indexSummaries(queued.applyToSummaries(queued.cleared ? new ArrayList<>() : store.loadSummaries()));
+        Log.d(TAG, "Loaded " + summaryCache.size() + " note summaries in "
+                + (System.currentTimeMillis() - start) + " ms");
+        if (!expiredTombstonesChecked) {
+            expiredTombstonesChecked = true;
+            maintenance.execute(this::purgeExpiredTombstones);
+        }
+        if (searchIndex == null) {
+            maintenance.execute(this::loadSearchIndex);
+        }
+        return summaryCache;
+    }
+
+    private void indexSummaries(List<NoteSummary> summaries) {
+        summaryCache = new LinkedHashMap<>();
+        tagIndex = new NoteTagIndex();
+        timeIndex = new NoteTimeIndex();
+        nameOrder = null;
+        changeSeq = Math.max(changeSeq, prefs.getLong(LAST_SYNC_KEY, 0));
+        for (NoteSummary summary : summaries) {
+            summaryCache.put(summary.getId(), summary);
+            tagIndex.update(summary);
+            timeIndex.update(summary);
+            changeSeq = Math.max(changeSeq, summary.getChangeSeq());
+        }
+    }
+
+    // Returns the summary it replaced
+    private NoteSummary cacheSummary(Note note) {
+        NoteSummary summary = NoteSummary.from(note);
+        NoteSummary previous = getCachedSummaries().put(note.getId(), summary);
+        tagIndex.update(summary);
+        timeIndex.update(summary);
+        nameOrder = null;
+        return previous;
+    }
+
+    // Fills an empty store from the other engine after setEngine(), or from the legacy blob
+    private void migrateIfNeeded() {
+        if (migrationChecked) return;
+        if (!store.exists()) {
+            if (otherEngine != null && otherEngine.exists()) {
+                if (!migrateFromOtherEngine()) return;
+            } else if (prefs.contains(NOTES_KEY)) {
+                if (!migrateLegacyNotes()) return;
+            }
+        }
+        migrationChecked = true;
+    }
+
+    // The other engine is emptied only once its notes are written here, so an interrupted
+    // move is simply made again
+    private boolean migrateFromOtherEngine() {
+        long start = System.currentTimeMillis();
+        List<Note> notes = otherEngine.load();
+        if (!store.replaceAll(notes)) return false;
+        otherEngine.clear();
+        Log.d(TAG, "Moved " + notes.size() + " notes to the selected engine in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    // One-time move of the old single-string blob into the note store
+    private boolean migrateLegacyNotes() {
+        List<Note> legacyNotes = readLegacyNotes();
+        if (!store.replaceAll(legacyNotes)) return false;
+        prefs.edit().remove(NOTES_KEY).apply();
+        Log.d(TAG, "Migrated " + legacyNotes.size() + " notes from preferences to the note store");
+        return true;
+    }
+
+    private List<Note> readLegacyNotes() {
         try {
             String json = prefs.getString(NOTES_KEY, "[]");
             Type listType = new TypeToken<List<Note>>() {}.getType();
             List<Note> notes = gson.fromJson(json, listType);
-            Log.d(TAG, "getAllNotes() returning " + (notes != null ? notes.size() : 0) + " notes");
             return notes != null ? notes : new ArrayList<>();
         } catch (Exception e) {
             Log.e(TAG, "Error reading notes: " + e.getMessage());
@@ -58,142 +440,1092 @@ public class NoteStorage {
         }
     }
 
-    public List<Note> getNotes() {
-        List<Note> allNotes = getAllNotes();
-        List<Note> activeNotes = new ArrayList<>();
-        for (Note note : allNotes) {
-            if (!note.isDeleted()) {
-                activeNotes.add(note);
+    private void queueWrite(Note note) {
+        synchronized (pendingLock) {
+            pendingDeletes.remove(note.getId());
+            pendingWrites.put(note.getId(), note);
+            scheduleDrain();
+        }
+    }
+
+    private void queueWrites(Collection<Note> notes) {
+        synchronized (pendingLock) {
+            for (Note note : notes) {
+                pendingDeletes.remove(note.getId());
+                pendingWrites.put(note.getId(), note);
             }
+            scheduleDrain();
         }
-        return activeNotes;
     }
 
-    public void addNote(Note note) {
-        List<Note> allNotes = getAllNotes();
-        allNotes.add(note);
-        saveNotes(allNotes);
+    private void queueDelete(String noteId) {
+        synchronized (pendingLock) {
+            pendingWrites.remove(noteId);
+            pendingDeletes.add(noteId);
+            scheduleDrain();
+        }
     }
 
-    public void saveNotes(List<Note> notes) {
-        String json = gson.toJson(notes);
-        prefs.edit().putString(NOTES_KEY, json).apply();
+    // Called with pendingLock held
+    private void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            storeWriter.schedule(this::drainPendingWrites, WRITE_BEHIND_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
     }
 
-    public List<Note> getNotesByDate(long dateStartMs, long dateEndMs) {
-        List<Note> filtered = new ArrayList<>();
-        for (Note note : getNotes()) {
-            long ts = note.getTimestamp();
-            if (ts >= dateStartMs && ts < dateEndMs) {
-                filtered.add(note);
-            }
+    private void queueClear() {
+        synchronized (pendingLock) {
+            // Writes queued so far are superseded by the clear
+            pendingWrites.clear();
+            pendingDeletes.clear();
+            pendingClear = true;
+            storeWriter.execute(this::drainPendingWrites);
         }
-        return filtered;
     }
 
-    public void updateNote(Note currentNote) {
-        List<Note> allNotes = getAllNotes();
-        boolean found = false;
-        for (int i = 0; i < allNotes.size(); i++) {
-            if (allNotes.get(i).getId().equals(currentNote.getId())) {
-                allNotes.set(i, currentNote);
-                found = true;
-                break;
+    // Runs on storeWriter only
+    private void drainPendingWrites() {
+        List<Note> batch;
+        List<String> deletes;
+        boolean clear;
+        synchronized (pendingLock) {
+            drainScheduled = false;
+            batch = new ArrayList<>(pendingWrites.values());
+            deletes = new ArrayList<>(pendingDeletes);
+            clear = pendingClear;
+            writingNotes = new LinkedHashMap<>(pendingWrites);
+            writingDeletes = new HashSet<>(pendingDeletes);
+            writingClear = clear;
+            pendingWrites.clear();
+            pendingDeletes.clear();
+            pendingClear = false;
+        }
+        if (batch.isEmpty() && deletes.isEmpty() && !clear) return;
+
+        long start = System.currentTimeMillis();
+        boolean cleared = !clear;
+        boolean written = false;
+        int deleted = 0;
+        try {
+            if (clear) {
+                store.clear();
+                cleared = true;
             }
+            written = batch.isEmpty() || store.putAll(batch);
+            while (written && deleted < deletes.size() && store.delete(deletes.get(deleted))) {
+                deleted++;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing notes: " + e.getMessage());
         }
-        if (!found) {
-            allNotes.add(currentNote);
+        boolean failed = !cleared || !written || deleted < deletes.size();
+        synchronized (pendingLock) {
+            if (failed) {
+                requeue(!cleared, written ? Collections.emptyList() : batch,
+                        deletes.subList(deleted, deletes.size()));
+            }
+            writingNotes = new LinkedHashMap<>();
+            writingDeletes = new HashSet<>();
+            writingClear = false;
         }
-        saveNotes(allNotes);
+        if (failed) return;
+        Log.d(TAG, "Wrote " + batch.size() + " notes and removed " + deletes.size() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
     }
 
-    public Set<String> getAllTags() {
-        Set<String> tags = new HashSet<>();
-        List<Note> notes = getNotes();
+    // Called with pendingLock held, after a drain failed to write these. Whatever was queued
+    // since the drain started is newer and wins over them.
+    private void requeue(boolean clear, List<Note> notes, List<String> deletes) {
+        if (pendingClear) return;
+        Map<String, Note> writes = new LinkedHashMap<>();
         for (Note note : notes) {
-            if (note.getTags() != null) {
-                tags.addAll(note.getTags());
+            if (!pendingDeletes.contains(note.getId())) {
+                writes.put(note.getId(), note);
+            }
+        }
+        writes.putAll(pendingWrites);
+        pendingWrites.clear();
+        pendingWrites.putAll(writes);
+        for (String noteId : deletes) {
+            if (!pendingWrites.containsKey(noteId)) {
+                pendingDeletes.add(noteId);
+            }
+        }
+        pendingClear = clear;
+        Log.w(TAG, "Retrying " + (clear ? "the clear, " : "") + notes.size() + " notes and "
+                + deletes.size() + " deletes in " + WRITE_RETRY_DELAY_MS + " ms");
+        if (!drainScheduled) {
+            drainScheduled = true;
+            storeWriter.schedule(this::drainPendingWrites, WRITE_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Changes that may not have reached the store yet, for reads that go to it directly
+    private QueuedChanges getQueuedChanges() {
+        QueuedChanges queued = new QueuedChanges();
+        synchronized (pendingLock) {
+            queued.cleared = pendingClear || writingClear;
+            // A pending clear drops what is being written now, so only what came after it counts
+            if (!pendingClear) {
+                queued.add(writingNotes, writingDeletes);
             }
+            queued.add(pendingWrites, pendingDeletes);
         }
+        return queued;
+    }
+
+    // Runs on the maintenance thread once summaries are loaded, or on the thread of a search
+    // that comes first. Reading the saved index and the bodies of notes changed since it was
+    // saved happen without the NoteStorage lock, so the lists aren't held up; only catching up
+    // with changes made meanwhile takes it.
+    private NoteSearchIndex loadSearchIndex() {
+        NoteSearchIndex loaded = searchIndex;
+        if (loaded != null) return loaded;
+        long start = System.currentTimeMillis();
+        NoteSearchIndex index = NoteSearchIndex.load(searchIndexFile);
+        int reindexed = 0;
+        for (String noteId : getOutdatedSearchIds(index)) {
+            Note note = store.loadNote(noteId);
+            if (note != null) {
+                index.update(note);
+                reindexed++;
+            }
+        }
+        synchronized (this) {
+            if (searchIndex != null) return searchIndex;
+            reindexed += updateSearchIndex(index);
+            searchIndex = index;
+        }
+        Log.d(TAG, "Loaded search index in " + (System.currentTimeMillis() - start)
+                + " ms (" + reindexed + " notes reindexed)");
+        scheduleSearchIndexSave();
+        return index;
+    }
+
+    private synchronized List<String> getOutdatedSearchIds(NoteSearchIndex index) {
+        List<String> ids = new ArrayList<>();
+        for (NoteSummary summary : getCachedSummaries().values()) {
+            if (!summary.isDeleted() && !index.isCurrent(summary.getId(), summary.getUpdatedAt())) {
+                ids.add(summary.getId());
+            }
+        }
+        return ids;
+    }
+
+    // Drops notes that are gone and reindexes the ones changed since the index was saved;
+    // returns how many were reindexed
+    private int updateSearchIndex(NoteSearchIndex index) {
+        Map<String, NoteSummary> summaries = getCachedSummaries();
+        for (String id : index.getNoteIds()) {
+            NoteSummary summary = summaries.get(id);
+            if (summary == null || summary.isDeleted()) {
+                index.remove(id);
+            }
+        }
+        // Only notes changed since the index was saved need their bodies loaded
+        int reindexed = 0;
+        for (NoteSummary summary : summaries.values()) {
+            if (summary.isDeleted() || index.isCurrent(summary.getId(), summary.getUpdatedAt())) continue;
+            Note note = loadNote(summary.getId());
+            if (note != null) {
+                index.update(note);
+                reindexed++;
+            }
+        }
+        return reindexed;
+    }
+
+    private void scheduleSearchIndexSave() {
+        synchronized (pendingLock) {
+            if (searchIndexSaveScheduled) return;
+            searchIndexSaveScheduled = true;
+            storeWriter.schedule(this::saveSearchIndex, SEARCH_INDEX_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Runs on storeWriter only
+    private void saveSearchIndex() {
+        synchronized (pendingLock) {
+            searchIndexSaveScheduled = false;
+        }
+        NoteSearchIndex index = searchIndex;
+        if (index != null) {
+            index.save(searchIndexFile);
+        }
+    }
+
+    /**
+     * Starts writing queued changes now instead of waiting for the write-behind window,
+     * without blocking the caller. Meant for onPause().
+     */
+    public void requestFlush() {
+        storeWriter.execute(this::drainPendingWrites);
+    }
+
+    /**
+     * Blocks until every change made so far is in the note store, e.g. when the app is about
+     * to be stopped. Reads through NoteStorage see queued changes without this, so never call
+     * it from the main thread.
+     */
+    public void flush() {
+        Future<?> drained = storeWriter.submit(() -> {
+            drainPendingWrites();
+            saveSearchIndex();
+        });
+        try {
+            drained.get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Log.e(TAG, "Error flushing notes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Listeners are called on the main thread. Register in onStart() and unregister in onStop().
+     */
+    public void addOnNotesChangedListener(OnNotesChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnNotesChangedListener(OnNotesChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Increases with every change to notes or tags, so a screen can tell whether anything
+     * happened since it last loaded.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // Called with the lock held
+    private void recordNoteChange(NoteSummary previous, Note stored) {
+        if (collectNoteChange(previous, stored)) {
+            recordChange();
+        }
+    }
+
+    // Adds the change to the next event without bumping the version; false if the note
+    // wasn't visible before or after
+    private boolean collectNoteChange(NoteSummary previous, Note stored) {
+        boolean wasVisible = previous != null && !previous.isDeleted();
+        if (stored.isDeleted()) {
+            if (!wasVisible) return false;
+            changedDeleted.add(stored.getId());
+            changedTags |= !previous.getTags().isEmpty();
+        } else if (!wasVisible) {
+            changedInserted.add(stored.getId());
+            changedTags |= !stored.getTags().isEmpty();
+        } else {
+            changedUpdated.add(stored.getId());
+            changedTags |= !previous.getTags().equals(stored.getTags());
+        }
+        return true;
+    }
+
+    // Called with the lock held
+    private void recordChange() {
+        version++;
+        if (!dispatchPosted) {
+            dispatchPosted = true;
+            mainThread.execute(this::dispatchChange);
+        }
+    }
+
+    private void dispatchChange() {
+        NoteChangeEvent event;
+        synchronized (this) {
+            dispatchPosted = false;
+            event = new NoteChangeEvent(version, changedInserted, changedUpdated, changedDeleted,
+                    changedTags, changedAll);
+            changedInserted = new LinkedHashSet<>();
+            changedUpdated = new LinkedHashSet<>();
+            changedDeleted = new LinkedHashSet<>();
+            changedTags = false;
+            changedAll = false;
+        }
+        for (OnNotesChangedListener listener : listeners) {
+            listener.onNotesChanged(event);
+        }
+    }
+
+    // Called with the lock held, when every note was replaced at once
+    private void recordReset() {
+        changedInserted.clear();
+        changedUpdated.clear();
+        changedDeleted.clear();
+        changedTags = true;
+        changedAll = true;
+        recordChange();
+    }
+
+    /**
+     * Drops the parsed snapshot so the next access re-reads it from the note store.
+     */
+    public synchronized void invalidateCache() {
+        searchIndex = null;
+        notesCache.clear();
+        summaryCache = null;
+        tagIndex = null;
+        timeIndex = null;
+        nameOrder = null;
+    }
+
+    public synchronized long getCacheHitCount() {
+        return cacheHits;
+    }
+
+    public synchronized long getCacheMissCount() {
+        return cacheMisses;
+    }
+
+    /** Tombstones purged since the app started. */
+    public synchronized long getPurgedTombstoneCount() {
+        return purgedTombstoneCount;
+    }
+
+    /** Bytes freed by purging tombstones since the app started: their images plus their encoded records. */
+    public synchronized long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * Reads every note, bodies included, straight from the store; nothing of it is kept in
+     * memory. Meant for sync, which really needs them all - lists should use the summaries.
+     */
+    public synchronized List<Note> getAllNotes() {
+        migrateIfNeeded();
+        QueuedChanges queued = getQueuedChanges();
+        return queued.applyToNotes(queued.cleared ? new ArrayList<>() : store.load());
+    }
+
+    /**
+     * Summaries of all notes that aren't deleted, in stored order.
+     */
+    public synchronized List<NoteSummary> getNoteSummaries() {
+        List<NoteSummary> active = new ArrayList<>();
+        for (NoteSummary summary : getCachedSummaries().values()) {
+            if (!summary.isDeleted()) {
+                active.add(summary);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Summaries of the notes that aren't deleted, oldest first, straight from the time index.
+     */
+    public synchronized List<NoteSummary> getNoteSummariesByTime() {
+        Map<String, NoteSummary> summaries = getCachedSummaries();
+        List<NoteSummary> sorted = new ArrayList<>(timeIndex.size());
+        for (String id : timeIndex.getIds()) {
+            sorted.add(summaries.get(id));
+        }
+        return sorted;
+    }
+
+    /**
+     * Number of notes that aren't deleted.
+     */
+    public synchronized int getActiveNoteCount() {
+        getCachedSummaries();
+        return timeIndex.size();
+    }
+
+    /**
+     * Up to limit summaries of the active notes that pass the filter, in the given SORT_ order,
+     * starting after the note the cursor names (null for the first page). A cursor names a
+     * position in the order rather than an offset, so notes added or removed in between don't
+     * make the next page skip or repeat any. Date orders walk the time index from the cursor;
+     * the name order is sorted once per change and binary searched.
+     */
+    public NotePage getNotesPage(int sortMode, NoteFilter filter, String cursor, int limit) {
+        // Searching may have to wait for the search index; that happens without the lock
+        Set<String> matchingIds = !filter.getQuery().isEmpty() ? findNoteIdsMatching(filter.getQuery()) : null;
+        return buildNotesPage(sortMode, filter, matchingIds, cursor, limit);
+    }
+
+    private synchronized NotePage buildNotesPage(int sortMode, NoteFilter filter, Set<String> matchingIds,
+                                                 String cursor, int limit) {
+        Map<String, NoteSummary> summaries = getCachedSummaries();
+        Set<String> taggedIds = !filter.getTags().isEmpty() ? tagIndex.getNoteIdsWithAllTags(filter.getTags()) : null;
+
+        boolean byName = sortMode == SORT_ALPHA_ASC;
+        boolean descending = !byName && sortMode != SORT_DATE_ASC;
+        List<NoteSummary> names = byName ? getNameOrder() : null;
+        int size = timeIndex.size();
+        int position = descending ? size - 1 : 0;
+        int separator = cursor != null ? cursor.lastIndexOf('\n') : -1;
+        if (separator >= 0) {
+            String key = cursor.substring(0, separator);
+            String id = cursor.substring(separator + 1);
+            if (byName) {
+                position = nameOrderPositionAfter(names, key, id);
+            } else {
+                try {
+                    long timestamp = Long.parseLong(key);
+                    position = descending ? timeIndex.positionOf(timestamp, id) - 1
+                            : timeIndex.positionAfter(timestamp, id);
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Ignoring malformed page cursor: " + cursor);
+                }
+            }
+        } else if (cursor != null) {
+            Log.e(TAG, "Ignoring malformed page cursor: " + cursor);
+        }
+
+        List<NoteSummary> page = new ArrayList<>(Math.min(limit, size));
+        while (page.size() < limit && position >= 0 && position < size) {
+            String id = byName ? names.get(position).getId() : timeIndex.getId(position);
+            position += descending ? -1 : 1;
+            if (matchingIds != null && !matchingIds.contains(id)) continue;
+            if (taggedIds != null && !taggedIds.contains(id)) continue;
+            page.add(summaries.get(id));
+        }
+
+        String nextCursor = null;
+        if (page.size() == limit && position >= 0 && position < size) {
+            NoteSummary last = page.get(page.size() - 1);
+            nextCursor = (byName ? nameKey(last) : Long.toString(last.getTimestamp())) + '\n' + last.getId();
+        }
+        return new NotePage(page, nextCursor);
+    }
+
+    private List<NoteSummary> getNameOrder() {
+        if (nameOrder != null) return nameOrder;
+        Map<String, NoteSummary> summaries = getCachedSummaries();
+        List<NoteSummary> sorted = new ArrayList<>(timeIndex.size());
+        for (String id : timeIndex.getIds()) {
+            sorted.add(summaries.get(id));
+        }
+        Collections.sort(sorted, getSortOrder(SORT_ALPHA_ASC));
+        nameOrder = sorted;
+        return sorted;
+    }
+
+    /** The order getNotesPage() lists notes in for the given SORT_ mode, ties broken by id. */
+    public static Comparator<NoteSummary> getSortOrder(int sortMode) {
+        if (sortMode == SORT_ALPHA_ASC) {
+            return (n1, n2) -> compareByName(n1, nameKey(n2), n2.getId());
+        }
+        Comparator<NoteSummary> oldestFirst = (n1, n2) -> {
+            int result = Long.compare(n1.getTimestamp(), n2.getTimestamp());
+            return result != 0 ? result : n1.getId().compareTo(n2.getId());
+        };
+        return sortMode == SORT_DATE_ASC ? oldestFirst : oldestFirst.reversed();
+    }
+
+    /**
+     * Summaries of those of the given notes that are active and pass the filter, by id, for
+     * a list applying a NoteChangeEvent; the others belong off the list. Searches like
+     * getNotesPage(), so with a query call it off the main thread.
+     */
+    public Map<String, NoteSummary> getMatchingSummaries(NoteFilter filter, Collection<String> noteIds) {
+        Set<String> matchingIds = !filter.getQuery().isEmpty() ? findNoteIdsMatching(filter.getQuery()) : null;
+        synchronized (this) {
+            Map<String, NoteSummary> summaries = getCachedSummaries();
+            Set<String> taggedIds = !filter.getTags().isEmpty() ? tagIndex.getNoteIdsWithAllTags(filter.getTags()) : null;
+            Map<String, NoteSummary> matching = new LinkedHashMap<>();
+            for (String id : noteIds) {
+                NoteSummary summary = summaries.get(id);
+                if (summary == null || summary.isDeleted()) continue;
+                if (matchingIds != null && !matchingIds.contains(id)) continue;
+                if (taggedIds != null && !taggedIds.contains(id)) continue;
+                matching.put(id, summary);
+            }
+            return matching;
+        }
+    }
+
+    // Position of the first summary ordered after the one with this name key and id
+    private static int nameOrderPositionAfter(List<NoteSummary> names, String key, String id) {
+        int low = 0;
+        int high = names.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareByName(names.get(mid), key, id) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compareByName(NoteSummary summary, String key, String id) {
+        int result = nameKey(summary).compareTo(key);
+        return result != 0 ? result : summary.getId().compareTo(id);
+    }
+
+    private static String nameKey(NoteSummary summary) {
+        return summary.getName() != null ? summary.getName().toLowerCase() : "";
+    }
+
+    /**
+     * Summaries of the notes dated within [dateStartMs, dateEndMs), oldest first. Works for
+     * a day, a week or a month alike: it's a binary search in the time index.
+     */
+    public synchronized List<NoteSummary> getNoteSummariesByDate(long dateStartMs, long dateEndMs) {
+        Map<String, NoteSummary> summaries = getCachedSummaries();
+        List<NoteSummary> filtered = new ArrayList<>();
+        for (String id : timeIndex.getIdsInRange(dateStartMs, dateEndMs)) {
+            filtered.add(summaries.get(id));
+        }
+        return filtered;
+    }
+
+    /**
+     * Ids of the notes where every word of the query occurs in a word of the name or text,
+     * ignoring case and accents. See NoteSearchIndex. If the index hasn't been loaded in the
+     * background yet, this loads it first, so call it off the main thread.
+     */
+    public Set<String> findNoteIdsMatching(String query) {
+        NoteSearchIndex index = loadSearchIndex();
+        long start = System.nanoTime();
+        Set<String> ids = index.search(query);
+        Log.d(TAG, "Search matched " + ids.size() + " notes in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        return ids;
+    }
+
+    public synchronized void addNote(Note note) {
+        putNote(new Note(note));
+    }
+
+    public synchronized void updateNote(Note currentNote) {
+        // Replacing the entry keeps its position, so the stored order stays the same as before
+        putNote(new Note(currentNote));
+    }
+
+    /**
+     * Applies any number of note and tag changes at once: readers never see part of them,
+     * the notes reach the store in one write and listeners get a single event. Meant for
+     * bulk actions such as tagging, renaming a tag or deleting many notes.
+     */
+    public synchronized void batch(BatchMutator mutator) {
+        long start = System.nanoTime();
+        getCachedSummaries();
+        Batch batch = new Batch();
+        mutator.mutate(batch);
+
+        boolean changed = false;
+        if (!batch.tagChanges.isEmpty()) {
+            Set<String> tags = new HashSet<>(prefs.getStringSet(TAGS_KEY, new HashSet<>()));
+            boolean tagsChanged = false;
+            for (String[] change : batch.tagChanges) {
+                // A renamed tag takes the old one's place in the saved list, if it had one
+                if (tags.remove(change[0])) {
+                    if (change[1] != null) {
+                        tags.add(change[1]);
+                    }
+                    tagsChanged = true;
+                }
+            }
+            if (tagsChanged) {
+                prefs.edit().putStringSet(TAGS_KEY, tags).apply();
+                changedTags = true;
+                changed = true;
+            }
+        }
+        for (Note stored : batch.changed.values()) {
+            stored.setChangeSeq(++changeSeq);
+            notesCache.put(stored.getId(), stored);
+            NoteSummary previous = cacheSummary(stored);
+            if (searchIndex != null) {
+                searchIndex.update(stored);
+            }
+            changed |= collectNoteChange(previous, stored);
+        }
+        if (!batch.changed.isEmpty()) {
+            if (searchIndex != null) {
+                scheduleSearchIndexSave();
+            }
+            queueWrites(batch.changed.values());
+        }
+        if (changed) {
+            recordChange();
+        }
+        Log.d(TAG, "Applied a batch of " + batch.changed.size() + " notes in "
+                + (System.nanoTime() - start) / 1000 + " us");
+    }
+
+    public synchronized Set<String> getAllTags() {
+        getCachedSummaries();
+        Set<String> tags = new HashSet<>(tagIndex.getTags());
 
         Set<String> savedTags = prefs.getStringSet(TAGS_KEY, new HashSet<>());
         tags.addAll(savedTags);
         return tags;
     }
 
-    public void addTag(String newTag) {
+    /**
+     * Number of notes (not counting deleted ones) carrying the tag.
+     */
+    public synchronized int getNoteCountForTag(String tag) {
+        getCachedSummaries();
+        return tagIndex.getNoteCount(tag);
+    }
+
+    /**
+     * Ids of the notes (not counting deleted ones) carrying every one of the given tags.
+     */
+    public synchronized Set<String> getNoteIdsWithAllTags(Collection<String> tags) {
+        getCachedSummaries();
+        return tagIndex.getNoteIdsWithAllTags(tags);
+    }
+
+    public synchronized void addTag(String newTag) {
         if (newTag == null || newTag.trim().isEmpty()) return;
         Set<String> tags = prefs.getStringSet(TAGS_KEY, new HashSet<>());
         Set<String> newTags = new HashSet<>(tags);
         if (newTags.add(newTag.trim())) {
             prefs.edit().putStringSet(TAGS_KEY, newTags).apply();
+            changedTags = true;
+            recordChange();
         }
     }
 
-    public void deleteTag(String tag) {
+    public synchronized void deleteTag(String tag) {
         if (tag == null) return;
+        batch(batch -> batch.deleteTag(tag.trim()));
+    }
 
-        Set<String> tags = prefs.getStringSet(TAGS_KEY, new HashSet<>());
-        Set<String> newTags = new HashSet<>(tags);
-        if (newTags.remove(tag.trim())) {
-            prefs.edit().putStringSet(TAGS_KEY, newTags).apply();
+    public synchronized void renameTag(String oldTag, String newTag) {
+        if (oldTag == null || newTag == null || newTag.trim().isEmpty()) return;
+        batch(batch -> batch.renameTag(oldTag.trim(), newTag.trim()));
+    }
+
+    // Puts a note owned by the cache (never handed out or changed later) into the caches
+    // and queues its write
+    private void putNote(Note stored) {
+        getCachedSummaries();
+        stored.setChangeSeq(++changeSeq);
+        notesCache.put(stored.getId(), stored);
+        NoteSummary previous = cacheSummary(stored);
+        if (searchIndex != null) {
+            searchIndex.update(stored);
+            scheduleSearchIndexSave();
+        }
+        queueWrite(stored);
+        recordNoteChange(previous, stored);
+    }
+
+    /**
+     * Marks the note deleted. It stays in the store as a tombstone so the deletion can be
+     * uploaded, and is purged afterwards (see purgeSyncedTombstones()).
+     */
+    public void deleteNote(Note note) {
+        if (note == null) return;
+
+        note.setDeleted(true);
+        updateNote(note);
+    }
+
+    /**
+     * Purges the tombstones of the given notes in the background, once sync has uploaded their
+     * deletion. Ids of notes that aren't deleted (anymore) are ignored.
+     */
+    public void purgeSyncedTombstones(Collection<String> noteIds) {
+        if (noteIds.isEmpty()) return;
+        List<String> ids = new ArrayList<>(noteIds);
+        maintenance.execute(() -> purgeTombstones(ids, "synced"));
+    }
+
+    // Runs on maintenance. Tombstones past the retention window go even if they were never
+    // uploaded. If this device syncs with an account, such a deletion is still owed to it and
+    // is kept in PENDING_DELETIONS_KEY for the next upload; without one there's nobody to tell.
+    private void purgeExpiredTombstones() {
+        List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            // Deleted ids used to be collected here as well; the tombstones themselves are enough
+            if (prefs.contains(DELETED_NOTES_KEY)) {
+                prefs.edit().remove(DELETED_NOTES_KEY).apply();
+            }
+            String syncedUser = prefs.getString(LAST_SYNC_USER_KEY, null);
+            long watermark = getSyncWatermark(syncedUser);
+            Set<String> owed = new HashSet<>(prefs.getStringSet(PENDING_DELETIONS_KEY, Collections.emptySet()));
+            int owedBefore = owed.size();
+            long cutoff = System.currentTimeMillis() - TOMBSTONE_RETENTION_MS;
+            for (NoteSummary summary : getCachedSummaries().values()) {
+                if (!summary.isDeleted()) continue;
+                Note note = loadNote(summary.getId());
+                if (note == null) continue;
+                // Tombstones from before deletedAt was kept weren't edited after the deletion
+                long deletedAt = note.getDeletedAtMillis() != 0 ? note.getDeletedAtMillis() : summary.getUpdatedAt();
+                if (deletedAt == 0 || deletedAt >= cutoff) continue;
+                expired.add(summary.getId());
+                if (syncedUser != null && summary.getChangeSeq() > watermark) {
+                    owed.add(summary.getId() + '\n' + deletedAt);
+                }
+            }
+            if (owed.size() != owedBefore) {
+                prefs.edit().putStringSet(PENDING_DELETIONS_KEY, owed).apply();
+                Log.d(TAG, (owed.size() - owedBefore) + " expired tombstones weren't uploaded yet;"
+                        + " their deletions go with the next upload");
+            }
+        }
+        if (!expired.isEmpty()) {
+            purgeTombstones(expired, "expired");
         }
+    }
 
-        List<Note> allNotes = getAllNotes();
-        boolean notesUpdated = false;
-        for (Note note : allNotes) {
-            if (note.getTags() != null && note.getTags().contains(tag)) {
-                note.getTags().remove(tag);
-                notesUpdated = true;
+    /**
+     * Deletions of notes whose tombstones expired before they were uploaded for this user, by
+     * note id with the deletion time in epoch millis. Empty for any other user.
+     */
+    public synchronized Map<String, Long> getPendingCloudDeletions(String uid) {
+        Map<String, Long> deletions = new LinkedHashMap<>();
+        if (uid == null || !uid.equals(prefs.getString(LAST_SYNC_USER_KEY, null))) return deletions;
+        for (String entry : prefs.getStringSet(PENDING_DELETIONS_KEY, Collections.emptySet())) {
+            int separator = entry.lastIndexOf('\n');
+            try {
+                deletions.put(entry.substring(0, separator), Long.parseLong(entry.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Ignoring malformed pending deletion: " + entry);
             }
         }
-        if (notesUpdated) {
-            saveNotes(allNotes);
+        return deletions;
+    }
+
+    /** Forgets pending deletions (see getPendingCloudDeletions()) once they are uploaded. */
+    public synchronized void removePendingCloudDeletions(Collection<String> noteIds) {
+        if (noteIds.isEmpty()) return;
+        Set<String> owed = new HashSet<>(prefs.getStringSet(PENDING_DELETIONS_KEY, Collections.emptySet()));
+        Set<String> ids = new HashSet<>(noteIds);
+        boolean removed = false;
+        for (Iterator<String> it = owed.iterator(); it.hasNext(); ) {
+            String entry = it.next();
+            if (ids.contains(entry.substring(0, Math.max(entry.lastIndexOf('\n'), 0)))) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            prefs.edit().putStringSet(PENDING_DELETIONS_KEY, owed).apply();
         }
     }
 
-    public void renameTag(String oldTag, String newTag) {
-        if (oldTag == null || newTag == null || newTag.trim().isEmpty()) return;
+    // Runs on maintenance. Drops the tombstones from the caches and the store, then deletes
+    // their image files.
+    private void purgeTombstones(List<String> noteIds, String reason) {
+        long start = System.currentTimeMillis();
+        List<String> imagePaths = new ArrayList<>();
+        long recordBytes = 0;
+        int purged = 0;
+        synchronized (this) {
+            Map<String, NoteSummary> summaries = getCachedSummaries();
+            for (String noteId : noteIds) {
+                NoteSummary summary = summaries.get(noteId);
+                if (summary == null || !summary.isDeleted()) continue;
+                Note note = loadNote(noteId);
+                if (note != null) {
+                    recordBytes += NoteCodec.encode(Collections.singletonList(note)).length;
+                    for (NoteImage image : note.getImages()) {
+                        imagePaths.add(image.getImagePath());
+                    }
+                }
+                summaries.remove(noteId);
+                tagIndex.remove(noteId);
+                timeIndex.remove(noteId);
+                notesCache.remove(noteId);
+                queueDelete(noteId);
+                purged++;
+            }
+        }
+        if (purged == 0) return;
 
-        Set<String> tags = prefs.getStringSet(TAGS_KEY, new HashSet<>());
-        Set<String> newTags = new HashSet<>(tags);
-        if (newTags.remove(oldTag.trim())) {
-            newTags.add(newTag.trim());
-            prefs.edit().putStringSet(TAGS_KEY, newTags).apply();
+        long imageBytes = deleteUnusedImageFiles(imagePaths);
+        synchronized (this) {
+            purgedTombstoneCount += purged;
+            reclaimedBytes += recordBytes + imageBytes;
         }
+        Log.d(TAG, "Purged " + purged + " " + reason + " tombstones in " + (System.currentTimeMillis() - start)
+                + " ms, reclaimed " + recordBytes + " record bytes and " + imageBytes + " image bytes"
+                + " (" + imagePaths.size() + " images)");
+    }
 
-        List<Note> allNotes = getAllNotes();
-        boolean notesUpdated = false;
-        for (Note note : allNotes) {
-            if (note.getTags() != null && note.getTags().contains(oldTag)) {
-                note.getTags().remove(oldTag);
-                note.getTags().add(newTag);
-                notesUpdated = true;
+    // Runs on maintenance. Deletes the image files no note refers to any more and returns the
+    // bytes freed. Files can be shared: a pulled image lives in note_images/blob_{key}.jpg,
+    // one file for every note showing the same content (see ImageBlobStore). Tombstones still
+    // count as users; their files go when the last of them is purged.
+    private synchronized long deleteUnusedImageFiles(Collection<String> paths) {
+        Set<String> candidates = new HashSet<>(paths);
+        candidates.remove(null);
+        if (candidates.isEmpty()) return 0;
+        for (NoteSummary summary : getCachedSummaries().values()) {
+            if (summary.getImageCount() == 0) continue;
+            Note note = loadNote(summary.getId());
+            if (note == null) continue;
+            for (NoteImage image : note.getImages()) {
+                candidates.remove(image.getImagePath());
             }
+            if (candidates.isEmpty()) return 0;
         }
-        if (notesUpdated) {
-            saveNotes(allNotes);
+        long bytes = 0;
+        for (String path : candidates) {
+            File file = new File(path);
+            long length = file.length();
+            if (file.delete()) {
+                bytes += length;
+            }
         }
+        return bytes;
     }
 
-    public void deleteNote(Note note) {
-        if (note == null) return;
+    /**
+     * Copies of the notes, tombstones included, changed since the last upload the cloud
+     * acknowledged for this user (see markSynced()). Every note counts as changed for a user
+     * other than the one last synced, or before the first sync.
+     */
+    public synchronized List<Note> getUnsyncedNotes(String uid) {
+        long watermark = getSyncWatermark(uid);
+        List<Note> notes = new ArrayList<>();
+        for (NoteSummary summary : getCachedSummaries().values()) {
+            if (summary.getChangeSeq() <= watermark) continue;
+            Note note = loadNote(summary.getId());
+            if (note != null) {
+                notes.add(new Note(note));
+            }
+        }
+        return notes;
+    }
 
-        note.setDeleted(true);
-        updateNote(note);
+    /**
+     * The change sequence of the latest change. Read it before getUnsyncedNotes() and pass it
+     * to markSynced() once those notes are uploaded: a change made in between is then uploaded
+     * again next time rather than missed.
+     */
+    public synchronized long getLastChangeSeq() {
+        getCachedSummaries();
+        return changeSeq;
+    }
 
-        markNoteAsDeleted(note.getId());
+    /** Records that every change up to changeSeq is in the cloud for this user. */
+    public synchronized void markSynced(String uid, long changeSeq) {
+        boolean sameUser = uid.equals(prefs.getString(LAST_SYNC_USER_KEY, null));
+        long watermark = sameUser ? Math.max(changeSeq, prefs.getLong(LAST_SYNC_KEY, 0)) : changeSeq;
+        prefs.edit()
+                .putLong(LAST_SYNC_KEY, watermark)
+                .putString(LAST_SYNC_USER_KEY, uid)
+                .apply();
     }
 
-    public Note getNoteById(String noteId) {
-        if (noteId == null) return null;
-        List<Note> allNotes = getAllNotes();
-        for (Note note : allNotes) {
-            if (noteId.equals(note.getId())) {
-                return note;
+    // Highest change sequence uploaded for this user, or -1 if nothing has been
+    private long getSyncWatermark(String uid) {
+        return uid != null && uid.equals(prefs.getString(LAST_SYNC_USER_KEY, null))
+                ? prefs.getLong(LAST_SYNC_KEY, -1) : -1;
+    }
+
+    /**
+     * Merges notes pulled from the cloud for this user. A note changed here since the last
+     * upload keeps the local version, which overwrites the cloud one on the next upload. Any
+     * other note takes the cloud version and is stored as synced (change sequence 0); a cloud
+     * deletion turns the local note into a tombstone that is purged right away. A cloud version
+     * with the same content as the local note, such as this device's own upload coming back
+     * with a server timestamp, is skipped. Returns the number of notes that changed.
+     */
+    public synchronized int mergeCloudNotes(String uid, List<Note> cloudNotes) {
+        long start = System.nanoTime();
+        long watermark = getSyncWatermark(uid);
+        Map<String, NoteSummary> summaries = getCachedSummaries();
+        Map<String, Long> pendingDeletions = getPendingCloudDeletions(uid);
+        List<Note> merged = new ArrayList<>();
+        List<String> tombstoneIds = new ArrayList<>();
+        List<String> replacedImages = new ArrayList<>();
+        int keptLocal = 0;
+        int unchanged = 0;
+        boolean changed = false;
+        for (Note cloud : cloudNotes) {
+            NoteSummary local = summaries.get(cloud.getId());
+            // A deletion not uploaded yet is a local change too, even with the tombstone gone
+            if (local != null ? local.getChangeSeq() > watermark : pendingDeletions.containsKey(cloud.getId())) {
+                keptLocal++;
+                continue;
+            }
+            Note current = local != null ? loadNote(cloud.getId()) : null;
+            if (current != null && sameContent(current, cloud)) {
+                unchanged++;
+                continue;
+            }
+            Note stored;
+            if (cloud.isDeleted()) {
+                // Nothing to delete if the note never reached this device
+                if (current == null) continue;
+                stored = new Note(current);
+                if (!stored.isDeleted()) {
+                    stored.setDeleted(true);
+                }
+                tombstoneIds.add(stored.getId());
+            } else {
+                stored = new Note(cloud);
+                if (current != null) {
+                    // Image files the cloud version no longer uses
+                    Set<String> kept = new HashSet<>();
+                    for (NoteImage image : stored.getImages()) {
+                        kept.add(image.getImagePath());
+                    }
+                    for (NoteImage image : current.getImages()) {
+                        if (image.getImagePath() != null && !kept.contains(image.getImagePath())) {
+                            replacedImages.add(image.getImagePath());
+                        }
+                    }
+                }
+            }
+            stored.setChangeSeq(0);
+            notesCache.put(stored.getId(), stored);
+            NoteSummary previous = cacheSummary(stored);
+            if (searchIndex != null) {
+                searchIndex.update(stored);
+            }
+            changed |= collectNoteChange(previous, stored);
+            merged.add(stored);
+        }
+        if (!merged.isEmpty()) {
+            if (searchIndex != null) {
+                scheduleSearchIndexSave();
             }
+            queueWrites(merged);
+        }
+        if (changed) {
+            recordChange();
+        }
+        purgeSyncedTombstones(tombstoneIds);
+        if (!replacedImages.isEmpty()) {
+            maintenance.execute(() -> deleteUnusedImageFiles(replacedImages));
         }
-        return null;
+        Log.d(TAG, "Merged " + merged.size() + " of " + cloudNotes.size() + " cloud notes (" + keptLocal
+                + " kept local changes, " + unchanged + " unchanged) in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        return merged.size();
+    }
+
+    // Everything the user can see or edit; dates and the change sequence are bookkeeping.
+    // Images count as the same if they show the same file the same way.
+    private static boolean sameContent(Note local, Note cloud) {
+        if (local.isDeleted() != cloud.isDeleted()
+                || local.getTimestamp() != cloud.getTimestamp()
+                || !Objects.equals(local.getName(), cloud.getName())
+                || !Objects.equals(local.getLocation(), cloud.getLocation())
+                || !Objects.equals(local.getText(), cloud.getText())
+                || !local.getTags().equals(cloud.getTags())
+                || local.getImages().size() != cloud.getImages().size()) {
+            return false;
+        }
+        for (int i = 0; i < local.getImages().size(); i++) {
+            NoteImage a = local.getImages().get(i);
+            NoteImage b = cloud.getImages().get(i);
+            if (!Objects.equals(a.getId(), b.getId())
+                    || !Objects.equals(a.getImagePath(), b.getImagePath())
+                    || a.getPosition() != b.getPosition()
+                    || a.getRotation() != b.getRotation()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Queued writes and deletes in the order they reach the store, a later one replacing an
+    // earlier one for the same note
+    private static final class QueuedChanges {
+        boolean cleared;
+        final Map<String, Note> writes = new LinkedHashMap<>();
+        final Set<String> deletes = new HashSet<>();
+
+        void add(Map<String, Note> notes, Set<String> noteIds) {
+            for (Note note : notes.values()) {
+                deletes.remove(note.getId());
+                writes.put(note.getId(), note);
+            }
+            for (String noteId : noteIds) {
+                writes.remove(noteId);
+                deletes.add(noteId);
+            }
+        }
+
+        List<NoteSummary> applyToSummaries(List<NoteSummary> stored) {
+            if (writes.isEmpty() && deletes.isEmpty()) return stored;
+            Map<String, NoteSummary> summaries = new LinkedHashMap<>();
+            for (NoteSummary summary : stored) {
+                summaries.put(summary.getId(), summary);
+            }
+            summaries.keySet().removeAll(deletes);
+            for (Note note : writes.values()) {
+                summaries.put(note.getId(), NoteSummary.from(note));
+            }
+            return new ArrayList<>(summaries.values());
+        }
+
+        List<Note> applyToNotes(List<Note> stored) {
+            if (writes.isEmpty() && deletes.isEmpty()) return stored;
+            Map<String, Note> notes = new LinkedHashMap<>();
+            for (Note note : stored) {
+                notes.put(note.getId(), note);
+            }
+            notes.keySet().removeAll(deletes);
+            notes.putAll(writes);
+            return new ArrayList<>(notes.values());
+        }
+    }
+
+    /** Where a pull from the cloud resumes: after the document with this id and updatedAt. */
+    public static final class PullCursor {
+        public final long seconds;
+        public final int nanos;
+        public final String documentId;
+
+        public PullCursor(long seconds, int nanos, String documentId) {
+            this.seconds = seconds;
+            this.nanos = nanos;
+            this.documentId = documentId;
+        }
+    }
+
+    /** The cursor saved by setPullCursor() for this user, or null to pull from the start. */
+    public synchronized PullCursor getPullCursor(String uid) {
+        String documentId = prefs.getString(PULL_DOCUMENT_KEY, null);
+        if (documentId == null || uid == null || !uid.equals(prefs.getString(PULL_USER_KEY, null))) {
+            return null;
+        }
+        return new PullCursor(prefs.getLong(PULL_SECONDS_KEY, 0), prefs.getInt(PULL_NANOS_KEY, 0), documentId);
+    }
+
+    /** Saves how far this user's notes have been pulled. clearAllNotes() resets it. */
+    public synchronized void setPullCursor(String uid, PullCursor cursor) {
+        prefs.edit()
+                .putLong(PULL_SECONDS_KEY, cursor.seconds)
+                .putInt(PULL_NANOS_KEY, cursor.nanos)
+                .putString(PULL_DOCUMENT_KEY, cursor.documentId)
+                .putString(PULL_USER_KEY, uid)
+                .apply();
+    }
+
+    /**
+     * True once the user's note documents written with string dates by older versions have
+     * been rewritten with Timestamps. clearAllNotes() resets it.
+     */
+    public synchronized boolean isDatesMigrated(String uid) {
+        return uid != null && uid.equals(prefs.getString(DATES_MIGRATED_USER_KEY, null));
+    }
+
+    public synchronized void setDatesMigrated(String uid) {
+        prefs.edit().putString(DATES_MIGRATED_USER_KEY, uid).apply();
+    }
+
+    public synchronized NoteSummary getNoteSummary(String noteId) {
+        if (noteId == null) return null;
+        return getCachedSummaries().get(noteId);
+    }
+
+    /**
+     * Returns a detached copy, so an editor can change it freely until it calls updateNote().
+     */
+    public synchronized Note getNoteById(String noteId) {
+        if (noteId == null) return null;
+        Note note = getNote(noteId);
+        return note != null ? new Note(note) : null;
     }
 
     public String saveImageToInternalStorage(Context context, Uri imageUri) {
@@ -243,22 +1575,16 @@ public class NoteStorage {
         }
     }
 
-    public void markNoteAsDeleted(String noteId) {
-        if (noteId == null) return;
-
-        Set<String> deletedNotes = prefs.getStringSet(DELETED_NOTES_KEY, new HashSet<>());
-        Set<String> newDeletedNotes = new HashSet<>(deletedNotes);
-        newDeletedNotes.add(noteId);
-
-        prefs.edit().putStringSet(DELETED_NOTES_KEY, newDeletedNotes).apply();
-        Log.d(TAG, "Marked note as deleted: " + noteId);
-    }
-
-    public void clearAllNotes() {
-        Log.d(TAG, "clearAllNotes() called. Before clear, notes count: " + getAllNotes().size());
+    public synchronized void clearAllNotes() {
+        Log.d(TAG, "clearAllNotes() called");
         SharedPreferences.Editor editor = prefs.edit();
         editor.clear();
         boolean committed = editor.commit();
-        Log.d(TAG, "clearAllNotes() committed: " + committed + ". After clear, notes count: " + getAllNotes().size());
+        queueClear();
+        invalidateCache();
+        recordReset();
+        // After the clear, on the thread that saves the index
+        storeWriter.execute(searchIndexFile::delete);
+        Log.d(TAG, "clearAllNotes() committed: " + committed);
     }
 }
\ No newline at end of file
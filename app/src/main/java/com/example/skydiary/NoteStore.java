@@ -0,0 +1,40 @@
+package com.example.skydiary;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Storage engine underneath NoteStorage. NoteStorage keeps note summaries and a few recently
+ * used notes in memory and hands every change to the engine, which reads note bodies back on
+ * demand through loadNote().
+ */
+public interface NoteStore {
+
+    /** True once the engine holds notes, so the legacy preferences blob must not be migrated over them. */
+    boolean exists();
+
+    List<Note> load();
+
+    /** Loads summaries of all stored notes, in the same order as load(), without the note bodies. */
+    List<NoteSummary> loadSummaries();
+
+    /** Loads one stored note, or returns null if there is none with that id. */
+    Note loadNote(String noteId);
+
+    /** Writes one note; returns false if it could not be written. */
+    boolean put(Note note);
+
+    /**
+     * Writes several notes at once, e.g. one write-behind batch from NoteStorage; returns false
+     * if they could not be written.
+     */
+    boolean putAll(Collection<Note> notes);
+
+    /** Deletes one note; returns false if the delete could not be written. */
+    boolean delete(String noteId);
+
+    /** Replaces all stored notes; returns false if nothing was written. */
+    boolean replaceAll(Collection<Note> notes);
+
+    void clear();
+}
@@ -0,0 +1,72 @@
+package com.example.skydiary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the note lists need to show a note: no text and no image records, only their count.
+ * Full notes are loaded only when a note is opened (see NoteStorage.getNoteById()).
+ */
+public class NoteSummary {
+    private final String id;
+    private final String name;
+    private final long timestamp;
+    private final List<String> tags;
+    private final int imageCount;
+    private final boolean isDeleted;
+    private final long updatedAt;
+    private final long changeSeq;
+
+    public NoteSummary(String id, String name, long timestamp, List<String> tags, int imageCount,
+                       boolean isDeleted, long updatedAt, long changeSeq) {
+        this.id = id;
+        this.name = name;
+        this.timestamp = timestamp;
+        this.tags = tags != null ? Collections.unmodifiableList(tags) : Collections.emptyList();
+        this.imageCount = imageCount;
+        this.isDeleted = isDeleted;
+        this.updatedAt = updatedAt;
+        this.changeSeq = changeSeq;
+    }
+
+    public static NoteSummary from(Note note) {
+        // Note.getTags() is a live view of the note's list, so the summary keeps its own copy
+        return new NoteSummary(note.getId(), note.getName(), note.getTimestamp(), new ArrayList<>(note.getTags()),
+                note.getImages().size(), note.isDeleted(), note.getUpdatedAtMillis(), note.getChangeSeq());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public int getImageCount() {
+        return imageCount;
+    }
+
+    public boolean isDeleted() {
+        return isDeleted;
+    }
+
+    /** Epoch millis. */
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /** See Note.getChangeSeq(). */
+    public long getChangeSeq() {
+        return changeSeq;
+    }
+}
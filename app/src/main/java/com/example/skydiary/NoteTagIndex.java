@@ -0,0 +1,92 @@
+package com.example.skydiary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from tag to the ids of the notes carrying it. Only notes that aren't deleted
+ * are indexed. NoteStorage updates it on every write, so lookups never scan the notes.
+ */
+class NoteTagIndex {
+    private final Map<String, Set<String>> notesByTag = new HashMap<>();
+    // Tags each note was indexed under, so an update only touches the tags that changed
+    private final Map<String, List<String>> tagsByNote = new HashMap<>();
+
+    void update(NoteSummary summary) {
+        remove(summary.getId());
+        if (summary.isDeleted() || summary.getTags().isEmpty()) return;
+
+        List<String> tags = summary.getTags();
+        for (String tag : tags) {
+            Set<String> ids = notesByTag.get(tag);
+            if (ids == null) {
+                ids = new LinkedHashSet<>();
+                notesByTag.put(tag, ids);
+            }
+            ids.add(summary.getId());
+        }
+        tagsByNote.put(summary.getId(), tags);
+    }
+
+    void remove(String noteId) {
+        List<String> tags = tagsByNote.remove(noteId);
+        if (tags == null) return;
+        for (String tag : tags) {
+            Set<String> ids = notesByTag.get(tag);
+            if (ids == null) continue;
+            ids.remove(noteId);
+            if (ids.isEmpty()) {
+                notesByTag.remove(tag);
+            }
+        }
+    }
+
+    /** Live read-only view of every tag used by at least one note. */
+    Set<String> getTags() {
+        return Collections.unmodifiableSet(notesByTag.keySet());
+    }
+
+    int getNoteCount(String tag) {
+        Set<String> ids = notesByTag.get(tag);
+        return ids != null ? ids.size() : 0;
+    }
+
+    Set<String> getNoteIds(String tag) {
+        Set<String> ids = notesByTag.get(tag);
+        return ids != null ? Collections.unmodifiableSet(ids) : Collections.emptySet();
+    }
+
+    /**
+     * Ids of the notes carrying every one of the given tags. Starts from the rarest tag,
+     * so the work is bounded by its note count.
+     */
+    Set<String> getNoteIdsWithAllTags(Collection<String> tags) {
+        List<Set<String>> sets = new ArrayList<>(tags.size());
+        for (String tag : tags) {
+            Set<String> ids = notesByTag.get(tag);
+            if (ids == null) return Collections.emptySet();
+            sets.add(ids);
+        }
+        if (sets.isEmpty()) return Collections.emptySet();
+
+        Set<String> smallest = sets.get(0);
+        for (Set<String> ids : sets) {
+            if (ids.size() < smallest.size()) {
+                smallest = ids;
+            }
+        }
+        Set<String> result = new LinkedHashSet<>(smallest);
+        for (Set<String> ids : sets) {
+            if (ids != smallest) {
+                result.retainAll(ids);
+            }
+        }
+        return result;
+    }
+}
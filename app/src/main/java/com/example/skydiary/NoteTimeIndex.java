@@ -0,0 +1,135 @@
+package com.example.skydiary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Note ids ordered by note timestamp, kept as parallel arrays so a date range is two binary
+ * searches. Only notes that aren't deleted are indexed. Notes with equal timestamps are
+ * ordered by id, so (timestamp, id) names one position and can serve as a paging cursor.
+ */
+class NoteTimeIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private int size;
+    // Timestamp each note was indexed under, needed to find its slot again
+    private final Map<String, Long> timestampById = new HashMap<>();
+
+    void update(NoteSummary summary) {
+        Long indexed = timestampById.get(summary.getId());
+        if (indexed != null && indexed == summary.getTimestamp() && !summary.isDeleted()) return;
+
+        remove(summary.getId());
+        if (summary.isDeleted()) return;
+
+        int position = positionAfter(summary.getTimestamp(), summary.getId());
+        ensureCapacity(size + 1);
+        System.arraycopy(timestamps, position, timestamps, position + 1, size - position);
+        System.arraycopy(ids, position, ids, position + 1, size - position);
+        timestamps[position] = summary.getTimestamp();
+        ids[position] = summary.getId();
+        size++;
+        timestampById.put(summary.getId(), summary.getTimestamp());
+    }
+
+    void remove(String noteId) {
+        Long timestamp = timestampById.remove(noteId);
+        if (timestamp == null) return;
+
+        for (int i = lowerBound(timestamp); i < size && timestamps[i] == timestamp; i++) {
+            if (ids[i].equals(noteId)) {
+                System.arraycopy(timestamps, i + 1, timestamps, i, size - i - 1);
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                size--;
+                ids[size] = null;
+                return;
+            }
+        }
+    }
+
+    /** Ids of the notes with startMs <= timestamp < endMs, oldest first. */
+    List<String> getIdsInRange(long startMs, long endMs) {
+        int from = lowerBound(startMs);
+        int to = lowerBound(endMs);
+        List<String> result = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            result.add(ids[i]);
+        }
+        return result;
+    }
+
+    /** Ids of all indexed notes, oldest first. */
+    List<String> getIds() {
+        return new ArrayList<>(Arrays.asList(ids).subList(0, size));
+    }
+
+    int size() {
+        return size;
+    }
+
+    String getId(int position) {
+        return ids[position];
+    }
+
+    /** Position of the first note ordered after (timestamp, id); that note need not be indexed. */
+    int positionAfter(long timestamp, String id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, timestamp, id) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Position of the first note not ordered before (timestamp, id). */
+    int positionOf(long timestamp, String id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, timestamp, id) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(int position, long timestamp, String id) {
+        int result = Long.compare(timestamps[position], timestamp);
+        return result != 0 ? result : ids[position].compareTo(id);
+    }
+
+    // First position whose timestamp is >= the given one
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) return;
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        ids = Arrays.copyOf(ids, newCapacity);
+    }
+}
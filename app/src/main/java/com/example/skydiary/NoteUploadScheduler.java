@@ -0,0 +1,89 @@
+package com.example.skydiary;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+
+/**
+ * Uploads local note changes some time after the last save instead of after every one, so a
+ * burst of edits (each silent save, rotation or added image) ends up in one upload. At most
+ * one upload runs at a time; a save made while one is running schedules another.
+ *
+ * Main thread only.
+ */
+public class NoteUploadScheduler {
+    private static final String TAG = "NoteUploadScheduler";
+    // Quiet time after the last save before its changes are uploaded
+    private static final long UPLOAD_DELAY_MS = 30_000;
+
+    private static NoteUploadScheduler instance;
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable uploadTask = this::upload;
+    private boolean scheduled;
+    private boolean uploading;
+    // A save came in while an upload was running
+    private boolean uploadAgain;
+
+    private NoteUploadScheduler(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized NoteUploadScheduler getInstance(Context context) {
+        if (instance == null) {
+            instance = new NoteUploadScheduler(context);
+        }
+        return instance;
+    }
+
+    /** Uploads once no other save has come in for a while. */
+    public void schedule() {
+        if (uploading) {
+            uploadAgain = true;
+            return;
+        }
+        mainHandler.removeCallbacks(uploadTask);
+        mainHandler.postDelayed(uploadTask, UPLOAD_DELAY_MS);
+        scheduled = true;
+    }
+
+    /** Starts a scheduled upload right away, e.g. when the user leaves the editor. */
+    public void flush() {
+        if (!scheduled) return;
+        mainHandler.removeCallbacks(uploadTask);
+        upload();
+    }
+
+    private void upload() {
+        scheduled = false;
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) return;
+        uploading = true;
+        new SyncManager(context).uploadLocalNotes(user.getUid(), new SyncManager.SyncCallback() {
+            @Override
+            public void onSuccess(String message) {
+                Log.d(TAG, message);
+                finish();
+            }
+
+            @Override
+            public void onError(String error) {
+                // Whatever didn't go up stays unsynced and goes with the next upload
+                Log.e(TAG, "Upload failed: " + error);
+                finish();
+            }
+        });
+    }
+
+    private void finish() {
+        uploading = false;
+        if (uploadAgain) {
+            uploadAgain = false;
+            schedule();
+        }
+    }
+}
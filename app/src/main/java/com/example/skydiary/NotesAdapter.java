@@ -11,25 +11,29 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.NoteViewHolder> {
 
     public interface OnItemClickListener {
-        void onItemClick(Note note);
+        void onItemClick(NoteSummary note);
     }
 
-    private List<Note> notes;
+    private List<NoteSummary> notes;
     private final OnItemClickListener listener;
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMM yyyy", Locale.getDefault());
 
-    public NotesAdapter(List<Note> notes, OnItemClickListener listener) {
+    public NotesAdapter(List<NoteSummary> notes, OnItemClickListener listener) {
         this.notes = notes != null ? notes : new ArrayList<>();
         this.listener = listener;
     }
 
-    public void updateNotes(List<Note> newNotes) {
+    public void updateNotes(List<NoteSummary> newNotes) {
         this.notes = newNotes != null ? new ArrayList<>(newNotes) : new ArrayList<>();
 
         notifyDataSetChanged();
@@ -45,13 +49,13 @@ public class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.NoteViewHold
 
     @Override
     public void onBindViewHolder(@NonNull NoteViewHolder holder, int position) {
-        Note note = notes.get(position);
+        NoteSummary note = notes.get(position);
         holder.noteName.setText(note.getName());
         holder.noteDate.setText(dateFormat.format(note.getTimestamp()));
 
-        if (note.getImages() != null && !note.getImages().isEmpty()) {
+        if (note.getImageCount() > 0) {
             holder.imageIndicator.setVisibility(View.VISIBLE);
-            holder.imageCount.setText(String.valueOf(note.getImages().size()));
+            holder.imageCount.setText(String.valueOf(note.getImageCount()));
         } else {
             holder.imageIndicator.setVisibility(View.GONE);
         }
@@ -83,12 +87,59 @@ public class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.NoteViewHold
         }
     }
 
-    public void updateList(List<Note> newNotes) {
+    public void updateList(List<NoteSummary> newNotes) {
         this.notes.clear();
         if (newNotes != null) {
             this.notes.addAll(newNotes);
         }
         notifyDataSetChanged();
     }
+
+    /**
+     * Re-reads the notes with the given ids: one found in matching is put where the order
+     * places it, any other one is taken off the list. When more pages follow, a note that
+     * would come after the last one shown is left for them.
+     */
+    public void applyChanges(Collection<String> changedIds, Map<String, NoteSummary> matching,
+                             Comparator<NoteSummary> order, boolean morePages) {
+        for (String id : changedIds) {
+            int oldPosition = indexOf(id);
+            if (oldPosition >= 0) {
+                notes.remove(oldPosition);
+            }
+            NoteSummary summary = matching.get(id);
+            // The list stays sorted, and the note isn't in it any more
+            int position = summary != null ? -Collections.binarySearch(notes, summary, order) - 1 : -1;
+            if (position < 0 || (position == notes.size() && morePages)) {
+                if (oldPosition >= 0) {
+                    notifyItemRemoved(oldPosition);
+                }
+                continue;
+            }
+            notes.add(position, summary);
+            if (oldPosition < 0) {
+                notifyItemInserted(position);
+            } else {
+                if (oldPosition != position) {
+                    notifyItemMoved(oldPosition, position);
+                }
+                notifyItemChanged(position);
+            }
+        }
+    }
+
+    private int indexOf(String noteId) {
+        for (int i = 0; i < notes.size(); i++) {
+            if (notes.get(i).getId().equals(noteId)) return i;
+        }
+        return -1;
+    }
+
+    public void appendNotes(List<NoteSummary> moreNotes) {
+        if (moreNotes == null || moreNotes.isEmpty()) return;
+        int start = notes.size();
+        notes.addAll(moreNotes);
+        notifyItemRangeInserted(start, moreNotes.size());
+    }
 }
 
@@ -32,13 +32,14 @@ import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickListener {
 
@@ -46,18 +47,38 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
     private ImageButton btnSort;
     private NotesAdapter notesAdapter;
     private FloatingActionButton fabAdd;
-    private List<Note> allNotes;
+    private RecyclerView recyclerView;
     private final List<String> selectedTags = new ArrayList<>();
     private LinearLayout tagsContainer;
     private TextView tvNoMatches;
     private Uri currentCameraUri;
 
-    // Sorting constants
-    private static final int SORT_DATE_DESC = 0; // Newest first (default)
-    private static final int SORT_DATE_ASC = 1;  // Oldest first
-    private static final int SORT_ALPHA_ASC = 2; // A–Z
+    // Notes are shown a page at a time: the first one right away, the next ones as the list
+    // scrolls within PREFETCH_DISTANCE items of its end
+    private static final int PAGE_SIZE = 30;
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private int currentSortMode = NoteStorage.SORT_DATE_DESC;
+    // Cursor for the page after the shown ones; null once everything is shown
+    private String nextCursor;
+    private boolean pageLoadPosted;
+    // Counts the first pages asked for, so a search page that arrives after the query or
+    // sort order changed again is dropped
+    private int pageRequest;
+    // Pages of a search are fetched here, since the search index may still have to load
+    private static final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+
+    private interface FilteredQuery<T> {
+        T run(NoteStorage noteStorage, NoteFilter filter, int sortMode);
+    }
+
+    private interface OnQueryResult<T> {
+        void onQueryResult(T result);
+    }
 
-    private int currentSortMode = SORT_DATE_DESC;
+    // NoteStorage version that the shown notes and the tag chips reflect
+    private long loadedVersion = -1;
+    private final NoteStorage.OnNotesChangedListener notesChangedListener = this::applyNoteChanges;
 
     private final ActivityResultLauncher<Intent> imagePickerLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -105,7 +126,7 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
         searchBar = view.findViewById(R.id.search_bar);
         btnSort = view.findViewById(R.id.btn_sort);
         ImageButton btnAddTag = view.findViewById(R.id.btn_add_tag);
-        RecyclerView recyclerView = view.findViewById(R.id.recycler_notes);
+        recyclerView = view.findViewById(R.id.recycler_notes);
         fabAdd = view.findViewById(R.id.fab_add);
         tagsContainer = view.findViewById(R.id.tags_container);
         tvNoMatches = view.findViewById(R.id.tv_no_matches);
@@ -113,6 +134,12 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
         notesAdapter = new NotesAdapter(new ArrayList<>(), this);
         recyclerView.setLayoutManager(new LinearLayoutManager(requireContext()));
         recyclerView.setAdapter(notesAdapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView view, int dx, int dy) {
+                maybeLoadNextPage();
+            }
+        });
 
         // Sort button
         btnSort.setOnClickListener(v -> showSortMenu());
@@ -164,14 +191,20 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
             popupMenu.show();
         });
 
-        refreshAllData();
+        // The notes are still being loaded in the background right after start
+        SkyDiaryApp.from(requireContext()).runWhenReady(() -> {
+            if (getView() == null) return;
+            refreshAllData();
+            recyclerView.post(() -> SkyDiaryApp.from(recyclerView.getContext())
+                    .reportFirstNoteList(notesAdapter.getItemCount()));
+        });
     }
 
     private void showSortMenu() {
         PopupMenu popup = new PopupMenu(requireContext(), btnSort);
-        popup.getMenu().add(0, SORT_DATE_DESC, 0, R.string.sort_newest_first);
-        popup.getMenu().add(0, SORT_DATE_ASC, 1, R.string.sort_oldest_first);
-        popup.getMenu().add(0, SORT_ALPHA_ASC, 2, R.string.sort_alphabetical);
+        popup.getMenu().add(0, NoteStorage.SORT_DATE_DESC, 0, R.string.sort_newest_first);
+        popup.getMenu().add(0, NoteStorage.SORT_DATE_ASC, 1, R.string.sort_oldest_first);
+        popup.getMenu().add(0, NoteStorage.SORT_ALPHA_ASC, 2, R.string.sort_alphabetical);
         popup.setOnMenuItemClickListener(item -> {
             currentSortMode = item.getItemId();
             filterNotes();
@@ -180,28 +213,6 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
         popup.show();
     }
 
-    private void sortNotes(List<Note> notes) {
-        switch (currentSortMode) {
-            case SORT_DATE_DESC:
-                Collections.sort(notes, (n1, n2) -> Long.compare(n2.getTimestamp(), n1.getTimestamp()));
-                break;
-            case SORT_DATE_ASC:
-                Collections.sort(notes, (n1, n2) -> Long.compare(n1.getTimestamp(), n2.getTimestamp()));
-                break;
-            case SORT_ALPHA_ASC:
-                Collections.sort(notes, (n1, n2) -> {
-                    String name1 = n1.getName() != null ? n1.getName().toLowerCase() : "";
-                    String name2 = n2.getName() != null ? n2.getName().toLowerCase() : "";
-                    return name1.compareTo(name2);
-                });
-                break;
-            default:
-                // default same as date desc
-                Collections.sort(notes, (n1, n2) -> Long.compare(n2.getTimestamp(), n1.getTimestamp()));
-                break;
-        }
-    }
-
     private void showImageSourceDialog() {
         String[] options = {
                 getString(R.string.take_photo),
@@ -360,21 +371,65 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
         refreshAllData();
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        NoteStorage.getInstance(requireContext()).addOnNotesChangedListener(notesChangedListener);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        NoteStorage.getInstance(requireContext()).removeOnNotesChangedListener(notesChangedListener);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
-        Log.d("NotesFragment", "Refreshing notes on resume");
-        refreshAllData();
+        // Nothing is shown yet until the warm-up is done; the list is loaded then
+        if (loadedVersion >= 0 && NoteStorage.getInstance(requireContext()).getVersion() != loadedVersion) {
+            Log.d("NotesFragment", "Refreshing notes on resume");
+            refreshAllData();
+        }
     }
 
     private void refreshAllData() {
-        loadNotes();
+        loadedVersion = NoteStorage.getInstance(requireContext()).getVersion();
         loadTags();
         filterNotes();
     }
 
+    // Re-reads only the changed notes and puts each where it now belongs in the list, or takes
+    // it off; the rest of the list and the scroll position stay as they are
+    private void applyNoteChanges(NoteChangeEvent event) {
+        if (loadedVersion < 0 || event.getVersion() <= loadedVersion) return;
+        if (event.isReset()) {
+            refreshAllData();
+            return;
+        }
+
+        loadedVersion = event.getVersion();
+        if (event.isTagsChanged()) {
+            loadTags();
+        }
+        Set<String> changedIds = event.getChangedIds();
+        query((noteStorage, filter, sortMode) -> noteStorage.getMatchingSummaries(filter, changedIds), matching -> {
+            notesAdapter.applyChanges(changedIds, matching, NoteStorage.getSortOrder(currentSortMode),
+                    nextCursor != null);
+            if (notesAdapter.getItemCount() == 0 && nextCursor != null) {
+                // Every shown note went; the next ones become the first page
+                showFirstPage(PAGE_SIZE);
+                return;
+            }
+            showNoMatchesMessage(notesAdapter.getItemCount() == 0);
+            btnSort.setVisibility(NoteStorage.getInstance(requireContext()).getActiveNoteCount() == 0
+                    ? View.GONE : View.VISIBLE);
+            Log.d("NotesFragment", "Applied changes to " + changedIds.size() + " notes");
+        });
+    }
+
     @Override
-    public void onItemClick(Note note) {
+    public void onItemClick(NoteSummary note) {
         if (note != null && note.getId() != null) {
             requireActivity().getSupportFragmentManager().beginTransaction()
                     .replace(R.id.fragment_container, NoteEditorFragment.newInstance(note.getId()))
@@ -386,13 +441,6 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
         }
     }
 
-    private void loadNotes() {
-        allNotes = NoteStorage.getInstance(requireContext()).getNotes();
-        Log.d("NotesFragment", "Loaded " + allNotes.size() + " notes");
-        // Apply default sort (or current sort) to the raw list just in case
-        sortNotes(allNotes);
-    }
-
     private void loadTags() {
         Set<String> allTagsSet = NoteStorage.getInstance(requireContext()).getAllTags();
         tagsContainer.removeAllViews();
@@ -429,55 +477,80 @@ public class NotesFragment extends Fragment implements NotesAdapter.OnItemClickL
     }
 
     private void filterNotes() {
-        if (allNotes == null) {
-            allNotes = new ArrayList<>();
-        }
-
-        String searchText = searchBar.getText().toString().toLowerCase().trim();
-        String[] keywords = searchText.isEmpty() ? new String[0] : searchText.split("\\s+");
-        List<Note> filteredNotes = new ArrayList<>();
-
-        for (Note note : allNotes) {
-            String name = note.getName() != null ? note.getName().toLowerCase() : "";
-            String text = note.getText() != null ? note.getText().toLowerCase() : "";
+        showFirstPage(PAGE_SIZE);
+    }
 
-            boolean matchesSearch = true;
-            for (String kw : keywords) {
-                if (!name.contains(kw) && !text.contains(kw)) {
-                    matchesSearch = false;
-                    break;
-                }
-            }
-            if (!matchesSearch) continue;
+    private NoteFilter currentFilter() {
+        return new NoteFilter(searchBar.getText().toString(), selectedTags);
+    }
 
-            if (!selectedTags.isEmpty()) {
-                if (note.getTags() == null || note.getTags().isEmpty()) {
-                    continue;
-                }
-                boolean hasAllTags = true;
-                for (String selectedTag : selectedTags) {
-                    if (!note.getTags().contains(selectedTag)) {
-                        hasAllTags = false;
-                        break;
-                    }
-                }
-                if (!hasAllTags) {
-                    continue;
-                }
-            }
-            filteredNotes.add(note);
-        }
+    // Replaces the list with its first notes in the selected sort order and filter
+    private void showFirstPage(int limit) {
+        pageRequest++;
+        nextCursor = null;
+        pageLoadPosted = false;
+        long start = System.nanoTime();
+        fetchPage(null, limit, page -> {
+            nextCursor = page.getNextCursor();
+            notesAdapter.updateList(page.getNotes());
+            showNoMatchesMessage(page.getNotes().isEmpty());
+
+            // Hide the sort button if there are no notes at all
+            NoteStorage noteStorage = NoteStorage.getInstance(requireContext());
+            btnSort.setVisibility(noteStorage.getActiveNoteCount() == 0 ? View.GONE : View.VISIBLE);
 
-        // Sort the filtered list according to the currently selected sort mode
-        sortNotes(filteredNotes);
+            Log.d("NotesFragment", "Showing " + page.getNotes().size() + " notes, first page in "
+                    + (System.nanoTime() - start) / 1000 + " us");
+        });
+    }
 
-        notesAdapter.updateList(filteredNotes);
-        showNoMatchesMessage(filteredNotes.isEmpty());
+    private void fetchPage(String cursor, int limit, OnQueryResult<NotePage> callback) {
+        query((noteStorage, filter, sortMode) -> noteStorage.getNotesPage(sortMode, filter, cursor, limit),
+                callback);
+    }
 
-        // Hide the sort button if there are no notes at all
-        btnSort.setVisibility(allNotes.isEmpty() ? View.GONE : View.VISIBLE);
+    // Runs a query for the selected sort order and filter and hands its result to the callback
+    // on the main thread. Without a search that's quick and done right away; a search runs on
+    // searchExecutor, and its result is dropped if another first page was asked for meanwhile.
+    private <T> void query(FilteredQuery<T> query, OnQueryResult<T> callback) {
+        NoteStorage noteStorage = NoteStorage.getInstance(requireContext());
+        NoteFilter filter = currentFilter();
+        if (filter.getQuery().isEmpty()) {
+            callback.onQueryResult(query.run(noteStorage, filter, currentSortMode));
+            return;
+        }
+        int sortMode = currentSortMode;
+        int request = pageRequest;
+        searchExecutor.execute(() -> {
+            T result = query.run(noteStorage, filter, sortMode);
+            recyclerView.post(() -> {
+                if (request != pageRequest || getView() == null) return;
+                callback.onQueryResult(result);
+            });
+        });
+    }
 
-        Log.d("NotesFragment", "Filtered to " + filteredNotes.size() + " notes");
+    // Adapter changes aren't allowed from a scroll callback, so the page is added in a post
+    private void maybeLoadNextPage() {
+        if (nextCursor == null || pageLoadPosted) return;
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        if (layoutManager == null
+                || layoutManager.findLastVisibleItemPosition() < notesAdapter.getItemCount() - PREFETCH_DISTANCE) {
+            return;
+        }
+        pageLoadPosted = true;
+        recyclerView.post(() -> {
+            if (nextCursor == null || !isAdded()) {
+                pageLoadPosted = false;
+                return;
+            }
+            fetchPage(nextCursor, PAGE_SIZE, page -> {
+                pageLoadPosted = false;
+                nextCursor = page.getNextCursor();
+                notesAdapter.appendNotes(page.getNotes());
+                Log.d("NotesFragment", "Loaded " + page.getNotes().size() + " more notes");
+            });
+        });
     }
 
     private void showNoMatchesMessage(boolean show) {
@@ -1,12 +1,101 @@
 package com.example.skydiary;
 
 import android.app.Application;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts loading the note and constellation stores on a background thread as soon as the
+ * process starts, so the first screen finds them ready instead of loading them on the main
+ * thread. Screens that show stored data right away wait for it with runWhenReady().
+ */
 public class SkyDiaryApp extends Application {
+    private static final String TAG = "SkyDiaryApp";
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Main thread only
+    private final List<Runnable> readyActions = new ArrayList<>();
+    private boolean ready;
+    private boolean firstNoteListReported;
+
+    public static SkyDiaryApp from(Context context) {
+        return (SkyDiaryApp) context.getApplicationContext();
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
-        getApplicationContext();
+        long created = SystemClock.elapsedRealtime();
+        ExecutorService warmUp = Executors.newSingleThreadExecutor();
+        warmUp.execute(() -> warmUp(created));
+        warmUp.shutdown();
+    }
+
+    // Runs on the warm-up thread. Each store is created and loaded under its own lock, so a
+    // screen that gets there first simply waits for it instead of loading it a second time.
+    // Screens waiting in runWhenReady() are let go even if loading fails; they then load what
+    // they need themselves.
+    private void warmUp(long created) {
+        try {
+            long start = SystemClock.elapsedRealtime();
+            NoteStorage noteStorage = NoteStorage.getInstance(this);
+            // Summaries, tag and time indexes, and the saved tags
+            int noteCount = noteStorage.getActiveNoteCount();
+            noteStorage.getAllTags();
+            long notesLoaded = SystemClock.elapsedRealtime();
+            ConstellationStorage.getInstance(this);
+            long constellationsLoaded = SystemClock.elapsedRealtime();
+            Log.d(TAG, "Warm-up: process start to onCreate " + (created - Process.getStartElapsedRealtime())
+                    + " ms, waited " + (start - created) + " ms, notes " + (notesLoaded - start) + " ms ("
+                    + noteCount + " notes), constellations " + (constellationsLoaded - notesLoaded) + " ms");
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Warm-up failed", e);
+        } finally {
+            mainHandler.post(this::onWarmedUp);
+        }
+    }
+
+    private void onWarmedUp() {
+        ready = true;
+        List<Runnable> actions = new ArrayList<>(readyActions);
+        readyActions.clear();
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /** True once the warm-up is done. Main thread only. */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Runs the action on the main thread once the stores are loaded: right away if they
+     * already are, otherwise when the warm-up finishes. Main thread only. The action may run
+     * after the caller's view is gone, so it should check for that.
+     */
+    public void runWhenReady(Runnable action) {
+        if (ready) {
+            action.run();
+        } else {
+            readyActions.add(action);
+        }
+    }
+
+    /** Logs the time from process start to the first note list shown, once per process. */
+    public void reportFirstNoteList(int shownNotes) {
+        if (firstNoteListReported) return;
+        firstNoteListReported = true;
+        Log.d(TAG, "First note list (" + shownNotes + " notes) shown "
+                + (SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime()) + " ms after process start");
     }
-}
\ No newline at end of file
+}
@@ -1,28 +1,33 @@
 package com.example.skydiary;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Set;
 
 public class SyncManager {
     private static final String TAG = "SyncManager";
-    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("UTC");
+    // Note documents fetched per query while pulling
+    private static final int PULL_PAGE_SIZE = 100;
 
     private final FirebaseFirestore db;
     private final NoteStorage noteStorage;
@@ -90,48 +95,228 @@ public class SyncManager {
 
     // ---------- Note sync ----------
 
-    public void downloadAndReplace(SyncCallback callback) {
-        String uid = getCurrentUid();
-        if (uid == null) {
-            callback.onError("Not logged in");
+    /**
+     * Pulls the notes changed in the cloud since the last pull and merges them into the local
+     * store (see NoteStorage.mergeCloudNotes()). Pages come in updatedAt order and the position
+     * is saved after each one, so an interrupted pull resumes where it stopped.
+     * Call this only after waitForFreshToken has already been invoked.
+     */
+    public void pullChanges(String uid, SyncCallback callback) {
+        PullProgress progress = new PullProgress();
+        NoteStorage.PullCursor cursor = noteStorage.getPullCursor(uid);
+        if (noteStorage.isDatesMigrated(uid)) {
+            pullPage(uid, cursor, progress, callback);
             return;
         }
+        // Older versions wrote updatedAt as a string, which the Timestamp-ordered pages below
+        // never reach. Those documents are pulled here and migrated to Timestamps.
+        db.collection("notes").whereEqualTo("userId", uid)
+                .whereGreaterThanOrEqualTo("updatedAt", "")
+                .get(Source.SERVER)
+                .addOnSuccessListener(snapshot -> {
+                    mergePulled(uid, snapshot, progress);
+                    migrateStringDates(uid, snapshot);
+                    pullPage(uid, cursor, progress, callback);
+                })
+                .addOnFailureListener(e -> callback.onError(e.getMessage()));
+    }
+
+    // Rewrites the dates of documents from older versions as Timestamps, leaving the rest of
+    // each document alone. updatedAt is set by the server like on any upload, so other devices
+    // pull the migrated documents too. Until every batch has gone through, the next pull
+    // looks for string dates again.
+    private void migrateStringDates(String uid, QuerySnapshot snapshot) {
+        FirestoreBatcher batcher = new FirestoreBatcher(db);
+        for (DocumentSnapshot doc : snapshot) {
+            Map<String, Object> dates = new HashMap<>();
+            dates.put("updatedAt", FieldValue.serverTimestamp());
+            for (String field : new String[] {"createdAt", "deletedAt"}) {
+                long millis = doc.get(field) instanceof String ? documentDate(doc.get(field)) : 0;
+                if (millis != 0) {
+                    dates.put(field, new Date(millis));
+                }
+            }
+            batcher.update(doc.getReference(), dates);
+        }
+        int count = batcher.getOperationCount();
+        batcher.commit(new FirestoreBatcher.Callback() {
+            @Override
+            public void onBatchResult(FirestoreBatcher.BatchResult result) {
+            }
+
+            @Override
+            public void onComplete(List<FirestoreBatcher.BatchResult> failed) {
+                if (failed.isEmpty()) {
+                    noteStorage.setDatesMigrated(uid);
+                    Log.d(TAG, "Migrated the dates of " + count + " note documents");
+                } else {
+                    Log.w(TAG, failed.size() + " of " + failed.get(0).batchCount
+                            + " date migration batches failed; retrying with the next pull");
+                }
+            }
+        });
+    }
 
-        db.collection("notes").whereEqualTo("userId", uid).get()
-                .addOnSuccessListener(querySnapshot -> {
-                    List<Note> cloudNotes = new ArrayList<>();
-                    for (DocumentSnapshot doc : querySnapshot) {
-                        Note note = documentSnapshotToNote(doc);
-                        cloudNotes.add(note);
+    private static final class PullProgress {
+        final long start = SystemClock.elapsedRealtime();
+        int pages;
+        int pulled;
+        int merged;
+    }
+
+    // Ties on updatedAt are broken by document id, so a page boundary can't skip a document
+    // that shares the previous page's last timestamp
+    private void pullPage(String uid, NoteStorage.PullCursor cursor, PullProgress progress, SyncCallback callback) {
+        Timestamp after = cursor != null ? new Timestamp(cursor.seconds, cursor.nanos) : new Timestamp(0, 0);
+        Query query = db.collection("notes").whereEqualTo("userId", uid)
+                .whereGreaterThanOrEqualTo("updatedAt", after)
+                .orderBy("updatedAt")
+                .orderBy(FieldPath.documentId());
+        if (cursor != null) {
+            query = query.startAfter(after, cursor.documentId);
+        }
+        query.limit(PULL_PAGE_SIZE).get(Source.SERVER)
+                .addOnSuccessListener(snapshot -> {
+                    NoteStorage.PullCursor next = cursor;
+                    for (DocumentSnapshot doc : snapshot) {
+                        Timestamp updatedAt = doc.getTimestamp("updatedAt");
+                        if (updatedAt != null) {
+                            next = new NoteStorage.PullCursor(updatedAt.getSeconds(), updatedAt.getNanoseconds(), doc.getId());
+                        }
+                    }
+                    mergePulled(uid, snapshot, progress);
+                    progress.pages++;
+                    if (next != cursor) {
+                        noteStorage.setPullCursor(uid, next);
+                    }
+                    if (snapshot.size() < PULL_PAGE_SIZE) {
+                        Log.d(TAG, "Note pull: " + progress.pulled + " changed documents in " + progress.pages
+                                + " pages, " + progress.merged + " merged, in "
+                                + (SystemClock.elapsedRealtime() - progress.start) + " ms");
+                        callback.onSuccess("Downloaded " + progress.merged + " notes");
+                    } else {
+                        pullPage(uid, next, progress, callback);
                     }
-                    noteStorage.saveNotes(cloudNotes);
-                    callback.onSuccess("Downloaded " + cloudNotes.size() + " notes");
                 })
                 .addOnFailureListener(e -> callback.onError(e.getMessage()));
     }
 
+    private void mergePulled(String uid, QuerySnapshot snapshot, PullProgress progress) {
+        List<Note> cloudNotes = new ArrayList<>();
+        for (DocumentSnapshot doc : snapshot) {
+            cloudNotes.add(documentSnapshotToNote(doc));
+        }
+        progress.pulled += cloudNotes.size();
+        progress.merged += noteStorage.mergeCloudNotes(uid, cloudNotes);
+    }
+
     /**
+     * Uploads the notes changed since the last successful upload (see
+     * NoteStorage.getUnsyncedNotes()); unchanged notes aren't sent again. A note with an image
+     * that couldn't be uploaded is held back whole, and nothing is marked synced, so it goes
+     * with the next upload instead of reaching the cloud without that image.
      * Call this only after waitForFreshToken has already been invoked.
      */
     public void uploadLocalNotes(String uid, SyncCallback callback) {
-        List<Note> localNotes = noteStorage.getAllNotes();
-        if (localNotes.isEmpty()) {
-            callback.onSuccess("No local notes to upload");
+        long start = SystemClock.elapsedRealtime();
+        // Read before the notes, so a change made while they're collected is sent next time too
+        long syncedThrough = noteStorage.getLastChangeSeq();
+        List<Note> changedNotes = noteStorage.getUnsyncedNotes(uid);
+        Map<String, Long> pendingDeletions = noteStorage.getPendingCloudDeletions(uid);
+        if (changedNotes.isEmpty() && pendingDeletions.isEmpty()) {
+            noteStorage.markSynced(uid, syncedThrough);
+            Log.d(TAG, "Note upload: nothing changed since the last sync");
+            callback.onSuccess("No changed notes to upload");
             return;
         }
 
-        List<Task<Void>> tasks = new ArrayList<>();
-        for (Note note : localNotes) {
-            Map<String, Object> noteData = noteToMap(note, uid);
-            tasks.add(db.collection("notes").document(note.getId()).set(noteData));
+        // Images go to Storage first; the documents only refer to them
+        List<NoteImage> images = new ArrayList<>();
+        for (Note note : changedNotes) {
+            if (!note.isDeleted()) {
+                images.addAll(note.getImages());
+            }
+        }
+        ImageBlobStore.getInstance(context).uploadImages(uid, images)
+                .addOnSuccessListener(blobKeys -> {
+                    List<Note> uploadable = new ArrayList<>();
+                    for (Note note : changedNotes) {
+                        if (note.isDeleted() || hasAllBlobs(note, blobKeys)) {
+                            uploadable.add(note);
+                        }
+                    }
+                    commitNotes(uid, uploadable, pendingDeletions, changedNotes.size() - uploadable.size(),
+                            blobKeys, syncedThrough, start, callback);
+                })
+                .addOnFailureListener(e -> callback.onError("Image upload failed: " + e.getMessage()));
+    }
+
+    private static boolean hasAllBlobs(Note note, Map<String, String> blobKeys) {
+        for (NoteImage image : note.getImages()) {
+            if (blobKeys.get(image.getId()) == null) return false;
+        }
+        return true;
+    }
+
+    // pendingDeletions are deletions whose local tombstones expired before they were uploaded
+    // (see NoteStorage.getPendingCloudDeletions()); they go up as tombstone documents too
+    private void commitNotes(String uid, List<Note> changedNotes, Map<String, Long> pendingDeletions, int heldBack,
+                             Map<String, String> blobKeys, long syncedThrough, long start, SyncCallback callback) {
+        // Tombstones still stored locally haven't been uploaded yet; they are purged once they are
+        FirestoreBatcher batcher = new FirestoreBatcher(db);
+        Set<String> tombstoneIds = new HashSet<>();
+        for (Note note : changedNotes) {
+            batcher.set(db.collection("notes").document(note.getId()), noteToMap(note, uid, blobKeys));
+            if (note.isDeleted()) {
+                tombstoneIds.add(note.getId());
+            }
         }
+        for (Map.Entry<String, Long> deletion : pendingDeletions.entrySet()) {
+            batcher.set(db.collection("notes").document(deletion.getKey()),
+                    deletionToMap(uid, deletion.getValue()));
+        }
+        long bytesSent = batcher.getEstimatedBytes();
+
+        batcher.commit(new FirestoreBatcher.Callback() {
+            @Override
+            public void onBatchResult(FirestoreBatcher.BatchResult result) {
+                if (!result.isSuccessful()) return;
+                // A committed batch's deletions are in the cloud even if another batch fails
+                List<String> uploaded = new ArrayList<>();
+                List<String> uploadedDeletions = new ArrayList<>();
+                for (DocumentReference document : result.documents) {
+                    if (tombstoneIds.contains(document.getId())) {
+                        uploaded.add(document.getId());
+                    } else if (pendingDeletions.containsKey(document.getId())) {
+                        uploadedDeletions.add(document.getId());
+                    }
+                }
+                noteStorage.purgeSyncedTombstones(uploaded);
+                noteStorage.removePendingCloudDeletions(uploadedDeletions);
+            }
 
-        Tasks.whenAllSuccess(tasks).addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                callback.onSuccess("Uploaded " + localNotes.size() + " notes");
-            } else {
-                String error = task.getException() != null ? task.getException().getMessage() : "Upload failed";
-                callback.onError(error);
+            @Override
+            public void onComplete(List<FirestoreBatcher.BatchResult> failed) {
+                if (failed.isEmpty()) {
+                    Log.d(TAG, "Note upload: " + changedNotes.size() + " changed notes and "
+                            + pendingDeletions.size() + " expired deletions, about " + bytesSent
+                            + " bytes, in " + (SystemClock.elapsedRealtime() - start) + " ms");
+                    if (heldBack == 0) {
+                        noteStorage.markSynced(uid, syncedThrough);
+                        callback.onSuccess("Uploaded " + changedNotes.size() + " notes");
+                        return;
+                    }
+                    // Not marked synced: the held back notes keep their local changes through
+                    // the pull that follows and are uploaded again next time
+                    Log.w(TAG, heldBack + " notes held back, some of their images couldn't be uploaded");
+                    callback.onSuccess("Uploaded " + changedNotes.size() + " notes, " + heldBack
+                            + " held back until their images can be read");
+                } else {
+                    // Nothing is marked synced, so the notes of the failed batches go again next time
+                    Exception error = failed.get(0).error;
+                    callback.onError(failed.size() + " of " + failed.get(0).batchCount + " upload batches failed: "
+                            + error.getMessage());
+                }
             }
         });
     }
@@ -234,7 +419,7 @@ public class SyncManager {
             uploadLocalNotes(uid, new SyncCallback() {
                 @Override
                 public void onSuccess(String message) {
-                    downloadAndReplace(new SyncCallback() {
+                    pullChanges(uid, new SyncCallback() {
                         @Override
                         public void onSuccess(String msg) {
                             uploadConstellations(uid, new SyncCallback() {
@@ -273,7 +458,9 @@ public class SyncManager {
 
     // ---------- Data conversion helpers ----------
 
-    private Map<String, Object> noteToMap(Note note, String uid) {
+    // blobKeys maps image ids to their blob in Storage (see ImageBlobStore); uploadLocalNotes()
+    // only sends notes whose images all have one
+    private Map<String, Object> noteToMap(Note note, String uid, Map<String, String> blobKeys) {
         Map<String, Object> map = new HashMap<>();
         map.put("userId", uid);
         map.put("name", note.getName());
@@ -282,30 +469,40 @@ public class SyncManager {
         map.put("timestamp", note.getTimestamp());
         map.put("tags", note.getTags());
 
+        // A deleted note's images are about to be removed; the tombstone doesn't need them
         List<Map<String, Object>> imageMaps = new ArrayList<>();
-        for (NoteImage img : note.getImages()) {
+        for (NoteImage img : note.isDeleted() ? new ArrayList<NoteImage>() : note.getImages()) {
             Map<String, Object> imgMap = new HashMap<>();
             imgMap.put("id", img.getId());
             imgMap.put("position", img.getPosition());
             imgMap.put("rotation", img.getRotation());
             imgMap.put("originalWidth", img.getOriginalWidth());
             imgMap.put("originalHeight", img.getOriginalHeight());
-
-            String base64 = ImageUtils.compressAndEncodeToBase64(img.getImagePath());
-            imgMap.put("imageData", base64 != null ? base64 : "");
+            imgMap.put("blobKey", blobKeys.get(img.getId()));
             imageMaps.add(imgMap);
         }
         map.put("images", imageMaps);
 
-        map.put("createdAt", stringToDate(note.getCreatedAt()));
-        map.put("updatedAt", new Date());
+        map.put("createdAt", new Date(note.getCreatedAtMillis()));
+        // Set by the server, so pulls can page by it whatever the device clocks say
+        map.put("updatedAt", FieldValue.serverTimestamp());
         map.put("isDeleted", note.isDeleted());
-        if (note.getDeletedAt() != null) {
-            map.put("deletedAt", stringToDate(note.getDeletedAt()));
+        if (note.getDeletedAtMillis() != 0) {
+            map.put("deletedAt", new Date(note.getDeletedAtMillis()));
         }
         return map;
     }
 
+    // The document of a note whose local tombstone is already gone: all a tombstone has to say
+    private static Map<String, Object> deletionToMap(String uid, long deletedAt) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("userId", uid);
+        map.put("updatedAt", FieldValue.serverTimestamp());
+        map.put("isDeleted", true);
+        map.put("deletedAt", new Date(deletedAt));
+        return map;
+    }
+
     private Note documentSnapshotToNote(DocumentSnapshot doc) {
         Note note = new Note();
         note.setId(doc.getId());
@@ -317,6 +514,17 @@ public class SyncManager {
         if (ts != null) note.setTimestamp(ts);
         note.setTags((List<String>) doc.get("tags"));
 
+        // Image ids are never reused, so an image this device already has needn't be fetched again
+        Map<String, String> localImages = new HashMap<>();
+        Note local = noteStorage.getNoteById(doc.getId());
+        if (local != null) {
+            for (NoteImage img : local.getImages()) {
+                if (img.getImagePath() != null && new File(img.getImagePath()).exists()) {
+                    localImages.put(img.getId(), img.getImagePath());
+                }
+            }
+        }
+
         List<Map<String, Object>> imageMaps = (List<Map<String, Object>>) doc.get("images");
         List<NoteImage> images = new ArrayList<>();
         if (imageMaps != null) {
@@ -330,12 +538,23 @@ public class SyncManager {
                 int width = widthLong != null ? widthLong.intValue() : 0;
                 Long heightLong = (Long) map.get("originalHeight");
                 int height = heightLong != null ? heightLong.intValue() : 0;
+                String blobKey = (String) map.get("blobKey");
+                // Inlined by older versions instead of a blob
                 String base64 = (String) map.get("imageData");
 
-                if (base64 != null && !base64.isEmpty()) {
-                    String localPath = noteStorage.saveBase64ImageToInternalStorage(base64);
-                    if (localPath != null) {
-                        NoteImage img = new NoteImage(id, localPath, position, rotation, width, height);
+                String localPath = localImages.get(id);
+                if (localPath == null && blobKey != null) {
+                    // Downloaded the first time the note is opened (see BaseNoteFragment)
+                    localPath = ImageBlobStore.getInstance(context).getBlobFile(blobKey).getAbsolutePath();
+                }
+                if (localPath != null) {
+                    NoteImage img = new NoteImage(id, localPath, position, rotation, width, height);
+                    img.setBlobKey(blobKey);
+                    images.add(img);
+                } else if (base64 != null && !base64.isEmpty()) {
+                    String savedPath = noteStorage.saveBase64ImageToInternalStorage(base64);
+                    if (savedPath != null) {
+                        NoteImage img = new NoteImage(id, savedPath, position, rotation, width, height);
                         images.add(img);
                     }
                 }
@@ -343,49 +562,36 @@ public class SyncManager {
         }
         note.setImages(images);
 
-        Object createdAt = doc.get("createdAt");
-        if (createdAt instanceof com.google.firebase.Timestamp) {
-            note.setCreatedAt(dateToString(((com.google.firebase.Timestamp) createdAt).toDate()));
-        } else if (createdAt instanceof String) {
-            note.setCreatedAt((String) createdAt);
-        }
-
-        Object updatedAt = doc.get("updatedAt");
-        if (updatedAt instanceof com.google.firebase.Timestamp) {
-            note.setUpdatedAt(dateToString(((com.google.firebase.Timestamp) updatedAt).toDate()));
-        } else if (updatedAt instanceof String) {
-            note.setUpdatedAt((String) updatedAt);
-        }
-
         Boolean deleted = doc.getBoolean("isDeleted");
         if (deleted != null) note.setDeleted(deleted);
 
-        Object deletedAt = doc.get("deletedAt");
-        if (deletedAt instanceof com.google.firebase.Timestamp) {
-            note.setDeletedAt(dateToString(((com.google.firebase.Timestamp) deletedAt).toDate()));
-        } else if (deletedAt instanceof String) {
-            note.setDeletedAt((String) deletedAt);
-        }
+        // The setters above stamp updatedAt, so the document's dates are restored last
+        long createdAt = documentDate(doc.get("createdAt"));
+        if (createdAt != 0) note.setCreatedAtMillis(createdAt);
+        long updatedAt = documentDate(doc.get("updatedAt"));
+        if (updatedAt != 0) note.setUpdatedAtMillis(updatedAt);
+        long deletedAt = documentDate(doc.get("deletedAt"));
+        if (deletedAt != 0) note.setDeletedAtMillis(deletedAt);
 
         return note;
     }
 
-    private String dateToString(Date date) {
-        if (date == null) return null;
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT, Locale.getDefault());
-        sdf.setTimeZone(TIME_ZONE);
-        return sdf.format(date);
-    }
-
-    private Date stringToDate(String dateStr) {
-        if (dateStr == null) return null;
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT, Locale.getDefault());
-            sdf.setTimeZone(TIME_ZONE);
-            return sdf.parse(dateStr);
-        } catch (ParseException e) {
-            return new Date();
+    // Epoch millis of a document date field, or 0 if it has none. Documents are written with
+    // Timestamps. Strings and plain millis from older versions are still read: a device may
+    // pull before its user's documents are migrated (see migrateStringDates()), and createdAt
+    // or deletedAt of documents that already had a Timestamp updatedAt are never migrated.
+    private static long documentDate(Object value) {
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toDate().getTime();
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            long millis = NoteDates.parseLenient((String) value);
+            return millis != NoteDates.INVALID ? millis : 0;
         }
+        return 0;
     }
 
     private String getCurrentUid() {
@@ -0,0 +1,174 @@
+package com.example.skydiary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * EncodedImageCache with a stand-in encoder that makes 1000 bytes per image and counts its
+ * calls: an image is encoded once per file content, a changed file replaces its entry, and the
+ * least recently used entries go once the cache is full, also in the order a restart restores.
+ */
+public class EncodedImageCacheTest {
+    private static final int ENCODED_SIZE = 1000;
+
+    private File dir;
+    private File cacheDir;
+    private final Map<String, Integer> encodes = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("images").toFile();
+        cacheDir = new File(dir, "encoded_images");
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(dir);
+    }
+
+    private EncodedImageCache cache(long maxBytes) {
+        return new EncodedImageCache(cacheDir, maxBytes, path -> {
+            encodes.merge(path, 1, Integer::sum);
+            byte[] bytes = new byte[ENCODED_SIZE];
+            Arrays.fill(bytes, (byte) path.hashCode());
+            return bytes;
+        });
+    }
+
+    private NoteImage image(String id, String content) throws IOException {
+        File file = new File(dir, id + ".jpg");
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        return new NoteImage(id, file.getPath(), 0, 0f, 4000, 3000);
+    }
+
+    private int encodes(NoteImage image) {
+        Integer count = encodes.get(image.getImagePath());
+        return count != null ? count : 0;
+    }
+
+    // Image ids with an entry on disk
+    private Set<String> cachedIds() {
+        Set<String> ids = new TreeSet<>();
+        String[] names = cacheDir.list();
+        if (names != null) {
+            for (String name : names) {
+                ids.add(name.substring(0, name.indexOf('_')));
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void get_encodesOncePerFileContent() throws IOException {
+        EncodedImageCache cache = cache(10 * ENCODED_SIZE);
+        NoteImage image = image("a", "first");
+        byte[] first = cache.get(image);
+        assertArrayEquals(first, cache.get(image));
+        // Rotation is uploaded with the note, so it doesn't need a new encode
+        image.setRotation(90f);
+        cache.get(image);
+        assertEquals(1, encodes(image));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // Another run finds the entry on disk
+        assertArrayEquals(first, cache(10 * ENCODED_SIZE).get(image));
+        assertEquals(1, encodes(image));
+    }
+
+    @Test
+    public void get_changedFileReplacesItsEntry() throws IOException {
+        EncodedImageCache cache = cache(10 * ENCODED_SIZE);
+        NoteImage image = image("a", "first");
+        cache.get(image);
+        String before = cacheDir.list()[0];
+
+        // A different length changes the fingerprint whatever the file system's clock does
+        image("a", "edited, and longer");
+        cache.get(image);
+        assertEquals(2, encodes(image));
+        assertEquals(1, cacheDir.list().length);
+        assertNotEquals(before, cacheDir.list()[0]);
+        assertEquals(ENCODED_SIZE, cache.getSizeBytes());
+
+        // A file that is gone has no fingerprint and nothing to upload
+        new File(image.getImagePath()).delete();
+        assertNull(cache.get(image));
+    }
+
+    @Test
+    public void get_evictsTheLeastRecentlyUsed() throws IOException {
+        EncodedImageCache cache = cache(3 * ENCODED_SIZE);
+        NoteImage a = image("a", "a");
+        NoteImage b = image("b", "b");
+        NoteImage c = image("c", "c");
+        NoteImage d = image("d", "d");
+        cache.get(a);
+        cache.get(b);
+        cache.get(c);
+        // Using a makes b the oldest
+        cache.get(a);
+        cache.get(d);
+        assertEquals(new TreeSet<>(Arrays.asList("a", "c", "d")), cachedIds());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3 * ENCODED_SIZE, cache.getSizeBytes());
+
+        cache.get(b);
+        assertEquals(2, encodes(b));
+        assertEquals(new TreeSet<>(Arrays.asList("a", "d", "b")), cachedIds());
+    }
+
+    @Test
+    public void restart_evictsByLastUseAndDropsUnfinishedWrites() throws IOException {
+        EncodedImageCache cache = cache(10 * ENCODED_SIZE);
+        for (String id : Arrays.asList("a", "b", "c")) {
+            cache.get(image(id, id));
+        }
+        // Last use is kept as the modification time; b was used most recently and c longest ago
+        long now = System.currentTimeMillis();
+        for (File file : cacheDir.listFiles()) {
+            long age = file.getName().startsWith("b_") ? 1 : file.getName().startsWith("a_") ? 2 : 3;
+            assertTrue(file.setLastModified(now - age * 60000));
+        }
+        Files.write(new File(cacheDir, "d_1-1.jpg.tmp").toPath(), new byte[ENCODED_SIZE]);
+
+        EncodedImageCache restarted = cache(2 * ENCODED_SIZE);
+        assertEquals(2 * ENCODED_SIZE, restarted.getSizeBytes());
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b")), cachedIds());
+        assertFalse(new File(cacheDir, "d_1-1.jpg.tmp").exists());
+    }
+
+    @Test
+    public void get_keepsTheNewestEntryEvenIfBiggerThanTheCache() throws IOException {
+        EncodedImageCache cache = cache(ENCODED_SIZE / 2);
+        NoteImage a = image("a", "a");
+        NoteImage b = image("b", "b");
+        cache.get(a);
+        cache.get(b);
+        assertEquals(new TreeSet<>(Arrays.asList("b")), cachedIds());
+        cache.get(b);
+        assertEquals(1, encodes(b));
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
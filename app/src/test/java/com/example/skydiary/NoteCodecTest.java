@@ -0,0 +1,154 @@
+package com.example.skydiary;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through NoteCodec, and damaged blocks: every corruption has to surface as an
+ * IOException, never as another exception or as notes that differ from what was written.
+ * Also benchmarks NoteCodec against the Gson JSON the notes used to be stored as; the
+ * timings are printed, not asserted.
+ */
+public class NoteCodecTest {
+
+    static List<Note> sampleNotes() {
+        List<Note> notes = new ArrayList<>();
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longText.append("Clear skies over the ridge tonight, Orion rising at ").append(i).append(". ");
+        }
+        NoteImage image = new NoteImage("image-1", "/data/note_images/a.jpg", 3, 90f, 4000, 3000);
+        image.setBlobKey("0f1e2d3c");
+        notes.add(new Note("note-1", "user", "Perseids", "Hill", longText.toString(), 1691971200000L,
+                Arrays.asList("meteors", "summer"), Arrays.asList(image),
+                1691971200000L, 1691974800000L, false, 0, 7));
+        notes.add(new Note("note-2", "user", "Cloudy", null, "Nothing to see", 1692057600000L,
+                Arrays.asList("summer"), new ArrayList<>(), 1692057600000L, 0, true, 1692061200000L, 8));
+        notes.add(new Note("note-3", null, null, null, null, 0, new ArrayList<>(), new ArrayList<>(),
+                0, 0, false, 0, 0));
+        return notes;
+    }
+
+    @Test
+    public void decode_returnsWhatWasEncoded() throws IOException {
+        byte[] block = NoteCodec.encode(sampleNotes());
+        List<Note> decoded = NoteCodec.decode(block, 0, block.length);
+        assertArrayEquals(block, NoteCodec.encode(decoded));
+        assertEquals(90f, decoded.get(0).getImages().get(0).getRotation(), 0f);
+        assertEquals("0f1e2d3c", decoded.get(0).getImages().get(0).getBlobKey());
+
+        List<NoteSummary> summaries = NoteCodec.decodeSummaries(block, 0, block.length);
+        assertEquals(3, summaries.size());
+        assertEquals("Perseids", summaries.get(0).getName());
+        assertEquals(Arrays.asList("meteors", "summer"), summaries.get(0).getTags());
+    }
+
+    @Test
+    public void decode_failsOnEveryFlippedBit() {
+        byte[] block = NoteCodec.encode(sampleNotes());
+        for (int position = 0; position < block.length; position++) {
+            for (int bit = 0; bit < 8; bit++) {
+                byte[] damaged = block.clone();
+                damaged[position] ^= 1 << bit;
+                assertDamageDetected(block, damaged, "bit " + bit + " of byte " + position);
+            }
+        }
+    }
+
+    @Test
+    public void decode_failsOnEveryTruncation() {
+        byte[] block = NoteCodec.encode(sampleNotes());
+        for (int length = 0; length < block.length; length++) {
+            assertDamageDetected(block, Arrays.copyOf(block, length), "truncated to " + length);
+        }
+    }
+
+    @Test
+    public void decode_failsOnGarbage() {
+        byte[] block = NoteCodec.encode(sampleNotes());
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            byte[] damaged = block.clone();
+            // A few bytes overwritten at random, the version left intact
+            for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                damaged[1 + random.nextInt(damaged.length - 1)] = (byte) random.nextInt();
+            }
+            assertDamageDetected(block, damaged, "garbage " + i);
+        }
+    }
+
+    @Test
+    public void encodeDecode_benchmarkAgainstGson() throws IOException {
+        Gson gson = new Gson();
+        Type listType = new TypeToken<List<Note>>() {}.getType();
+        for (int count : new int[] {1_000, 10_000}) {
+            List<Note> notes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                NoteImage image = new NoteImage("image-" + i, "/data/note_images/image_" + i + ".jpg", 0, 90f, 4000, 3000);
+                notes.add(new Note("note-" + i, "user", "Night " + i, "Hill", "Seeing was good, Orion and the Pleiades, note " + i,
+                        1500000000000L + i * 3600000L, Arrays.asList("winter", "tag" + i % 7), Arrays.asList(image),
+                        1500000000000L, 1500000000000L + i, false, 0, i));
+            }
+
+            long codecEncode = Long.MAX_VALUE;
+            long codecDecode = Long.MAX_VALUE;
+            long gsonEncode = Long.MAX_VALUE;
+            long gsonDecode = Long.MAX_VALUE;
+            byte[] block = null;
+            byte[] json = null;
+            for (int round = 0; round < 10; round++) {
+                long start = System.nanoTime();
+                block = NoteCodec.encode(notes);
+                codecEncode = Math.min(codecEncode, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                List<Note> decoded = NoteCodec.decode(block, 0, block.length);
+                codecDecode = Math.min(codecDecode, System.nanoTime() - start);
+                assertEquals(count, decoded.size());
+
+                start = System.nanoTime();
+                json = gson.toJson(notes, listType).getBytes(StandardCharsets.UTF_8);
+                gsonEncode = Math.min(gsonEncode, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                List<Note> parsed = gson.fromJson(new String(json, StandardCharsets.UTF_8), listType);
+                gsonDecode = Math.min(gsonDecode, System.nanoTime() - start);
+                assertEquals(count, parsed.size());
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "%d notes: NoteCodec %d bytes, encode %.1f ms, decode %.1f ms; "
+                            + "Gson %d bytes, encode %.1f ms, decode %.1f ms",
+                    count, block.length, codecEncode / 1e6, codecDecode / 1e6,
+                    json.length, gsonEncode / 1e6, gsonDecode / 1e6));
+        }
+    }
+
+    // Any outcome but an IOException or the intact notes fails the test
+    private static void assertDamageDetected(byte[] original, byte[] damaged, String what) {
+        try {
+            List<Note> notes = NoteCodec.decode(damaged, 0, damaged.length);
+            assertArrayEquals("Undetected damage: " + what, original, NoteCodec.encode(notes));
+        } catch (IOException expected) {
+            // Detected
+        }
+        try {
+            NoteCodec.decodeSummaries(damaged, 0, damaged.length);
+            assertArrayEquals("Undetected damage: " + what, original, damaged);
+        } catch (IOException expected) {
+            // Detected
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.skydiary;
+
+import com.google.gson.GsonBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteDatabase against NoteJournal, the engine it stands in for: the same random sequences of
+ * writes and deletes must leave both holding the same notes, and the indexed date and tag
+ * queries must find what a scan over NoteJournal's notes finds. Runs on Robolectric, which
+ * brings a real SQLite. Also covers moving notes in from the preferences blob and from the
+ * other engine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class NoteDatabaseTest {
+    private static final long JAN_2023 = 1672531200000L;
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final String[] TAGS = {"orion", "moon", "meteor", "comet", "venus", "clouds", "été"};
+    private static final String[] WORDS = {"seeing", "clear", "dew", "ridge", "nebula", "twilight", "zenith"};
+
+    private File dir;
+    private NoteDatabase database;
+    private NoteJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("engines").toFile();
+        database = new NoteDatabase(RuntimeEnvironment.getApplication(), null);
+        journal = new NoteJournal(new File(dir, "notes"));
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        deleteAll(dir);
+    }
+
+    private static Note randomNote(Random random, String id) {
+        List<String> tags = new ArrayList<>();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            // Repeats are possible, as in the app
+            tags.add(TAGS[random.nextInt(TAGS.length)]);
+        }
+        List<NoteImage> images = new ArrayList<>();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            NoteImage image = new NoteImage("image-" + random.nextInt(1000),
+                    random.nextInt(5) == 0 ? null : "/data/note_images/" + random.nextInt(1000) + ".jpg",
+                    random.nextInt(5), random.nextInt(4) * 90f, random.nextInt(4000), random.nextInt(3000));
+            if (random.nextBoolean()) {
+                image.setBlobKey("blob-" + random.nextInt(1000));
+            }
+            images.add(image);
+        }
+        StringBuilder text = new StringBuilder();
+        // Sometimes long enough for NoteCodec to compress
+        for (int i = random.nextInt(3) == 0 ? 200 : random.nextInt(20); i > 0; i--) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        // A few timestamps repeat, so the date order needs its tie-break
+        long timestamp = random.nextInt(4) == 0 ? JAN_2023 + random.nextInt(10) * DAY
+                : JAN_2023 + (long) (random.nextDouble() * 730 * DAY);
+        boolean deleted = random.nextInt(5) == 0;
+        long createdAt = JAN_2023 + random.nextInt(1000) * 60000L;
+        return new Note(id, random.nextInt(10) == 0 ? null : "user",
+                random.nextInt(10) == 0 ? null : "Night " + random.nextInt(100),
+                random.nextBoolean() ? null : "Hill",
+                random.nextInt(10) == 0 ? null : text.toString(), timestamp, tags, images,
+                createdAt, createdAt + random.nextInt(1000), deleted, deleted ? createdAt + DAY : 0,
+                random.nextInt(50));
+    }
+
+    @Test
+    public void randomWrites_leaveBothEnginesWithTheSameNotes() {
+        for (int seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            List<String> ids = new ArrayList<>();
+            List<Note> initial = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                ids.add("note-" + i);
+                initial.add(randomNote(random, "note-" + i));
+            }
+            assertTrue(journal.replaceAll(initial));
+            assertTrue(database.replaceAll(initial));
+            assertSameNotes(random);
+
+            for (int op = 1; op <= 400; op++) {
+                int kind = random.nextInt(100);
+                if (kind < 45) {
+                    // New notes and rewrites of existing ones
+                    String id = random.nextInt(3) == 0 ? "note-" + ids.size() : ids.get(random.nextInt(ids.size()));
+                    if (!ids.contains(id)) ids.add(id);
+                    Note note = randomNote(random, id);
+                    assertTrue(journal.put(note));
+                    assertTrue(database.put(note));
+                } else if (kind < 70) {
+                    List<Note> batch = new ArrayList<>();
+                    for (int i = random.nextInt(20); i >= 0; i--) {
+                        batch.add(randomNote(random, ids.get(random.nextInt(ids.size()))));
+                    }
+                    assertTrue(journal.putAll(batch));
+                    assertTrue(database.putAll(batch));
+                } else if (kind < 97) {
+                    // Includes ids that were never written or are already gone
+                    String id = random.nextInt(10) == 0 ? "missing-" + op : ids.get(random.nextInt(ids.size()));
+                    assertTrue(journal.delete(id));
+                    assertTrue(database.delete(id));
+                } else if (kind < 99) {
+                    List<Note> replacement = new ArrayList<>();
+                    for (int i = random.nextInt(50); i > 0; i--) {
+                        replacement.add(randomNote(random, ids.get(random.nextInt(ids.size()))));
+                    }
+                    // replaceAll() takes distinct notes
+                    Map<String, Note> distinct = new TreeMap<>();
+                    for (Note note : replacement) {
+                        distinct.put(note.getId(), note);
+                    }
+                    assertTrue(journal.replaceAll(distinct.values()));
+                    assertTrue(database.replaceAll(distinct.values()));
+                } else {
+                    journal.clear();
+                    database.clear();
+                }
+                if (op % 50 == 0) {
+                    assertSameNotes(random);
+                }
+            }
+            journal.clear();
+            database.clear();
+        }
+    }
+
+    // Both engines hold the same notes and summaries, and the queries agree with a scan
+    private void assertSameNotes(Random random) {
+        List<Note> expected = journal.load();
+        List<Note> actual = database.load();
+        assertEquals(encodeById(expected), encodeById(actual));
+
+        Map<String, String> expectedSummaries = new TreeMap<>();
+        for (NoteSummary summary : journal.loadSummaries()) {
+            expectedSummaries.put(summary.getId(), describe(summary));
+        }
+        Map<String, String> actualSummaries = new TreeMap<>();
+        List<String> summaryOrder = new ArrayList<>();
+        for (NoteSummary summary : database.loadSummaries()) {
+            actualSummaries.put(summary.getId(), describe(summary));
+            summaryOrder.add(summary.getId());
+        }
+        assertEquals(expectedSummaries, actualSummaries);
+        List<String> loadOrder = new ArrayList<>();
+        for (Note note : actual) {
+            loadOrder.add(note.getId());
+        }
+        assertEquals(loadOrder, summaryOrder);
+
+        for (int i = 0; i < 20; i++) {
+            String id = i == 0 || expected.isEmpty() ? "missing" : expected.get(random.nextInt(expected.size())).getId();
+            Note stored = journal.loadNote(id);
+            Note loaded = database.loadNote(id);
+            assertEquals(stored != null ? encode(stored) : null, loaded != null ? encode(loaded) : null);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            long start = JAN_2023 + random.nextInt(730) * DAY;
+            long end = start + (random.nextBoolean() ? DAY : 31 * DAY);
+            assertEquals(scanByDate(expected, start, end), database.queryNoteIdsByDate(start, end));
+        }
+        for (String tag : TAGS) {
+            assertEquals(scanByTag(expected, tag), new HashSet<>(database.queryNoteIdsByTag(tag)));
+        }
+    }
+
+    private static List<String> scanByDate(List<Note> notes, long start, long end) {
+        List<Note> matching = new ArrayList<>();
+        for (Note note : notes) {
+            if (!note.isDeleted() && note.getTimestamp() >= start && note.getTimestamp() < end) {
+                matching.add(note);
+            }
+        }
+        matching.sort((n1, n2) -> n1.getTimestamp() != n2.getTimestamp()
+                ? Long.compare(n1.getTimestamp(), n2.getTimestamp()) : n1.getId().compareTo(n2.getId()));
+        List<String> ids = new ArrayList<>();
+        for (Note note : matching) {
+            ids.add(note.getId());
+        }
+        return ids;
+    }
+
+    private static Set<String> scanByTag(List<Note> notes, String tag) {
+        Set<String> ids = new HashSet<>();
+        for (Note note : notes) {
+            if (!note.isDeleted() && note.getTags().contains(tag)) {
+                ids.add(note.getId());
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void noteStorage_migratesThePreferencesBlobIntoEitherEngine() {
+        Random random = new Random(7);
+        List<Note> legacy = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Note note = randomNote(random, "note-" + i);
+            // Old tombstones would be purged in the background while the test reads
+            note.setDeleted(false);
+            legacy.add(note);
+        }
+        String blob = new GsonBuilder().create().toJson(legacy);
+
+        Map<String, String> fromJournal = migrate(journal, blob, new File(dir, "journal-files"));
+        Map<String, String> fromDatabase = migrate(database, blob, new File(dir, "database-files"));
+        assertEquals(100, fromDatabase.size());
+        assertEquals(fromJournal, fromDatabase);
+    }
+
+    // Opens NoteStorage on the store with the blob in its preferences; returns what it then reads
+    private static Map<String, String> migrate(NoteStore store, String blob, File filesDir) {
+        filesDir.mkdirs();
+        TestContext context = new TestContext(filesDir);
+        context.getSharedPreferences("notes_prefs", 0).edit().putString("notes", blob).commit();
+        NoteStorage storage = new NoteStorage(context, store, task -> { });
+        Map<String, String> notes = new TreeMap<>();
+        for (NoteSummary summary : storage.getNoteSummariesByDate(0, Long.MAX_VALUE)) {
+            notes.put(summary.getId(), encode(storage.getNoteById(summary.getId())));
+        }
+        assertFalse(context.getSharedPreferences("notes_prefs", 0).contains("notes"));
+        return notes;
+    }
+
+    @Test
+    public void noteStorage_movesNotesOverFromTheOtherEngine() {
+        Random random = new Random(11);
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Note note = randomNote(random, "note-" + i);
+            note.setDeleted(false);
+            notes.add(note);
+        }
+        journal.replaceAll(notes);
+        Map<String, String> expected = encodeById(journal.load());
+
+        NoteStorage storage = new NoteStorage(new TestContext(dir), database, journal, task -> { });
+        assertEquals(100, storage.getActiveNoteCount());
+        assertEquals(expected, encodeById(database.load()));
+        assertTrue(journal.load().isEmpty());
+        assertEquals(encode(notes.get(42)), encode(storage.getNoteById("note-42")));
+    }
+
+    private static String encode(Note note) {
+        return Arrays.toString(NoteCodec.encode(Collections.singletonList(note)));
+    }
+
+    private static Map<String, String> encodeById(List<Note> notes) {
+        Map<String, String> encoded = new TreeMap<>();
+        for (Note note : notes) {
+            encoded.put(note.getId(), encode(note));
+        }
+        return encoded;
+    }
+
+    private static String describe(NoteSummary summary) {
+        return summary.getName() + "|" + summary.getTimestamp() + "|" + summary.getTags() + "|"
+                + summary.getImageCount() + "|" + summary.isDeleted() + "|" + summary.getUpdatedAt() + "|"
+                + summary.getChangeSeq();
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,349 @@
+package com.example.skydiary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteJournal on a temp directory: damage to the current snapshot falls back to the previous
+ * generation instead of failing or returning wrong notes, and compaction rewrites only the
+ * monthly shards its changes touch. Also benchmarks the first loadNote() after opening,
+ * through index.bin and without it; the timings are printed, not asserted.
+ */
+public class NoteJournalTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("notes").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(dir);
+    }
+
+    private static List<Note> notes(String text) {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // All in one month, so each generation is a single shard
+            notes.add(new Note("note-" + i, "user", "Night " + i, null, text + " " + i,
+                    1717200000000L + i * 3600000L, Arrays.asList("tag" + i % 3), new ArrayList<>(),
+                    1717200000000L, 1717200000000L, false, 0, i));
+        }
+        return notes;
+    }
+
+    private static List<String> texts(List<Note> notes) {
+        List<String> texts = new ArrayList<>();
+        for (Note note : notes) {
+            texts.add(note.getText());
+        }
+        texts.sort(null);
+        return texts;
+    }
+
+    @Test
+    public void load_returnsLoggedChanges() {
+        NoteJournal journal = new NoteJournal(dir);
+        journal.replaceAll(notes("first"));
+        Note changed = new Note(journal.loadNote("note-3"));
+        changed.setText("changed");
+        journal.put(changed);
+        journal.delete("note-4");
+
+        NoteJournal reopened = new NoteJournal(dir);
+        assertEquals(19, reopened.load().size());
+        assertEquals("changed", reopened.loadNote("note-3").getText());
+        assertNull(reopened.loadNote("note-4"));
+    }
+
+    @Test
+    public void damagedShard_fallsBackToPreviousGeneration() throws IOException {
+        NoteJournal journal = new NoteJournal(dir);
+        assertTrue(journal.replaceAll(notes("first")));
+        assertTrue(journal.replaceAll(notes("second")));
+        File shard = currentShard();
+        byte[] intact = Files.readAllBytes(shard.toPath());
+        List<String> previous = texts(notes("first"));
+
+        for (int position = 0; position < intact.length; position++) {
+            byte[] damaged = intact.clone();
+            damaged[position] ^= 0x5A;
+            Files.write(shard.toPath(), damaged);
+            assertEquals("byte " + position, previous, texts(new NoteJournal(dir).load()));
+            assertEquals("byte " + position, 20, new NoteJournal(dir).loadSummaries().size());
+        }
+    }
+
+    @Test
+    public void damagedShard_loadNoteFallsBackToPreviousGeneration() throws IOException {
+        NoteJournal journal = new NoteJournal(dir);
+        journal.replaceAll(notes("first"));
+        journal.replaceAll(notes("second"));
+        File shard = currentShard();
+        try (RandomAccessFile file = new RandomAccessFile(shard, "rw")) {
+            file.seek(file.length() / 2);
+            file.write(~file.read());
+        }
+        // index.bin leads into the damaged shard; the record's checksum catches it
+        for (int i = 0; i < 20; i++) {
+            Note note = new NoteJournal(dir).loadNote("note-" + i);
+            assertNotNull(note);
+            assertTrue(note.getText().startsWith("first") || note.getText().startsWith("second"));
+        }
+    }
+
+    @Test
+    public void damagedManifest_fallsBackToPreviousGeneration() throws IOException {
+        NoteJournal journal = new NoteJournal(dir);
+        journal.replaceAll(notes("first"));
+        journal.replaceAll(notes("second"));
+        File manifest = new File(dir, "manifest.bin");
+        byte[] intact = Files.readAllBytes(manifest.toPath());
+        for (int position = 0; position < intact.length; position++) {
+            byte[] damaged = intact.clone();
+            damaged[position] ^= 0x01;
+            Files.write(manifest.toPath(), damaged);
+            assertEquals("byte " + position, texts(notes("first")), texts(new NoteJournal(dir).load()));
+        }
+    }
+
+    @Test
+    public void damagedLog_keepsRecordsBeforeTheDamage() throws IOException {
+        NoteJournal journal = new NoteJournal(dir);
+        journal.replaceAll(notes("first"));
+        Note one = new Note(journal.loadNote("note-1"));
+        one.setText("one");
+        journal.put(one);
+        long intactLength = new File(dir, "journal.bin").length();
+        Note two = new Note(journal.loadNote("note-2"));
+        two.setText("two");
+        journal.put(two);
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "journal.bin"), "rw")) {
+            file.seek(intactLength + 8);
+            file.write(~file.read());
+        }
+
+        NoteJournal reopened = new NoteJournal(dir);
+        assertEquals("one", reopened.loadNote("note-1").getText());
+        assertEquals("first 2", reopened.loadNote("note-2").getText());
+        assertEquals(intactLength, new File(dir, "journal.bin").length());
+    }
+
+    // Noon UTC on the given day of 2024; shards are cut by UTC month
+    private static long utc(int month, int day) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(2024, month, day, 12, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static Note monthNote(String id, long timestamp, String text) {
+        return new Note(id, "user", id, null, text, timestamp, Arrays.asList("tag"), new ArrayList<>(),
+                1717200000000L, 1717200000000L, false, 0, 0);
+    }
+
+    @Test
+    public void compaction_rewritesOnlyTheMonthsItTouches() throws InterruptedException {
+        NoteJournal journal = new NoteJournal(dir);
+        Map<String, Note> expected = new HashMap<>();
+        int[] filled = {Calendar.JANUARY, Calendar.FEBRUARY, Calendar.MARCH, Calendar.APRIL};
+        for (int month : filled) {
+            for (int i = 0; i < (month == Calendar.APRIL ? 10 : 30); i++) {
+                Note note = monthNote("m" + month + "-" + i, utc(month, 1 + i % 28), "first");
+                expected.put(note.getId(), note);
+            }
+        }
+        assertTrue(journal.replaceAll(expected.values()));
+        Set<String> first = shardFiles();
+        assertEquals(4, first.size());
+
+        // Exactly the 200 records that start a compaction: one January note moves to May,
+        // April is emptied, the rest are edits to January. February and March aren't touched.
+        Note moved = new Note(expected.get("m0-0"));
+        moved.setTimestamp(utc(Calendar.MAY, 5));
+        assertTrue(journal.put(moved));
+        expected.put(moved.getId(), moved);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(journal.delete("m3-" + i));
+            expected.remove("m3-" + i);
+        }
+        for (int i = 0; i < 189; i++) {
+            Note edited = new Note(expected.get("m0-" + (1 + i % 29)));
+            edited.setText("edit " + i);
+            assertTrue(journal.put(edited));
+            expected.put(edited.getId(), edited);
+        }
+
+        // The new manifest reuses February's and March's shards and drops April's; the old
+        // manifest is kept as manifest.bin.prev, so its shards stay
+        Set<String> second = awaitNewShards(first, 2);
+        assertEquals(new TreeSet<>(Arrays.asList("2024-01", "2024-05")), months(second));
+        assertContents(expected);
+
+        // A second compaction of February edits leaves only the shards the last two
+        // manifests list: first January's and April's shards are deleted
+        for (int i = 0; i < 200; i++) {
+            Note edited = new Note(expected.get("m1-" + i % 30));
+            edited.setText("again " + i);
+            assertTrue(journal.put(edited));
+            expected.put(edited.getId(), edited);
+        }
+        Set<String> third = awaitNewShards(union(first, second), 1);
+        assertEquals(new TreeSet<>(Arrays.asList("2024-02")), months(third));
+        Set<String> kept = new TreeSet<>(second);
+        kept.addAll(third);
+        for (String name : first) {
+            if (name.contains("2024-02") || name.contains("2024-03")) {
+                kept.add(name);
+            }
+        }
+        awaitShardFiles(kept);
+        assertContents(expected);
+    }
+
+    // Waits for count shard files beyond the known ones and returns them
+    private Set<String> awaitNewShards(Set<String> known, int count) throws InterruptedException {
+        Set<String> added = new TreeSet<>();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            added = shardFiles();
+            added.removeAll(known);
+            // The folded log is renamed away once the new manifest is in place
+            if (added.size() >= count && !new File(dir, "journal.bin.folding").exists()) break;
+            Thread.sleep(10);
+        }
+        assertEquals(added.toString(), count, added.size());
+        return added;
+    }
+
+    private void awaitShardFiles(Set<String> expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!shardFiles().equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, shardFiles());
+    }
+
+    private Set<String> shardFiles() {
+        Set<String> names = new TreeSet<>();
+        String[] files = dir.list((d, name) -> name.startsWith("shard-"));
+        if (files != null) {
+            names.addAll(Arrays.asList(files));
+        }
+        return names;
+    }
+
+    // "shard-2024-05.17.bin" -> "2024-05"
+    private static Set<String> months(Set<String> shards) {
+        Set<String> months = new TreeSet<>();
+        for (String name : shards) {
+            months.add(name.substring("shard-".length(), "shard-".length() + 7));
+        }
+        return months;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> union = new TreeSet<>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    // A fresh journal reads exactly the expected notes
+    private void assertContents(Map<String, Note> expected) {
+        NoteJournal reopened = new NoteJournal(dir);
+        List<Note> notes = reopened.load();
+        assertEquals(expected.size(), notes.size());
+        for (Note note : notes) {
+            Note want = expected.get(note.getId());
+            assertNotNull(note.getId(), want);
+            assertEquals(want.getText(), note.getText());
+            assertEquals(want.getTimestamp(), note.getTimestamp());
+        }
+        assertEquals(utc(Calendar.MAY, 5), reopened.loadNote("m0-0").getTimestamp());
+        assertNull(reopened.loadNote("m3-0"));
+    }
+
+    @Test
+    public void coldLoadNote_benchmark() {
+        for (int count : new int[] {1_000, 10_000, 100_000}) {
+            File notesDir = new File(dir, "bench-" + count);
+            NoteJournal journal = new NoteJournal(notesDir);
+            List<Note> notes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                // Spread over a few years, so the notes land in many monthly shards
+                notes.add(new Note("note-" + i, "user", "Night " + i, null, "Seeing was good, note " + i,
+                        1500000000000L + i * 3600000L, Arrays.asList("tag" + i % 7), new ArrayList<>(),
+                        1500000000000L, 1500000000000L, false, 0, i));
+            }
+            assertTrue(journal.replaceAll(notes));
+            Note changed = new Note(notes.get(7));
+            changed.setText("changed");
+            assertTrue(journal.put(changed));
+
+            long indexed = coldLoadNanos(notesDir, count);
+            long walk = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                assertEquals(count, new NoteJournal(notesDir).loadSummaries().size());
+                walk = Math.min(walk, System.nanoTime() - start);
+            }
+            assertEquals("changed", new NoteJournal(notesDir).loadNote("note-7").getText());
+            // Without the index, the first loadNote() has to walk every shard
+            assertTrue(new File(notesDir, "index.bin").delete());
+            long unindexed = coldLoadNanos(notesDir, count);
+            System.out.println(String.format(Locale.ROOT,
+                    "%d notes: first loadNote %.2f ms with index.bin, %.2f ms without; summary walk %.2f ms",
+                    count, indexed / 1e6, unindexed / 1e6, walk / 1e6));
+        }
+    }
+
+    // Best of a few first loads, each from a journal opened just before
+    private static long coldLoadNanos(File notesDir, int count) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            NoteJournal cold = new NoteJournal(notesDir);
+            String id = "note-" + (round * 7919 % count);
+            long start = System.nanoTime();
+            Note note = cold.loadNote(id);
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(id, note.getId());
+        }
+        return best;
+    }
+
+    private File currentShard() {
+        File[] shards = dir.listFiles((d, name) -> name.startsWith("shard-") && name.contains(".2."));
+        assertNotNull(shards);
+        assertEquals(1, shards.length);
+        return shards[0];
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
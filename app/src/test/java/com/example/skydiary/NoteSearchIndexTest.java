@@ -0,0 +1,133 @@
+package com.example.skydiary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteSearchIndex matches what the old linear scan matched, and a benchmark of both on 10k
+ * and 100k generated notes: searching the index has to be faster than the scan at both sizes.
+ */
+public class NoteSearchIndexTest {
+    private static final String[] WORDS = {
+            "orion", "midnight", "nebula", "clouds", "clear", "seeing", "moon", "jupiter", "saturn",
+            "meteor", "perseids", "telescope", "eyepiece", "dew", "ridge", "galaxy", "andromeda",
+            "cluster", "pleiades", "twilight", "zenith", "horizon", "aurora", "comet", "venus"
+    };
+
+    private static Note note(String id, String name, String text) {
+        return new Note(id, "user", name, null, text, 1717200000000L, new ArrayList<>(), new ArrayList<>(),
+                1717200000000L, 1717200000000L, false, 0, 1);
+    }
+
+    @Test
+    public void search_matchesInsideWords() {
+        NoteSearchIndex index = new NoteSearchIndex();
+        index.update(note("a", "Midnight", "Orion over the ridge"));
+        index.update(note("b", "Caf\u00e9 stop", "Nightfall, then clouds"));
+        index.update(note("c", "Dawn", "Nothing"));
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), index.search("night"));
+        assertEquals(new HashSet<>(Arrays.asList("b")), index.search("CAFE"));
+        assertEquals(new HashSet<>(Arrays.asList("a")), index.search("rion idge"));
+        assertEquals(new HashSet<>(Arrays.asList("c")), index.search("no"));
+        assertTrue(index.search("night dawn").isEmpty());
+        assertTrue(index.search("  ").isEmpty());
+    }
+
+    @Test
+    public void search_dropsRemovedAndDeletedNotes() {
+        NoteSearchIndex index = new NoteSearchIndex();
+        index.update(note("a", "Midnight", null));
+        index.update(note("b", "Midnight", null));
+        index.remove("a");
+        Note deleted = new Note("b", "user", "Midnight", null, null, 0, new ArrayList<>(), new ArrayList<>(),
+                0, 1717200000001L, true, 1717200000001L, 2);
+        index.update(deleted);
+        assertTrue(index.search("night").isEmpty());
+    }
+
+    @Test
+    public void search_benchmark() {
+        for (int count : new int[] {10_000, 100_000}) {
+            benchmark(count);
+        }
+    }
+
+    private static void benchmark(int count) {
+        Random random = new Random(count);
+        List<Note> notes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 40; w++) {
+                // Mostly common words, some made up, so the vocabulary grows with the notes
+                text.append(random.nextInt(4) == 0 ? "w" + Integer.toString(random.nextInt(count), 36)
+                        : WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            notes.add(note("note-" + i, "Night " + i, text.toString()));
+        }
+
+        long start = System.nanoTime();
+        NoteSearchIndex index = new NoteSearchIndex();
+        for (Note note : notes) {
+            index.update(note);
+        }
+        long indexed = System.nanoTime() - start;
+
+        String[] queries = {"night", "orion clear", "rome", "w1a", "ght"};
+        long indexTime = 0;
+        long scanTime = 0;
+        // The first rounds warm up the JIT and aren't counted
+        for (int round = -3; round < 5; round++) {
+            if (round == 0) {
+                indexTime = 0;
+                scanTime = 0;
+            }
+            for (String query : queries) {
+                start = System.nanoTime();
+                Set<String> found = index.search(query);
+                indexTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                Set<String> scanned = scan(notes, query);
+                scanTime += System.nanoTime() - start;
+                assertEquals(query, scanned, found);
+            }
+        }
+        int searches = 5 * queries.length;
+        System.out.println(String.format(Locale.ROOT,
+                "%d notes: indexed in %d ms, search %.2f ms through the index, %.2f ms scanning every note",
+                count, indexed / 1_000_000, indexTime / 1e6 / searches, scanTime / 1e6 / searches));
+        assertTrue(count + " notes: index " + indexTime / searches + " ns, scan " + scanTime / searches + " ns",
+                indexTime < scanTime);
+    }
+
+    // What the notes list did before the index: every keyword somewhere in the name or text
+    private static Set<String> scan(List<Note> notes, String query) {
+        String[] keywords = query.toLowerCase(Locale.ROOT).split(" ");
+        Set<String> ids = new HashSet<>();
+        for (Note note : notes) {
+            String name = note.getName().toLowerCase(Locale.ROOT);
+            String text = note.getText().toLowerCase(Locale.ROOT);
+            boolean all = true;
+            for (String keyword : keywords) {
+                if (!name.contains(keyword) && !text.contains(keyword)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                ids.add(note.getId());
+            }
+        }
+        return ids;
+    }
+}
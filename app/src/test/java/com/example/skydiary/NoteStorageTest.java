@@ -0,0 +1,558 @@
+package com.example.skydiary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteStorage over a NoteJournal in a temp directory, with the store's writes counted and
+ * change events queued until the test delivers them, as the main thread would. batch() is
+ * also timed against a single updateNote(), each up to the write reaching the journal. The
+ * write-behind queue is checked against a store that can be made to fail or hang, page
+ * cursors against lists full of ties, the sync watermark across users and restarts, and
+ * merging pulled cloud notes.
+ */
+public class NoteStorageTest {
+    private static final long JUNE_2024 = 1717200000000L;
+
+    private File dir;
+    // Kept across open()s, so a reopened NoteStorage sees what the last one saved in preferences
+    private TestContext context;
+    private CountingStore store;
+    private final Queue<Runnable> mainThread = new ConcurrentLinkedQueue<>();
+    private final List<NoteChangeEvent> events = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("storage").toFile();
+        context = new TestContext(dir);
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(dir);
+    }
+
+    // Note store counting the writes that reach it
+    private static class CountingStore implements NoteStore {
+        final NoteStore store;
+        volatile int puts;
+        volatile int putAlls;
+        // While set, putAll() fails without writing anything
+        volatile boolean failing;
+        // While set, putAll() waits for it to open first, like a stuck disk
+        volatile CountDownLatch blocked;
+
+        CountingStore(NoteStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public boolean exists() {
+            return store.exists();
+        }
+
+        @Override
+        public List<Note> load() {
+            return store.load();
+        }
+
+        @Override
+        public List<NoteSummary> loadSummaries() {
+            return store.loadSummaries();
+        }
+
+        @Override
+        public Note loadNote(String noteId) {
+            return store.loadNote(noteId);
+        }
+
+        @Override
+        public boolean put(Note note) {
+            puts++;
+            return store.put(note);
+        }
+
+        @Override
+        public boolean putAll(Collection<Note> notes) {
+            putAlls++;
+            CountDownLatch latch = blocked;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return !failing && store.putAll(notes);
+        }
+
+        @Override
+        public boolean delete(String noteId) {
+            return store.delete(noteId);
+        }
+
+        @Override
+        public boolean replaceAll(Collection<Note> notes) {
+            return store.replaceAll(notes);
+        }
+
+        @Override
+        public void clear() {
+            store.clear();
+        }
+    }
+
+    private static Note note(String id, int i, String tag) {
+        return new Note(id, "user", "Night " + i, null, "Seeing " + i, JUNE_2024 + i * 3600000L,
+                new ArrayList<>(Arrays.asList(tag)), new ArrayList<>(), JUNE_2024, JUNE_2024, false, 0, 0);
+    }
+
+    private static List<Note> notes(int count) {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            notes.add(note("note-" + i, i, "tag" + i % 3));
+        }
+        return notes;
+    }
+
+    // Opens storage on whatever the journal holds, with the summaries loaded and no events pending
+    private NoteStorage open() {
+        store = new CountingStore(new NoteJournal(new File(dir, "notes")));
+        NoteStorage storage = new NoteStorage(context, store, mainThread::add);
+        storage.addOnNotesChangedListener(events::add);
+        storage.getActiveNoteCount();
+        deliverEvents();
+        events.clear();
+        return storage;
+    }
+
+    private NoteStorage open(List<Note> notes) {
+        new NoteJournal(new File(dir, "notes")).replaceAll(notes);
+        return open();
+    }
+
+    private void deliverEvents() {
+        Runnable task;
+        while ((task = mainThread.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void batch_thousandNotes_persistsOnceAndSendsOneEvent() {
+        NoteStorage storage = open(notes(750));
+        long version = storage.getVersion();
+        storage.batch(batch -> {
+            for (int i = 0; i < 250; i++) {
+                batch.put(note("new-" + i, 1000 + i, "tag1"));
+            }
+            for (int i = 0; i < 250; i++) {
+                Note note = batch.get("note-" + i);
+                note.setText("Edited " + i);
+                batch.put(note);
+            }
+            for (int i = 250; i < 500; i++) {
+                batch.delete("note-" + i);
+            }
+            for (int i = 500; i < 750; i++) {
+                batch.addTag("note-" + i, "meteor");
+            }
+            batch.renameTag("tag0", "moon");
+        });
+        storage.flush();
+
+        assertEquals(1, store.putAlls);
+        assertEquals(0, store.puts);
+        assertEquals(version + 1, storage.getVersion());
+        deliverEvents();
+        assertEquals(1, events.size());
+        NoteChangeEvent event = events.get(0);
+        assertEquals(250, event.getInsertedIds().size());
+        assertEquals(250, event.getDeletedIds().size());
+        assertEquals(500, event.getUpdatedIds().size());
+        assertTrue(event.isTagsChanged());
+
+        // Everything is in the journal: a fresh NoteStorage reads the same
+        int renamed = 0;
+        int tag1 = 250;
+        for (int i = 0; i < 750; i++) {
+            if (i >= 250 && i < 500) continue;
+            if (i % 3 == 0) renamed++;
+            if (i % 3 == 1) tag1++;
+        }
+        for (NoteStorage reader : Arrays.asList(storage, open())) {
+            assertEquals(750, reader.getActiveNoteCount());
+            assertEquals("Edited 7", reader.getNoteById("note-7").getText());
+            assertTrue(reader.getNoteById("note-300").isDeleted());
+            assertEquals(250, reader.getNoteCountForTag("meteor"));
+            assertEquals(0, reader.getNoteCountForTag("tag0"));
+            assertEquals(renamed, reader.getNoteCountForTag("moon"));
+            assertEquals(tag1, reader.getNoteCountForTag("tag1"));
+        }
+    }
+
+    @Test
+    public void batch_benchmark() {
+        NoteStorage storage = open(notes(1000));
+        long single = 0;
+        long bulk = 0;
+        // The first rounds warm up the JIT and aren't counted
+        for (int round = -3; round < 5; round++) {
+            String text = "Round " + round;
+            long start = System.nanoTime();
+            Note note = storage.getNoteById("note-1");
+            note.setText(text);
+            storage.updateNote(note);
+            storage.flush();
+            long singleTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            storage.batch(batch -> {
+                for (int i = 0; i < 1000; i++) {
+                    Note edited = batch.get("note-" + i);
+                    edited.setText(text + " " + i);
+                    batch.put(edited);
+                }
+            });
+            storage.flush();
+            long bulkTime = System.nanoTime() - start;
+            if (round >= 0) {
+                single += singleTime;
+                bulk += bulkTime;
+            }
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "One note updated and written in %.2f ms, a batch of 1000 in %.2f ms",
+                single / 1e6 / 5, bulk / 1e6 / 5));
+        assertEquals("Round 4 999", storage.getNoteById("note-999").getText());
+        // One write per note would cost a thousand single writes; the batch is one write of
+        // a bigger shard. Locally it's about four times a single write.
+        assertTrue("single " + single / 5 + " ns, batch " + bulk / 5 + " ns", bulk < 10 * single);
+    }
+
+    // Waits up to timeoutMs for the store to have been asked for that many putAll()s
+    private void awaitPutAlls(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (store.putAlls < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, store.putAlls);
+    }
+
+    @Test
+    public void writeBehind_coalescesEditsIntoOneWrite() throws InterruptedException {
+        NoteStorage storage = open(notes(10));
+        for (int i = 0; i < 50; i++) {
+            for (String id : Arrays.asList("note-1", "note-2")) {
+                Note note = storage.getNoteById(id);
+                note.setText("Edit " + i);
+                storage.updateNote(note);
+            }
+        }
+        assertEquals(0, store.putAlls);
+
+        awaitPutAlls(1, 10 * NoteStorage.WRITE_BEHIND_DELAY_MS);
+        // Nothing else was queued, so no second write follows
+        Thread.sleep(2 * NoteStorage.WRITE_BEHIND_DELAY_MS);
+        assertEquals(1, store.putAlls);
+        assertEquals(0, store.puts);
+        assertEquals("Edit 49", store.loadNote("note-1").getText());
+        assertEquals("Edit 49", store.loadNote("note-2").getText());
+    }
+
+    @Test
+    public void writeBehind_retriesFailedWriteWithTheLatestEdit() throws InterruptedException {
+        NoteStorage storage = open(notes(10));
+        store.failing = true;
+        Note note = storage.getNoteById("note-1");
+        note.setText("Lost?");
+        storage.updateNote(note);
+        awaitPutAlls(1, 10 * NoteStorage.WRITE_BEHIND_DELAY_MS);
+        assertEquals("Seeing 1", store.loadNote("note-1").getText());
+        // Still there for readers while it waits for the retry
+        assertEquals("Lost?", storage.getNoteById("note-1").getText());
+
+        // An edit made meanwhile is what the retry writes
+        store.failing = false;
+        note.setText("Kept");
+        storage.updateNote(note);
+        long start = System.currentTimeMillis();
+        awaitPutAlls(2, 2 * NoteStorage.WRITE_RETRY_DELAY_MS);
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("retried after " + waited + " ms", waited >= NoteStorage.WRITE_RETRY_DELAY_MS / 2);
+        storage.flush();
+        assertEquals("Kept", store.loadNote("note-1").getText());
+    }
+
+    @Test
+    public void flush_givesUpWhenTheStoreHangs() throws InterruptedException {
+        NoteStorage storage = open(notes(10));
+        CountDownLatch stuck = new CountDownLatch(1);
+        store.blocked = stuck;
+        Note note = storage.getNoteById("note-1");
+        note.setText("Eventually");
+        storage.updateNote(note);
+
+        long start = System.currentTimeMillis();
+        storage.flush();
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("flush returned after " + waited + " ms", waited >= NoteStorage.FLUSH_TIMEOUT_MS
+                && waited < NoteStorage.FLUSH_TIMEOUT_MS + 2000);
+
+        // Once the disk recovers the write goes through
+        store.blocked = null;
+        stuck.countDown();
+        storage.flush();
+        assertEquals(1, store.putAlls);
+        assertEquals("Eventually", store.loadNote("note-1").getText());
+    }
+
+    // Few distinct dates and names, so every order has long runs of ties; every tenth note is deleted
+    private static List<Note> tiedNotes(int count) {
+        String[] names = {"Orion", "orion", "Moon", null, "Two\nlines"};
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            notes.add(new Note("note-" + i, "user", names[i % names.length], null, "Seeing " + i,
+                    JUNE_2024 + (i % 4) * 3600000L, new ArrayList<>(Arrays.asList("tag" + i % 3)), new ArrayList<>(),
+                    JUNE_2024, JUNE_2024, i % 10 == 9, i % 10 == 9 ? System.currentTimeMillis() : 0, 0));
+        }
+        return notes;
+    }
+
+    private static List<String> ids(List<NoteSummary> summaries) {
+        List<String> ids = new ArrayList<>();
+        for (NoteSummary summary : summaries) {
+            ids.add(summary.getId());
+        }
+        return ids;
+    }
+
+    // Every page after the cursor, following the cursors to the end
+    private static List<String> pagesAfter(NoteStorage storage, int sortMode, NoteFilter filter, String cursor,
+                                           int limit) {
+        List<String> ids = new ArrayList<>();
+        do {
+            NotePage page = storage.getNotesPage(sortMode, filter, cursor, limit);
+            assertTrue(page.getNotes().size() <= limit);
+            ids.addAll(ids(page.getNotes()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return ids;
+    }
+
+    @Test
+    public void getNotesPage_cursorsWalkTiesInEverySortMode() {
+        List<Note> notes = tiedNotes(100);
+        NoteStorage storage = open(notes);
+        int[] sortModes = {NoteStorage.SORT_DATE_DESC, NoteStorage.SORT_DATE_ASC, NoteStorage.SORT_ALPHA_ASC};
+        for (int sortMode : sortModes) {
+            for (NoteFilter filter : Arrays.asList(NoteFilter.NONE, new NoteFilter(null, Arrays.asList("tag1")))) {
+                List<NoteSummary> expected = new ArrayList<>();
+                for (Note note : notes) {
+                    if (!note.isDeleted() && note.getTags().containsAll(filter.getTags())) {
+                        expected.add(NoteSummary.from(note));
+                    }
+                }
+                expected.sort(NoteStorage.getSortOrder(sortMode));
+                for (int limit : new int[] {1, 7, 30, 200}) {
+                    assertEquals("sort " + sortMode + ", limit " + limit,
+                            ids(expected), pagesAfter(storage, sortMode, filter, null, limit));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void getNotesPage_changesBetweenPagesDontSkipOrRepeat() {
+        NoteStorage storage = open(tiedNotes(60));
+        int[] sortModes = {NoteStorage.SORT_DATE_DESC, NoteStorage.SORT_DATE_ASC, NoteStorage.SORT_ALPHA_ASC};
+        for (int sortMode : sortModes) {
+            NotePage first = storage.getNotesPage(sortMode, NoteFilter.NONE, null, 10);
+            Set<String> before = new HashSet<>(pagesAfter(storage, sortMode, NoteFilter.NONE, null, 100));
+
+            // The note the cursor names goes away, and notes tied with it arrive on both sides
+            Note last = storage.getNoteById(first.getNotes().get(9).getId());
+            storage.deleteNote(last);
+            for (String id : Arrays.asList("a-" + sortMode, "z-" + sortMode)) {
+                Note tied = new Note(last);
+                tied.setId(id);
+                tied.setDeleted(false);
+                storage.addNote(tied);
+            }
+
+            List<String> seen = new ArrayList<>(ids(first.getNotes()));
+            seen.addAll(pagesAfter(storage, sortMode, NoteFilter.NONE, first.getNextCursor(), 10));
+            assertEquals("sort " + sortMode + ": " + seen, new HashSet<>(seen).size(), seen.size());
+            assertTrue(seen.containsAll(before));
+            // Only the newcomer ordered after the cursor shows up on the later pages
+            boolean descending = sortMode == NoteStorage.SORT_DATE_DESC;
+            assertTrue(seen.contains((descending ? "a-" : "z-") + sortMode));
+            assertFalse(seen.contains((descending ? "z-" : "a-") + sortMode));
+        }
+    }
+
+    private static Set<String> idsOf(List<Note> notes) {
+        Set<String> ids = new HashSet<>();
+        for (Note note : notes) {
+            ids.add(note.getId());
+        }
+        return ids;
+    }
+
+    private static void edit(NoteStorage storage, String id, String text) {
+        Note note = storage.getNoteById(id);
+        note.setText(text);
+        storage.updateNote(note);
+    }
+
+    @Test
+    public void syncWatermark_uploadsEachChangeOnce() {
+        NoteStorage storage = open(notes(10));
+        // Before the first sync everything is unsynced
+        assertEquals(10, storage.getUnsyncedNotes("alice").size());
+        storage.markSynced("alice", storage.getLastChangeSeq());
+        assertTrue(storage.getUnsyncedNotes("alice").isEmpty());
+
+        edit(storage, "note-1", "Edited");
+        storage.deleteNote(storage.getNoteById("note-3"));
+        long uploading = storage.getLastChangeSeq();
+        List<Note> upload = storage.getUnsyncedNotes("alice");
+        assertEquals(new HashSet<>(Arrays.asList("note-1", "note-3")), idsOf(upload));
+        for (Note note : upload) {
+            assertEquals(note.getId().equals("note-3"), note.isDeleted());
+        }
+        // A change made while that upload is in flight isn't covered by it
+        edit(storage, "note-2", "During upload");
+        edit(storage, "note-1", "Edited again");
+        storage.markSynced("alice", uploading);
+        assertEquals(new HashSet<>(Arrays.asList("note-1", "note-2")), idsOf(storage.getUnsyncedNotes("alice")));
+
+        // An older acknowledgement arriving late doesn't move the watermark back
+        storage.markSynced("alice", storage.getLastChangeSeq());
+        storage.markSynced("alice", uploading);
+        assertTrue(storage.getUnsyncedNotes("alice").isEmpty());
+    }
+
+    @Test
+    public void syncWatermark_isPerUserAndSurvivesRestart() {
+        NoteStorage storage = open(notes(10));
+        storage.markSynced("alice", storage.getLastChangeSeq());
+        edit(storage, "note-4", "Edited");
+
+        // Another account gets every note, tombstones included; then alice's watermark is gone
+        storage.deleteNote(storage.getNoteById("note-5"));
+        assertEquals(10, storage.getUnsyncedNotes("bob").size());
+        storage.markSynced("bob", storage.getLastChangeSeq());
+        assertTrue(storage.getUnsyncedNotes("bob").isEmpty());
+        assertEquals(10, storage.getUnsyncedNotes("alice").size());
+        assertEquals(10, storage.getUnsyncedNotes(null).size());
+
+        // After a restart new changes are numbered above the watermark, so they still count
+        storage.flush();
+        NoteStorage reopened = open();
+        assertTrue(reopened.getUnsyncedNotes("bob").isEmpty());
+        edit(reopened, "note-6", "After restart");
+        assertEquals(Collections.singleton("note-6"), idsOf(reopened.getUnsyncedNotes("bob")));
+    }
+
+    // The cloud's copy of a note: same content, but its own dates and no change sequence
+    private static Note cloudCopy(Note note) {
+        return new Note(note.getId(), note.getUserId(), note.getName(), note.getLocation(), note.getText(),
+                note.getTimestamp(), new ArrayList<>(note.getTags()), new ArrayList<>(note.getImages()),
+                note.getCreatedAtMillis(), note.getUpdatedAtMillis() + 60000, note.isDeleted(),
+                note.getDeletedAtMillis(), 0);
+    }
+
+    @Test
+    public void mergeCloudNotes_keepsLocalChangesAndTakesTheRest() {
+        NoteStorage storage = open(notes(10));
+        storage.markSynced("alice", storage.getLastChangeSeq());
+        edit(storage, "note-1", "Local edit");
+        storage.flush();
+        int writes = store.putAlls;
+        deliverEvents();
+        events.clear();
+        long version = storage.getVersion();
+
+        List<Note> cloud = new ArrayList<>();
+        Note conflicting = cloudCopy(storage.getNoteById("note-1"));
+        conflicting.setText("Cloud edit");
+        cloud.add(conflicting);
+        Note newer = cloudCopy(storage.getNoteById("note-2"));
+        newer.setText("Cloud edit");
+        cloud.add(newer);
+        Note deleted = cloudCopy(storage.getNoteById("note-4"));
+        deleted.setDeleted(true);
+        cloud.add(deleted);
+        cloud.add(note("cloud-1", 42, "tag0"));
+        Note neverHere = note("cloud-2", 43, "tag0");
+        neverHere.setDeleted(true);
+        cloud.add(neverHere);
+        cloud.add(cloudCopy(storage.getNoteById("note-3")));
+        assertEquals(3, storage.mergeCloudNotes("alice", cloud));
+
+        assertEquals("Local edit", storage.getNoteById("note-1").getText());
+        assertEquals("Cloud edit", storage.getNoteById("note-2").getText());
+        assertEquals("Night 42", storage.getNoteById("cloud-1").getName());
+        assertNull(storage.getNoteById("cloud-2"));
+        Note tombstone = storage.getNoteById("note-4");
+        assertTrue(tombstone == null || tombstone.isDeleted());
+        // Only the kept local change is still waiting for upload
+        assertEquals(Collections.singleton("note-1"), idsOf(storage.getUnsyncedNotes("alice")));
+
+        storage.flush();
+        assertEquals(writes + 1, store.putAlls);
+        assertEquals("Cloud edit", store.loadNote("note-2").getText());
+        assertEquals("Seeing 3", store.loadNote("note-3").getText());
+        assertEquals(version + 1, storage.getVersion());
+        deliverEvents();
+        assertEquals(1, events.size());
+        assertEquals(Collections.singleton("cloud-1"), new HashSet<>(events.get(0).getInsertedIds()));
+    }
+
+    @Test
+    public void mergeCloudNotes_skipsNotesWithTheSameContent() {
+        NoteStorage storage = open(notes(10));
+        storage.markSynced("alice", storage.getLastChangeSeq());
+        long version = storage.getVersion();
+        List<Note> cloud = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            // This device's own uploads coming back with server timestamps
+            cloud.add(cloudCopy(storage.getNoteById("note-" + i)));
+        }
+        assertEquals(0, storage.mergeCloudNotes("alice", cloud));
+        storage.flush();
+        assertEquals(0, store.putAlls);
+        assertEquals(version, storage.getVersion());
+        deliverEvents();
+        assertTrue(events.isEmpty());
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
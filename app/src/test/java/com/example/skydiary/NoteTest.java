@@ -0,0 +1,118 @@
+package com.example.skydiary;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Note.edit() stamps updatedAt only for real changes, and reading a note's lists doesn't
+ * allocate. Allocations are counted with the JVM's per-thread allocation counter.
+ */
+public class NoteTest {
+    private static final long UPDATED_AT = 1717200000000L;
+
+    // Keeps the returned lists reachable, so the JIT can't drop the calls
+    private static volatile Object sink;
+
+    private static Note note() {
+        NoteImage image = new NoteImage("image-1", "/data/note_images/a.jpg", 0, 0f, 4000, 3000);
+        return new Note("note-1", "user", "Orion", "Hill", "Clear", UPDATED_AT,
+                Arrays.asList("winter", "nebula"), Arrays.asList(image), UPDATED_AT, UPDATED_AT, false, 0, 1);
+    }
+
+    private static List<NoteImage> copies(List<NoteImage> images) {
+        List<NoteImage> copies = new ArrayList<>();
+        for (NoteImage image : images) {
+            copies.add(new NoteImage(image));
+        }
+        return copies;
+    }
+
+    @Test
+    public void edit_withSameValues_keepsUpdatedAt() {
+        Note note = note();
+        Note.Editor editor = note.edit()
+                .setName("Orion")
+                .setLocation("Hill")
+                .setText("Clear")
+                .setTimestamp(UPDATED_AT)
+                .setTags(new ArrayList<>(note.getTags()))
+                .setImages(copies(note.getImages()));
+        assertFalse(editor.hasChanges());
+        editor.apply();
+        assertEquals(UPDATED_AT, note.getUpdatedAtMillis());
+    }
+
+    @Test
+    public void edit_rotatedImage_isAChange() {
+        Note note = note();
+        List<NoteImage> images = copies(note.getImages());
+        images.get(0).setRotation(90f);
+        Note.Editor editor = note.edit().setImages(images);
+        assertTrue(editor.hasChanges());
+        editor.apply();
+        assertNotEquals(UPDATED_AT, note.getUpdatedAtMillis());
+        assertEquals(90f, note.getImages().get(0).getRotation(), 0f);
+
+        // The note keeps its own copies; rotating the caller's image again is a new change
+        images.get(0).setRotation(180f);
+        assertEquals(90f, note.getImages().get(0).getRotation(), 0f);
+        assertTrue(note.edit().setImages(images).hasChanges());
+    }
+
+    // Bytes allocated by this thread so far; skips the test on JVMs that don't count them
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(counter.isThreadAllocatedMemorySupported());
+        return counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void getTagsAndImages_dontAllocate() {
+        Note note = note();
+        int calls = 100_000;
+        for (int i = 0; i < calls; i++) {
+            sink = note.getTags();
+            sink = note.getImages();
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < calls; i++) {
+            sink = note.getTags();
+            sink = note.getImages();
+        }
+        long allocated = allocatedBytes() - before;
+        System.out.println(2 * calls + " list reads allocated " + allocated + " bytes");
+        // A copy per call would be at least 2 * calls * 24 bytes; allow for the counter's own noise
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+
+    @Test
+    public void editWithoutChanges_allocatesLittle() {
+        Note note = note();
+        List<String> tags = new ArrayList<>(note.getTags());
+        List<NoteImage> images = copies(note.getImages());
+        int calls = 100_000;
+        for (int round = 0; round < 2; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < calls; i++) {
+                sink = note.edit().setName("Orion").setText("Clear").setTags(tags).setImages(images).apply();
+            }
+            long allocated = allocatedBytes() - before;
+            if (round == 1) {
+                System.out.println(calls + " unchanged edits allocated " + allocated + " bytes");
+                // The editor and the iterators comparing the tags: about 56 bytes. Copying the
+                // tags and images each time, as before, comes to well over twice that.
+                assertTrue("allocated " + allocated + " bytes", allocated < calls * 80L);
+            }
+        }
+        assertEquals(UPDATED_AT, note.getUpdatedAtMillis());
+    }
+}
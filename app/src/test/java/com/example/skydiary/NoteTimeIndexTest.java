@@ -0,0 +1,139 @@
+package com.example.skydiary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteTimeIndex answers date ranges the way a scan sorted by (timestamp, id) would, including
+ * the month and day buckets the calendar asks for, and its positions work as paging cursors.
+ */
+public class NoteTimeIndexTest {
+    private static final long JAN_2024 = 1704067200000L;
+    private static final long HOUR = 60L * 60 * 1000;
+
+    private static NoteSummary summary(String id, long timestamp, boolean deleted) {
+        return new NoteSummary(id, "Night", timestamp, new ArrayList<>(), 0, deleted, timestamp, 1);
+    }
+
+    @Test
+    public void getIdsInRange_includesStartAndExcludesEnd() {
+        NoteTimeIndex index = new NoteTimeIndex();
+        index.update(summary("b", JAN_2024, false));
+        index.update(summary("a", JAN_2024, false));
+        index.update(summary("c", JAN_2024 + HOUR, false));
+        index.update(summary("d", JAN_2024 - 1, false));
+        index.update(summary("e", JAN_2024, true));
+
+        // Equal timestamps come in id order
+        assertEquals(Arrays.asList("a", "b"), index.getIdsInRange(JAN_2024, JAN_2024 + HOUR));
+        assertEquals(Arrays.asList("d", "a", "b", "c"), index.getIds());
+        assertTrue(index.getIdsInRange(JAN_2024 + 1, JAN_2024 + HOUR).isEmpty());
+        assertTrue(index.getIdsInRange(JAN_2024 + HOUR, JAN_2024).isEmpty());
+
+        // Moving a note's date moves it in the order; deleting drops it
+        index.update(summary("a", JAN_2024 + 2 * HOUR, false));
+        index.update(summary("b", JAN_2024, true));
+        index.remove("missing");
+        assertEquals(Arrays.asList("d", "c", "a"), index.getIds());
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void positions_resumeAfterACursor() {
+        NoteTimeIndex index = new NoteTimeIndex();
+        for (String id : Arrays.asList("a", "b", "c")) {
+            index.update(summary(id, JAN_2024, false));
+        }
+        index.update(summary("d", JAN_2024 + HOUR, false));
+
+        assertEquals(2, index.positionAfter(JAN_2024, "b"));
+        assertEquals(1, index.positionOf(JAN_2024, "b"));
+        // The cursor's note may have been deleted since; paging still resumes after its place
+        index.remove("b");
+        assertEquals("c", index.getId(index.positionAfter(JAN_2024, "b")));
+        assertEquals("a", index.getId(index.positionOf(JAN_2024, "b") - 1));
+        assertEquals(3, index.positionAfter(JAN_2024 + HOUR, "d"));
+        assertEquals(0, index.positionOf(JAN_2024 - 1, "z"));
+    }
+
+    @Test
+    public void monthAndDayBuckets_matchAScan() {
+        TimeZone zone = TimeZone.getTimeZone("Europe/Rome");
+        Random random = new Random(9);
+        NoteTimeIndex index = new NoteTimeIndex();
+        Map<String, NoteSummary> summaries = new HashMap<>();
+        for (int op = 0; op < 20_000; op++) {
+            String id = "note-" + random.nextInt(3000);
+            if (random.nextInt(10) == 0) {
+                index.remove(id);
+                summaries.remove(id);
+                continue;
+            }
+            // Some notes sit exactly on midnight, so the bucket edges are exercised
+            long timestamp = random.nextInt(4) == 0
+                    ? startOfDay(zone, random.nextInt(366))
+                    : JAN_2024 + (long) (random.nextDouble() * 366 * 24 * HOUR);
+            NoteSummary summary = summary(id, timestamp, random.nextInt(8) == 0);
+            index.update(summary);
+            summaries.put(id, summary);
+        }
+
+        Calendar month = Calendar.getInstance(zone);
+        month.setTimeInMillis(startOfDay(zone, 0));
+        for (int m = 0; m < 12; m++) {
+            Calendar next = (Calendar) month.clone();
+            next.add(Calendar.MONTH, 1);
+            List<String> monthIds = index.getIdsInRange(month.getTimeInMillis(), next.getTimeInMillis());
+            assertEquals(scan(summaries.values(), month.getTimeInMillis(), next.getTimeInMillis()), monthIds);
+
+            // The month's day buckets add up to the month
+            List<String> dayIds = new ArrayList<>();
+            Calendar day = (Calendar) month.clone();
+            while (day.before(next)) {
+                Calendar nextDay = (Calendar) day.clone();
+                nextDay.add(Calendar.DAY_OF_MONTH, 1);
+                List<String> ids = index.getIdsInRange(day.getTimeInMillis(), nextDay.getTimeInMillis());
+                assertEquals(scan(summaries.values(), day.getTimeInMillis(), nextDay.getTimeInMillis()), ids);
+                dayIds.addAll(ids);
+                day = nextDay;
+            }
+            assertEquals(monthIds, dayIds);
+            month = next;
+        }
+    }
+
+    // Local midnight of the given day of 2024
+    private static long startOfDay(TimeZone zone, int dayOfYear) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.clear();
+        calendar.set(2024, Calendar.JANUARY, 1);
+        calendar.add(Calendar.DAY_OF_YEAR, dayOfYear);
+        return calendar.getTimeInMillis();
+    }
+
+    private static List<String> scan(Iterable<NoteSummary> summaries, long startMs, long endMs) {
+        List<NoteSummary> matching = new ArrayList<>();
+        for (NoteSummary summary : summaries) {
+            if (!summary.isDeleted() && summary.getTimestamp() >= startMs && summary.getTimestamp() < endMs) {
+                matching.add(summary);
+            }
+        }
+        Collections.sort(matching, NoteStorage.getSortOrder(NoteStorage.SORT_DATE_ASC));
+        List<String> ids = new ArrayList<>();
+        for (NoteSummary summary : matching) {
+            ids.add(summary.getId());
+        }
+        return ids;
+    }
+}